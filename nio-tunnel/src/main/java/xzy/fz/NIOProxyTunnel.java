@@ -2,23 +2,30 @@ package xzy.fz;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.socksx.SocksPortUnificationServerHandler;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import xzy.fz.cache.HttpCache;
 import xzy.fz.config.Cli;
 import xzy.fz.config.Config;
 import xzy.fz.config.ConfigLoader;
+import xzy.fz.handler.HttpPipeliningHandler;
 import xzy.fz.handler.HttpProxyHandler;
+import xzy.fz.handler.RelayStats;
 import xzy.fz.handler.Socks5Handler;
 import xzy.fz.log.AccessLog;
+import xzy.fz.pac.PacFile;
+import xzy.fz.route.Router;
+import xzy.fz.stats.Stats;
+import xzy.fz.transport.Transport;
+import xzy.fz.upstream.UpstreamConnector;
+import xzy.fz.upstream.UpstreamTls;
 
 import javax.net.ssl.SSLException;
 import java.util.concurrent.TimeUnit;
@@ -98,8 +105,9 @@ public final class NIOProxyTunnel {
         Config config = ConfigLoader.load(cli);
 
         // Validate required configuration
-        if (config.upstreamHost().isBlank()) {
-            System.err.println("Missing required property upstream.host (set it in config.properties or via CLI)");
+        if (config.upstreamHost().isBlank() && config.upstreamServers().isBlank()) {
+            System.err.println("Missing required property upstream.host or upstream.servers "
+                    + "(set it in config.properties or via CLI)");
             System.exit(2);
         }
 
@@ -114,7 +122,7 @@ public final class NIOProxyTunnel {
     /**
      * Main server class that manages both HTTP and SOCKS5 proxy listeners.
      * <p>
-     * Uses Netty's NIO event loop for non-blocking I/O operations.
+     * Uses the configured {@link Transport} (NIO, epoll or io_uring) for non-blocking I/O.
      * Two event loop groups are used:
      * <ul>
      *   <li><b>Boss group</b> - Accepts incoming connections (single thread)</li>
@@ -124,18 +132,45 @@ public final class NIOProxyTunnel {
     private static final class TunnelServer {
         private final Config config;
 
+        /** I/O transport shared by listeners and upstream bootstraps */
+        private final Transport transport;
+
         /** Boss group handles incoming connections (single thread is sufficient) */
         private final EventLoopGroup bossGroup;
 
         /** Worker group handles I/O operations (defaults to CPU cores * 2 threads) */
         private final EventLoopGroup workerGroup;
 
+        /** Write-buffer water marks for backpressure between relayed channels */
+        private final WriteBufferWaterMark writeBufferWaterMark;
+
         /** SSL context for upstream HTTPS connections */
         private final SslContext sslContext;
 
+        /** SSL context offering h2 via ALPN for multiplexed tunnels (null unless upstream.protocol=h2) */
+        private final SslContext http2SslContext;
+
+        /** Opens (and optionally pools) connections to the upstream proxy */
+        private final UpstreamConnector upstreamConnector;
+
         /** Access log for Squid-style request logging */
         private final AccessLog accessLog;
 
+        /** Counters served on the stats page */
+        private final Stats stats = new Stats();
+
+        /** Read and flush counters shared by all tunnel relays */
+        private final RelayStats relayStats = new RelayStats();
+
+        /** Response cache for plain HTTP (null if disabled) */
+        private final HttpCache cache;
+
+        /** Direct/upstream/reject rules for tunnels (null if disabled) */
+        private final Router router;
+
+        /** Pre-encoded PAC response (null if disabled) */
+        private final PacFile pacFile;
+
         /**
          * Creates a new tunnel server with the given configuration.
          *
@@ -143,24 +178,56 @@ public final class NIOProxyTunnel {
          */
         TunnelServer(Config config) {
             this.config = config;
-            this.bossGroup = new NioEventLoopGroup(1);
-            this.workerGroup = new NioEventLoopGroup();
+            this.transport = Transport.select(config.transport());
+            this.bossGroup = transport.newEventLoopGroup(1);
+            this.workerGroup = transport.newEventLoopGroup(0);
+            this.writeBufferWaterMark = new WriteBufferWaterMark(
+                    config.writeBufferLowWaterMark(), config.writeBufferHighWaterMark());
 
             // Initialize access log if enabled
             if (config.accessLogEnabled()) {
-                this.accessLog = new AccessLog(config.accessLogFile(), config.accessLogConsole());
+                this.accessLog = new AccessLog(config);
+                stats.register(accessLog);
             } else {
                 this.accessLog = null;
             }
 
             // Build SSL context for upstream HTTPS proxy connections
             try {
-                this.sslContext = config.upstreamTls()
-                        ? SslContextBuilder.forClient().build()
+                this.sslContext = UpstreamTls.newClientContext(config);
+                this.http2SslContext = config.upstreamHttp2()
+                        ? UpstreamTls.newClientContext(config, ApplicationProtocolNames.HTTP_2,
+                                ApplicationProtocolNames.HTTP_1_1)
                         : null;
             } catch (SSLException e) {
                 throw new RuntimeException("Failed to create SSL context", e);
             }
+
+            this.upstreamConnector = new UpstreamConnector(config, transport, sslContext, http2SslContext);
+            stats.register(upstreamConnector.handshakeStats());
+            stats.register(upstreamConnector.balancer());
+            stats.register(relayStats);
+
+            if (config.cacheEnabled()) {
+                this.cache = new HttpCache(config);
+                stats.register(cache);
+            } else {
+                this.cache = null;
+            }
+
+            if (config.routeEnabled()) {
+                this.router = new Router(config);
+                stats.register(router);
+            } else {
+                this.router = null;
+            }
+
+            if (config.pacEnabled()) {
+                this.pacFile = new PacFile(config);
+                stats.register(pacFile);
+            } else {
+                this.pacFile = null;
+            }
         }
 
         /**
@@ -173,7 +240,10 @@ public final class NIOProxyTunnel {
                 startHttpProxy();
                 // Start SOCKS5 proxy server
                 startSocksProxy();
+                // Pre-establish upstream connections (if pooling is enabled)
+                upstreamConnector.prewarm(workerGroup);
 
+                log.info("Using {} transport", transport);
                 log.info("HTTP proxy listening on {}:{}", config.listenHost(), config.listenPort());
                 log.info("SOCKS5 proxy listening on {}:{}", config.listenHost(), config.socksPort());
 
@@ -181,6 +251,10 @@ public final class NIOProxyTunnel {
                     log.info("PAC file available at http://{}:{}{}",
                             config.pacHost(), config.listenPort(), config.pacPath());
                 }
+                if (config.statsEnabled()) {
+                    log.info("Stats available at http://{}:{}{}",
+                            config.listenHost(), config.listenPort(), config.statsPath());
+                }
 
                 // Keep the main thread alive
                 Thread.currentThread().join();
@@ -198,17 +272,20 @@ public final class NIOProxyTunnel {
          *   <li>HTTP CONNECT requests for HTTPS tunneling</li>
          *   <li>Regular HTTP requests (GET, POST, etc.)</li>
          *   <li>PAC file serving (if enabled)</li>
+         *   <li>Stats page serving (if enabled)</li>
          * </ul>
          */
         private void startHttpProxy() {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    // Use NIO for non-blocking I/O
-                    .channel(NioServerSocketChannel.class)
+                    // Server channel type must match the event loop transport
+                    .channel(transport.serverChannelClass())
                     // TCP optimization: disable Nagle's algorithm for lower latency
                     .childOption(ChannelOption.TCP_NODELAY, true)
                     // Enable TCP keepalive to detect dead connections
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    // Bound outbound buffering so relays can apply backpressure
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -227,8 +304,12 @@ public final class NIOProxyTunnel {
                             // HTTP response encoder - converts HttpResponse to bytes
                             p.addLast("http-encoder", new HttpResponseEncoder());
 
+                            // Persistent connections; answers pipelined requests one at a time, in order
+                            p.addLast("http-pipelining", new HttpPipeliningHandler());
+
                             // Our custom HTTP proxy handler
-                            p.addLast("http-proxy-handler", new HttpProxyHandler(config, sslContext, accessLog));
+                            p.addLast("http-proxy-handler", new HttpProxyHandler(config, upstreamConnector,
+                                    router, pacFile, cache, stats, accessLog, relayStats));
                         }
                     });
 
@@ -245,9 +326,10 @@ public final class NIOProxyTunnel {
         private void startSocksProxy() {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .childOption(ChannelOption.TCP_NODELAY, true)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -261,7 +343,8 @@ public final class NIOProxyTunnel {
                             p.addLast("socks-unification", new SocksPortUnificationServerHandler());
 
                             // Our custom SOCKS5 handler
-                            p.addLast("socks5-handler", new Socks5Handler(config, sslContext, accessLog));
+                            p.addLast("socks5-handler", new Socks5Handler(config, upstreamConnector, router, accessLog,
+                                    relayStats));
                         }
                     });
 
@@ -281,9 +364,22 @@ public final class NIOProxyTunnel {
                 accessLog.close();
             }
 
+            // Close the DNS resolvers' sockets
+            upstreamConnector.close();
+
             // Graceful shutdown with timeout (0 quiet period, 5 second timeout)
             bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
             workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+
+            // Stop watching the PAC file
+            if (pacFile != null) {
+                pacFile.close();
+            }
+
+            // Release cached bodies and delete cache files
+            if (cache != null) {
+                cache.close();
+            }
         }
     }
 }
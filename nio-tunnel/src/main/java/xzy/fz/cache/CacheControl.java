@@ -0,0 +1,102 @@
+package xzy.fz.cache;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.Locale;
+
+/**
+ * Parsed {@code Cache-Control} directives (RFC 9111 section 5.2) of a request or response.
+ * <p>
+ * Delta-seconds directives are -1 when absent and capped at 2^31 - 1. Unknown directives
+ * are ignored.
+ * A request {@code Pragma: no-cache} without {@code Cache-Control} counts as {@code no-cache}.
+ *
+ * @param maxAge         {@code max-age} seconds
+ * @param sMaxAge        {@code s-maxage} seconds (response only)
+ * @param minFresh       {@code min-fresh} seconds (request only)
+ * @param noStore        {@code no-store}
+ * @param noCache        {@code no-cache} (the field-name form is treated as unqualified)
+ * @param privateCache   {@code private}
+ * @param publicCache    {@code public}
+ * @param mustRevalidate {@code must-revalidate} or {@code proxy-revalidate}
+ * @param onlyIfCached   {@code only-if-cached} (request only)
+ */
+public record CacheControl(
+        long maxAge,
+        long sMaxAge,
+        long minFresh,
+        boolean noStore,
+        boolean noCache,
+        boolean privateCache,
+        boolean publicCache,
+        boolean mustRevalidate,
+        boolean onlyIfCached
+) {
+    /**
+     * Parses the directives of a message.
+     *
+     * @param headers Message headers
+     * @return Parsed directives (all absent if there is no {@code Cache-Control})
+     */
+    public static CacheControl parse(HttpHeaders headers) {
+        long maxAge = -1;
+        long sMaxAge = -1;
+        long minFresh = -1;
+        boolean noStore = false;
+        boolean noCache = false;
+        boolean privateCache = false;
+        boolean publicCache = false;
+        boolean mustRevalidate = false;
+        boolean onlyIfCached = false;
+
+        for (String field : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            for (String directive : field.split(",")) {
+                int eq = directive.indexOf('=');
+                String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+                String value = eq < 0 ? null : unquote(directive.substring(eq + 1).trim());
+                switch (name) {
+                    case "max-age" -> maxAge = deltaSeconds(value);
+                    case "s-maxage" -> sMaxAge = deltaSeconds(value);
+                    case "min-fresh" -> minFresh = deltaSeconds(value);
+                    case "no-store" -> noStore = true;
+                    case "no-cache" -> noCache = true;
+                    case "private" -> privateCache = true;
+                    case "public" -> publicCache = true;
+                    case "must-revalidate", "proxy-revalidate" -> mustRevalidate = true;
+                    case "only-if-cached" -> onlyIfCached = true;
+                    default -> {
+                        // Extension directive
+                    }
+                }
+            }
+        }
+        if (!headers.contains(HttpHeaderNames.CACHE_CONTROL)
+                && headers.containsValue(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true)) {
+            noCache = true;
+        }
+        return new CacheControl(maxAge, sMaxAge, minFresh, noStore, noCache,
+                privateCache, publicCache, mustRevalidate, onlyIfCached);
+    }
+
+    /**
+     * Parses delta-seconds; invalid values count as 0 (stale), as RFC 9111 requires for max-age.
+     */
+    private static long deltaSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.min(Integer.MAX_VALUE, Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // Too large for a long; RFC 9111 lets caches use 2^31 for any larger value
+            return !value.isEmpty() && value.chars().allMatch(Character::isDigit) ? Integer.MAX_VALUE : 0;
+        }
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+                ? value.substring(1, value.length() - 1) : value;
+    }
+}
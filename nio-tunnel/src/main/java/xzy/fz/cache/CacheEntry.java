@@ -0,0 +1,328 @@
+package xzy.fz.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AbstractReferenceCounted;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stored response: status, end-to-end headers, complete body and the timing needed to
+ * compute its age and freshness (RFC 9111 section 4.2).
+ * <p>
+ * Entries are immutable; revalidation creates a new entry that shares the body. The cache
+ * index holds one reference; {@link HttpCache#lookup} hands out another that the caller
+ * must release. The body stays valid (and a disk entry stays mapped) until the last
+ * reference, including buffers derived from {@link #newResponse}, is released.
+ */
+public final class CacheEntry extends AbstractReferenceCounted {
+    /** Upper bound for heuristic freshness derived from Last-Modified */
+    private static final long HEURISTIC_MAX_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final String key;
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final ByteBuf body;
+    private final Map<String, String> varyValues;
+    private final boolean onDisk;
+    private final long requestTime;
+    private final long responseTime;
+    private final long correctedInitialAge;
+    private final long freshnessLifetime;
+
+    /**
+     * Creates an entry.
+     *
+     * @param key          Cache key (absolute request URI)
+     * @param status       Response status
+     * @param headers      End-to-end response headers with Content-Length set to the body size
+     * @param body         Complete body; ownership passes to the entry
+     * @param varyValues   Request header values selected by {@code Vary}, by lower-case name
+     * @param onDisk       Whether the body is a memory-mapped file
+     * @param requestTime  Time the request that produced the response was sent (epoch millis)
+     * @param responseTime Time the response head was received (epoch millis)
+     */
+    CacheEntry(String key, HttpResponseStatus status, HttpHeaders headers, ByteBuf body,
+               Map<String, String> varyValues, boolean onDisk, long requestTime, long responseTime) {
+        this.key = key;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.varyValues = varyValues;
+        this.onDisk = onDisk;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+
+        // RFC 9111 section 4.2.3
+        long dateValue = headers.getTimeMillis(HttpHeaderNames.DATE, responseTime);
+        long ageValue = TimeUnit.SECONDS.toMillis(parseAge(headers.get(HttpHeaderNames.AGE)));
+        long apparentAge = Math.max(0, responseTime - dateValue);
+        long correctedAgeValue = ageValue + (responseTime - requestTime);
+        this.correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        this.freshnessLifetime = freshnessLifetime(status, headers, dateValue);
+    }
+
+    /**
+     * Gets the cache key.
+     *
+     * @return Absolute request URI
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * Gets the stored headers (must not be modified).
+     *
+     * @return End-to-end response headers
+     */
+    public HttpHeaders headers() {
+        return headers;
+    }
+
+    /**
+     * Gets the body size.
+     *
+     * @return Body bytes
+     */
+    public int size() {
+        return body.readableBytes();
+    }
+
+    /**
+     * Whether the body lives in a memory-mapped file.
+     */
+    public boolean onDisk() {
+        return onDisk;
+    }
+
+    /**
+     * Gets the stored body, which stays owned by the entry.
+     */
+    ByteBuf body() {
+        return body;
+    }
+
+    /**
+     * Computes the current age (RFC 9111 section 4.2.3).
+     *
+     * @param now Current time (epoch millis)
+     * @return Age in milliseconds
+     */
+    public long currentAge(long now) {
+        return correctedInitialAge + Math.max(0, now - responseTime);
+    }
+
+    /**
+     * Whether the entry may be served without revalidation.
+     *
+     * @param now     Current time (epoch millis)
+     * @param request Request directives
+     * @return true if fresh and acceptable to the request
+     */
+    public boolean isFresh(long now, CacheControl request) {
+        if (request.noCache()) {
+            return false;
+        }
+        long age = currentAge(now);
+        if (age >= freshnessLifetime) {
+            return false;
+        }
+        if (request.maxAge() >= 0 && age > TimeUnit.SECONDS.toMillis(request.maxAge())) {
+            return false;
+        }
+        return request.minFresh() < 0 || freshnessLifetime - age >= TimeUnit.SECONDS.toMillis(request.minFresh());
+    }
+
+    /**
+     * Whether the entry can be revalidated with a conditional request.
+     */
+    public boolean hasValidators() {
+        return headers.contains(HttpHeaderNames.ETAG) || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    /**
+     * Adds the entry's validators to a request sent upstream, replacing the client's own
+     * conditionals (RFC 9111 section 4.3.1).
+     *
+     * @param request Request being forwarded
+     */
+    public void addValidators(HttpRequest request) {
+        request.headers().remove(HttpHeaderNames.IF_NONE_MATCH).remove(HttpHeaderNames.IF_MODIFIED_SINCE);
+        String etag = headers.get(HttpHeaderNames.ETAG);
+        if (etag != null) {
+            request.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag);
+        }
+        String lastModified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+        if (lastModified != null) {
+            request.headers().set(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Whether the request selects this stored variant (RFC 9111 section 4.1).
+     *
+     * @param request Client request
+     * @return true if every header named in {@code Vary} has the stored value
+     */
+    boolean matches(HttpRequest request) {
+        for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+            if (!vary.getValue().equals(HttpCache.headerValue(request.headers(), vary.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the response to a request served from this entry. Answers 304 when the
+     * client's own conditional matches, otherwise the stored status and body.
+     *
+     * @param request Client request
+     * @param now     Current time (epoch millis)
+     * @return Response holding its own reference to the body
+     */
+    public FullHttpResponse newResponse(HttpRequest request, long now) {
+        boolean notModified = status.code() == HttpResponseStatus.OK.code() && notModifiedFor(request);
+        FullHttpResponse response = notModified
+                ? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED,
+                        Unpooled.EMPTY_BUFFER)
+                : new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                        request.method() == HttpMethod.HEAD ? Unpooled.EMPTY_BUFFER : body.retainedDuplicate());
+        response.headers().set(headers)
+                .set(HttpHeaderNames.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAge(now)));
+        if (notModified) {
+            response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+        }
+        return response;
+    }
+
+    /**
+     * Creates the entry that replaces this one after a 304 revalidation: stored headers are
+     * updated with those of the 304 (RFC 9111 section 4.3.4) and the body is shared.
+     *
+     * @param notModified  304 response from upstream, hop-by-hop headers removed
+     * @param requestTime  Time the conditional request was sent (epoch millis)
+     * @param responseTime Time the 304 was received (epoch millis)
+     * @return Refreshed entry holding its own reference to the body
+     */
+    CacheEntry refresh(HttpResponse notModified, long requestTime, long responseTime) {
+        // The 304 carries the current Age, if any; an old one must not survive the merge
+        HttpHeaders updated = headers.copy().remove(HttpHeaderNames.AGE);
+        for (String name : notModified.headers().names()) {
+            if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)
+                    && !HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(name)) {
+                updated.set(name, notModified.headers().getAll(name));
+            }
+        }
+        return new CacheEntry(key, status, updated, body.retain(), varyValues, onDisk, requestTime, responseTime);
+    }
+
+    /**
+     * Creates a copy of this entry with another body of the same content, e.g. when the
+     * entry moves from memory to disk.
+     *
+     * @param newBody Body; ownership passes to the new entry
+     * @param disk    Whether the body is a memory-mapped file
+     * @return Entry with the same key, headers and timing
+     */
+    CacheEntry withBody(ByteBuf newBody, boolean disk) {
+        return new CacheEntry(key, status, headers, newBody, varyValues, disk, requestTime, responseTime);
+    }
+
+    /**
+     * Whether the client's conditional headers match the stored validators.
+     */
+    private boolean notModifiedFor(HttpRequest request) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            String etag = headers.get(HttpHeaderNames.ETAG);
+            return etag != null && etagMatches(ifNoneMatch, etag);
+        }
+        Long ifModifiedSince = request.headers().getTimeMillis(HttpHeaderNames.IF_MODIFIED_SINCE);
+        Long lastModified = headers.getTimeMillis(HttpHeaderNames.LAST_MODIFIED);
+        return ifModifiedSince != null && lastModified != null && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * Weak comparison of an entity tag against an If-None-Match list (RFC 9110 section 13.1.2).
+     *
+     * @param list Value of an If-None-Match header
+     * @param etag Entity tag of the current representation
+     * @return true if the list is {@code *} or names the entity tag
+     */
+    public static boolean etagMatches(String list, String etag) {
+        if (list.trim().equals("*")) {
+            return true;
+        }
+        String opaque = stripWeak(etag);
+        for (String candidate : list.split(",")) {
+            if (stripWeak(candidate.trim()).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Computes the freshness lifetime (RFC 9111 section 4.2.1): {@code s-maxage}, then
+     * {@code max-age}, then {@code Expires}, then 10% of the time since Last-Modified.
+     * A {@code no-cache} response is stored with lifetime 0, so it is always revalidated.
+     */
+    private static long freshnessLifetime(HttpResponseStatus status, HttpHeaders headers, long dateValue) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noCache()) {
+            return 0;
+        }
+        if (cacheControl.sMaxAge() >= 0) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.sMaxAge());
+        }
+        if (cacheControl.maxAge() >= 0) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.maxAge());
+        }
+        if (headers.contains(HttpHeaderNames.EXPIRES)) {
+            // An invalid date (e.g. "0") means already expired
+            Long expires = headers.getTimeMillis(HttpHeaderNames.EXPIRES);
+            return expires == null ? 0 : Math.max(0, expires - dateValue);
+        }
+        Long lastModified = headers.getTimeMillis(HttpHeaderNames.LAST_MODIFIED);
+        if (lastModified != null && HttpCache.isHeuristicallyCacheable(status)) {
+            return Math.min(HEURISTIC_MAX_MILLIS, Math.max(0, dateValue - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    private static long parseAge(String age) {
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    protected void deallocate() {
+        body.release();
+    }
+
+    @Override
+    public CacheEntry touch(Object hint) {
+        body.touch(hint);
+        return this;
+    }
+
+    @Override
+    public CacheEntry retain() {
+        super.retain();
+        return this;
+    }
+}
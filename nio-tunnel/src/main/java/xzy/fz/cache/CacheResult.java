@@ -0,0 +1,24 @@
+package xzy.fz.cache;
+
+/**
+ * How a plain HTTP request was answered, named after Squid's access log result codes.
+ */
+public enum CacheResult {
+    /** Fresh stored response served without contacting upstream */
+    TCP_HIT,
+    /** Fresh stored response matched the client's conditional; 304 served from cache */
+    TCP_IMS_HIT,
+    /** Stale stored response revalidated upstream (304) and served from cache */
+    TCP_REFRESH_HIT,
+    /** Stale stored response replaced by a new one from upstream */
+    TCP_REFRESH_MISS,
+    /** Not in cache (or not cacheable); forwarded upstream */
+    TCP_MISS;
+
+    /**
+     * Whether the body came from the cache rather than from upstream.
+     */
+    public boolean isHit() {
+        return this == TCP_HIT || this == TCP_IMS_HIT || this == TCP_REFRESH_HIT;
+    }
+}
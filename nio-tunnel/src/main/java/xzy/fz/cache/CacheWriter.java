@@ -0,0 +1,218 @@
+package xzy.fz.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Collects the body of a response being stored while it streams to the client.
+ * <p>
+ * Chunks are kept as slices of the relayed buffers until the body outgrows the memory
+ * object limit; from then on they are appended to a cache file on the disk writer thread
+ * (or the response is dropped if the disk tier is disabled or the body outgrows it too).
+ * The entry becomes visible only when {@link #commit()} is called after the last chunk.
+ * <p>
+ * A writer is used from one event loop. Exactly one of {@link #commit()} and
+ * {@link #abort()} must be called.
+ */
+public final class CacheWriter {
+    private static final Logger log = LoggerFactory.getLogger(CacheWriter.class);
+
+    private final HttpCache cache;
+    private final String key;
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final Map<String, String> varyValues;
+    private final long requestTime;
+    private final long responseTime;
+
+    /** Body so far while it fits in memory; null once spilled or finished */
+    private CompositeByteBuf memoryBody = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+
+    /** Body bytes appended */
+    private long size;
+
+    /** File state once spilled, accessed on the disk writer thread only */
+    private Spill spill;
+
+    /** Whether the writer has been committed or aborted */
+    private boolean done;
+
+    CacheWriter(HttpCache cache, String key, HttpResponseStatus status, HttpHeaders headers,
+                Map<String, String> varyValues, long requestTime, long responseTime) {
+        this.cache = cache;
+        this.key = key;
+        this.status = status;
+        this.headers = headers;
+        this.varyValues = varyValues;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Appends a body chunk. The chunk is not consumed; its readable bytes are retained or
+     * copied as needed.
+     *
+     * @param data Chunk relayed to the client
+     */
+    public void append(ByteBuf data) {
+        if (done) {
+            return;
+        }
+        size += data.readableBytes();
+        if (spill == null) {
+            if (size <= cache.memoryMaxObjectBytes()) {
+                memoryBody.addComponent(true, data.retainedSlice());
+                return;
+            }
+            if (!cache.diskEnabled() || size > cache.diskMaxObjectBytes()) {
+                abort();
+                return;
+            }
+            // Move what has been collected so far to a file
+            spill = new Spill();
+            CompositeByteBuf collected = memoryBody;
+            memoryBody = null;
+            if (!writeToFile(collected)) {
+                return;
+            }
+        } else if (size > cache.diskMaxObjectBytes()) {
+            abort();
+            return;
+        }
+        writeToFile(data.retainedSlice());
+    }
+
+    /**
+     * Stores the complete response.
+     */
+    public void commit() {
+        if (done) {
+            return;
+        }
+        done = true;
+        headers.remove(HttpHeaderNames.TRANSFER_ENCODING).set(HttpHeaderNames.CONTENT_LENGTH, size);
+
+        if (spill == null) {
+            // Copy into one exactly sized buffer instead of pinning the relayed chunks
+            ByteBuf body = size == 0 ? Unpooled.EMPTY_BUFFER : Unpooled.directBuffer((int) size, (int) size);
+            body.writeBytes(memoryBody);
+            memoryBody.release();
+            memoryBody = null;
+            cache.store(newEntry(body, false));
+            return;
+        }
+
+        Spill file = spill;
+        int fileSize = (int) size;
+        cache.submitDiskTask(() -> {
+            if (file.failed || file.channel == null) {
+                file.discard();
+                return;
+            }
+            try {
+                ByteBuf body = HttpCache.map(file.channel, file.path, fileSize);
+                file.channel.close();
+                cache.store(newEntry(body, true));
+            } catch (IOException e) {
+                log.warn("Failed to map cache file {}: {}", file.path, e.getMessage());
+                file.discard();
+            }
+        });
+    }
+
+    /**
+     * Drops the response, e.g. because it was cut short or grew past the size limits.
+     */
+    public void abort() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (memoryBody != null) {
+            memoryBody.release();
+            memoryBody = null;
+        }
+        if (spill != null) {
+            Spill file = spill;
+            cache.submitDiskTask(file::discard);
+        }
+    }
+
+    private CacheEntry newEntry(ByteBuf body, boolean onDisk) {
+        return new CacheEntry(key, status, headers, body, varyValues, onDisk, requestTime, responseTime);
+    }
+
+    /**
+     * Appends a chunk to the cache file on the disk writer thread, releasing it afterwards.
+     *
+     * @return false if the cache has been closed and the writer was aborted
+     */
+    private boolean writeToFile(ByteBuf chunk) {
+        Spill file = spill;
+        if (cache.submitDiskTask(() -> {
+            try {
+                file.write(chunk);
+            } finally {
+                chunk.release();
+            }
+        })) {
+            return true;
+        }
+        chunk.release();
+        done = true;
+        return false;
+    }
+
+    /**
+     * Cache file being written.
+     */
+    private final class Spill {
+        private Path path;
+        private FileChannel channel;
+        private long position;
+        private boolean failed;
+
+        void write(ByteBuf chunk) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (channel == null) {
+                    path = cache.newFile();
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                HttpCache.writeFully(chunk, channel, position);
+                position += chunk.readableBytes();
+            } catch (IOException e) {
+                log.warn("Failed to write cache file for {}: {}", key, e.getMessage());
+                failed = true;
+            }
+        }
+
+        void discard() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (path != null) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to delete cache file {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
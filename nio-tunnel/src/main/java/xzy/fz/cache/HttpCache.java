@@ -0,0 +1,544 @@
+package xzy.fz.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+import xzy.fz.stats.StatsSource;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared response cache for plain HTTP (non-CONNECT) requests, following RFC 9111 for a
+ * shared cache.
+ * <p>
+ * Responses are keyed by absolute request URI ({@code http://...}); requests in origin
+ * form ({@code GET /path}) are neither looked up nor stored, since the key would not name
+ * the host. One variant is kept per URI, and a request
+ * whose {@code Vary} headers differ from the stored ones misses. Fresh entries are served
+ * without contacting upstream; stale entries with an {@code ETag} or {@code Last-Modified}
+ * are revalidated with a conditional request and served from cache on 304.
+ *
+ * <h2>Tiers:</h2>
+ * <ul>
+ *   <li><b>Memory</b> - bodies up to {@code cache.memory.maxObjectBytes} in direct buffers,
+ *       LRU-evicted once {@code cache.memory.maxBytes} is exceeded</li>
+ *   <li><b>Disk</b> (if {@code cache.disk.dir} is set) - bodies up to
+ *       {@code cache.disk.maxObjectBytes} in memory-mapped files, LRU-evicted once
+ *       {@code cache.disk.maxBytes} is exceeded. Entries evicted from memory move here, and
+ *       bodies too large for memory are written here while they stream through</li>
+ * </ul>
+ * File I/O runs on a single "cache-disk-writer" thread, never on an event loop. The disk
+ * index is not persisted: files left by a previous run are deleted at startup.
+ *
+ * <h2>Not stored:</h2>
+ * Responses to anything but an absolute-form GET without {@code Range}; {@code no-store}
+ * on either side; {@code private}; requests with {@code Authorization} unless the response
+ * allows it; {@code Set-Cookie}; {@code Vary: *}; statuses that are not cacheable by
+ * default; and responses with neither explicit freshness nor a validator.
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * http_cache_requests{result="..."}  Plain HTTP requests by {@link CacheResult}
+ * http_cache_objects{tier="..."}     Stored entries per tier
+ * http_cache_bytes{tier="..."}       Stored body bytes per tier
+ * </pre>
+ */
+public final class HttpCache implements StatsSource, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(HttpCache.class);
+
+    /** Suffix of cache files in the disk directory */
+    private static final String FILE_SUFFIX = ".cache";
+
+    /** Approximate memory taken by an entry's key, headers and bookkeeping */
+    private static final int ENTRY_OVERHEAD = 512;
+
+    /** Statuses cacheable by default (RFC 9110 section 15.1) */
+    private static final Set<Integer> HEURISTICALLY_CACHEABLE =
+            Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+
+    private final long memoryMaxBytes;
+    private final int memoryMaxObjectBytes;
+    private final Path diskDir;
+    private final long diskMaxBytes;
+    private final int diskMaxObjectBytes;
+
+    /** Memory tier in LRU order (guarded by this) */
+    private final LinkedHashMap<String, CacheEntry> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Entries being moved from memory to disk, still served from memory (guarded by this) */
+    private final Map<String, CacheEntry> demoting = new HashMap<>();
+
+    /** Disk tier in LRU order (guarded by this) */
+    private final LinkedHashMap<String, CacheEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long memoryBytes;
+    private long diskBytes;
+
+    /** Runs all file I/O, in submission order */
+    private final ExecutorService diskExecutor;
+
+    private final EnumMap<CacheResult, LongAdder> requests = new EnumMap<>(CacheResult.class);
+
+    /**
+     * Creates the cache and clears the disk directory of files from a previous run.
+     *
+     * @param config Proxy configuration ({@code cache.*} settings)
+     */
+    public HttpCache(Config config) {
+        this.memoryMaxBytes = config.cacheMemoryMaxBytes();
+        this.memoryMaxObjectBytes = config.cacheMemoryMaxObjectBytes();
+        this.diskDir = config.cacheDiskDir().isBlank() ? null : Path.of(config.cacheDiskDir());
+        this.diskMaxBytes = config.cacheDiskMaxBytes();
+        this.diskMaxObjectBytes = config.cacheDiskMaxObjectBytes();
+        for (CacheResult result : CacheResult.values()) {
+            requests.put(result, new LongAdder());
+        }
+
+        if (diskDir != null) {
+            try {
+                Files.createDirectories(diskDir);
+                try (DirectoryStream<Path> stale = Files.newDirectoryStream(diskDir, "*" + FILE_SUFFIX)) {
+                    for (Path file : stale) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot use cache directory " + diskDir + ": " + e.getMessage(), e);
+            }
+            this.diskExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-disk-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.diskExecutor = null;
+        }
+
+        log.info("HTTP cache: memory={} bytes (max object {}), disk={}",
+                memoryMaxBytes, memoryMaxObjectBytes,
+                diskDir != null ? diskDir + " " + diskMaxBytes + " bytes (max object " + diskMaxObjectBytes + ")"
+                        : "disabled");
+    }
+
+    /**
+     * Looks up the stored response for a request.
+     *
+     * @param request Client request
+     * @return Matching entry with a reference the caller must release, or null on a miss
+     */
+    public CacheEntry lookup(HttpRequest request) {
+        if (!isLookupMethod(request.method()) || request.headers().contains(HttpHeaderNames.RANGE)
+                || !isAbsoluteUri(request.uri())) {
+            return null;
+        }
+        String key = request.uri();
+        synchronized (this) {
+            CacheEntry entry = memory.get(key);
+            if (entry == null) {
+                entry = demoting.get(key);
+            }
+            if (entry == null) {
+                entry = disk.get(key);
+            }
+            return entry != null && entry.matches(request) ? entry.retain() : null;
+        }
+    }
+
+    /**
+     * Starts storing a response if it may be cached.
+     *
+     * @param request      Client request
+     * @param response     Response head as sent to the client (hop-by-hop headers removed)
+     * @param requestTime  Time the request was sent upstream (epoch millis)
+     * @param responseTime Time the response head was received (epoch millis)
+     * @return Writer receiving the body, or null if the response is not stored
+     */
+    public CacheWriter newWriter(HttpRequest request, HttpResponse response, long requestTime, long responseTime) {
+        if (!isStorable(request, response)) {
+            return null;
+        }
+        long contentLength = HttpUtil.getContentLength(response, -1L);
+        if (contentLength > (diskDir != null ? diskMaxObjectBytes : memoryMaxObjectBytes)) {
+            return null;
+        }
+
+        Map<String, String> varyValues = new HashMap<>();
+        for (String field : response.headers().getAll(HttpHeaderNames.VARY)) {
+            for (String name : field.split(",")) {
+                String lowerName = name.trim().toLowerCase(Locale.ROOT);
+                if (!lowerName.isEmpty()) {
+                    varyValues.put(lowerName, headerValue(request.headers(), lowerName));
+                }
+            }
+        }
+        return new CacheWriter(this, request.uri(), response.status(), response.headers().copy(),
+                varyValues, requestTime, responseTime);
+    }
+
+    /**
+     * Applies a 304 received while revalidating an entry: the stored entry is replaced by
+     * one with updated headers and timing, unless it has changed in the meantime.
+     *
+     * @param entry        Entry that was revalidated (the caller keeps its reference)
+     * @param notModified  304 response, hop-by-hop headers removed
+     * @param requestTime  Time the conditional request was sent (epoch millis)
+     * @param responseTime Time the 304 was received (epoch millis)
+     * @return Refreshed entry with a reference the caller must release
+     */
+    public CacheEntry refresh(CacheEntry entry, HttpResponse notModified, long requestTime, long responseTime) {
+        CacheEntry refreshed = entry.refresh(notModified, requestTime, responseTime);
+        boolean replaced = false;
+        synchronized (this) {
+            LinkedHashMap<String, CacheEntry> tier = entry.onDisk() ? disk : memory;
+            if (tier.get(entry.key()) == entry) {
+                tier.put(entry.key(), refreshed.retain());
+                replaced = true;
+            }
+        }
+        if (replaced) {
+            entry.release();
+        }
+        return refreshed;
+    }
+
+    /**
+     * Removes the entry for a URI, e.g. after a successful unsafe request to it
+     * (RFC 9111 section 4.4).
+     *
+     * @param uri Absolute request URI
+     */
+    public void invalidate(String uri) {
+        CacheEntry removed;
+        synchronized (this) {
+            removed = removeLocked(uri);
+        }
+        if (removed != null) {
+            removed.release();
+        }
+    }
+
+    /**
+     * Counts a completed request.
+     *
+     * @param result How the request was answered
+     */
+    public void record(CacheResult result) {
+        requests.get(result).increment();
+    }
+
+    /**
+     * Stores a complete entry, replacing any entry for the same key.
+     *
+     * @param entry Entry whose reference passes to the cache
+     */
+    void store(CacheEntry entry) {
+        List<CacheEntry> released = new ArrayList<>();
+        List<CacheEntry> demoted = new ArrayList<>();
+        synchronized (this) {
+            CacheEntry old = removeLocked(entry.key());
+            if (old != null) {
+                released.add(old);
+            }
+            if (entry.onDisk()) {
+                disk.put(entry.key(), entry);
+                diskBytes += entry.size();
+            } else {
+                memory.put(entry.key(), entry);
+                memoryBytes += weight(entry);
+            }
+            evictLocked(released, demoted);
+        }
+        released.forEach(CacheEntry::release);
+        demoted.forEach(this::demote);
+    }
+
+    /**
+     * Removes a key from every tier.
+     *
+     * @return Removed entry whose index reference the caller must release, or null
+     */
+    private CacheEntry removeLocked(String key) {
+        // A pending demotion must not bring the old response back
+        demoting.remove(key);
+        CacheEntry entry = memory.remove(key);
+        if (entry != null) {
+            memoryBytes -= weight(entry);
+            return entry;
+        }
+        entry = disk.remove(key);
+        if (entry != null) {
+            diskBytes -= entry.size();
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts least recently used entries until both tiers are within their limits. Memory
+     * entries that fit on disk are collected for demotion, the others for release.
+     */
+    private void evictLocked(List<CacheEntry> released, List<CacheEntry> demoted) {
+        Iterator<CacheEntry> memoryEntries = memory.values().iterator();
+        while (memoryBytes > memoryMaxBytes && memoryEntries.hasNext()) {
+            CacheEntry entry = memoryEntries.next();
+            memoryEntries.remove();
+            memoryBytes -= weight(entry);
+            if (diskDir != null && entry.size() > 0 && entry.size() <= diskMaxObjectBytes) {
+                demoting.put(entry.key(), entry);
+                demoted.add(entry);
+            } else {
+                released.add(entry);
+            }
+        }
+        Iterator<CacheEntry> diskEntries = disk.values().iterator();
+        while (diskBytes > diskMaxBytes && diskEntries.hasNext()) {
+            CacheEntry entry = diskEntries.next();
+            diskEntries.remove();
+            diskBytes -= entry.size();
+            released.add(entry);
+        }
+    }
+
+    /**
+     * Writes an entry evicted from memory to a file and stores it in the disk tier.
+     *
+     * @param entry Entry whose index reference passes to the disk writer
+     */
+    private void demote(CacheEntry entry) {
+        if (!submitDiskTask(() -> {
+            CacheEntry spilled = null;
+            try {
+                Path file = newFile();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    writeFully(entry.body(), channel, 0);
+                    spilled = entry.withBody(map(channel, file, entry.size()), true);
+                } catch (IOException e) {
+                    Files.deleteIfExists(file);
+                    throw e;
+                }
+            } catch (IOException e) {
+                log.warn("Failed to move cache entry {} to disk: {}", entry.key(), e.getMessage());
+            }
+            boolean stored = false;
+            synchronized (this) {
+                if (demoting.remove(entry.key(), entry) && spilled != null) {
+                    disk.put(spilled.key(), spilled);
+                    diskBytes += spilled.size();
+                    stored = true;
+                }
+            }
+            entry.release();
+            if (stored) {
+                // Only the disk tier can be over its limit here
+                List<CacheEntry> released = new ArrayList<>();
+                synchronized (this) {
+                    evictLocked(released, new ArrayList<>());
+                }
+                released.forEach(CacheEntry::release);
+            } else if (spilled != null) {
+                spilled.release();
+            }
+        })) {
+            synchronized (this) {
+                demoting.remove(entry.key(), entry);
+            }
+            entry.release();
+        }
+    }
+
+    /**
+     * Runs a task on the disk writer thread.
+     *
+     * @return false if the cache has been closed and the task will not run
+     */
+    boolean submitDiskTask(Runnable task) {
+        try {
+            diskExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an empty cache file. Disk writer thread only.
+     */
+    Path newFile() throws IOException {
+        return Files.createTempFile(diskDir, "entry", FILE_SUFFIX);
+    }
+
+    /**
+     * Maps a complete cache file. Disk writer thread only.
+     *
+     * @param channel Open read-write channel of the file
+     * @param file    File, deleted when the returned buffer is released
+     * @param size    File size
+     * @return Buffer over the whole file
+     */
+    static ByteBuf map(FileChannel channel, Path file, int size) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new MappedByteBuf(mapped, file);
+    }
+
+    /**
+     * Writes the readable bytes of a buffer at a file position without changing its indexes.
+     */
+    static void writeFully(ByteBuf buf, FileChannel channel, long position) throws IOException {
+        int index = buf.readerIndex();
+        int remaining = buf.readableBytes();
+        while (remaining > 0) {
+            int written = buf.getBytes(index, channel, position, remaining);
+            index += written;
+            position += written;
+            remaining -= written;
+        }
+    }
+
+    /**
+     * Gets the largest body kept in memory.
+     */
+    int memoryMaxObjectBytes() {
+        return memoryMaxObjectBytes;
+    }
+
+    /**
+     * Gets the largest body kept on disk.
+     */
+    int diskMaxObjectBytes() {
+        return diskMaxObjectBytes;
+    }
+
+    /**
+     * Whether the disk tier is enabled.
+     */
+    boolean diskEnabled() {
+        return diskDir != null;
+    }
+
+    private static long weight(CacheEntry entry) {
+        return entry.size() + ENTRY_OVERHEAD;
+    }
+
+    private static boolean isLookupMethod(HttpMethod method) {
+        return method == HttpMethod.GET || method == HttpMethod.HEAD;
+    }
+
+    /**
+     * Whether a request URI is in absolute form, so that it names the host it is for.
+     */
+    private static boolean isAbsoluteUri(String uri) {
+        return uri.regionMatches(true, 0, "http://", 0, 7);
+    }
+
+    /**
+     * Whether a response may be stored by a shared cache (RFC 9111 section 3).
+     */
+    private static boolean isStorable(HttpRequest request, HttpResponse response) {
+        if (request.method() != HttpMethod.GET || request.headers().contains(HttpHeaderNames.RANGE)
+                || !isAbsoluteUri(request.uri())) {
+            return false;
+        }
+        CacheControl requestCacheControl = CacheControl.parse(request.headers());
+        CacheControl responseCacheControl = CacheControl.parse(response.headers());
+        if (requestCacheControl.noStore() || responseCacheControl.noStore() || responseCacheControl.privateCache()) {
+            return false;
+        }
+        if (request.headers().contains(HttpHeaderNames.AUTHORIZATION) && !responseCacheControl.publicCache()
+                && !responseCacheControl.mustRevalidate() && responseCacheControl.sMaxAge() < 0) {
+            return false;
+        }
+        HttpHeaders headers = response.headers();
+        if (headers.contains(HttpHeaderNames.SET_COOKIE) || headerValue(headers, "vary").contains("*")) {
+            return false;
+        }
+        if (!isHeuristicallyCacheable(response.status())) {
+            return false;
+        }
+        boolean explicitFreshness = responseCacheControl.maxAge() >= 0 || responseCacheControl.sMaxAge() >= 0
+                || headers.contains(HttpHeaderNames.EXPIRES);
+        return explicitFreshness || headers.contains(HttpHeaderNames.ETAG)
+                || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    /**
+     * Whether a status is cacheable by default, i.e. may be given heuristic freshness.
+     *
+     * @param status Response status
+     * @return true for the statuses listed in RFC 9110 section 15.1 (except 206)
+     */
+    static boolean isHeuristicallyCacheable(HttpResponseStatus status) {
+        return HEURISTICALLY_CACHEABLE.contains(status.code());
+    }
+
+    /**
+     * Gets the combined value of a header as compared for {@code Vary}.
+     *
+     * @param headers Message headers
+     * @param name    Header name
+     * @return All values joined with commas, or an empty string if absent
+     */
+    static String headerValue(HttpHeaders headers, String name) {
+        List<String> values = headers.getAll(name);
+        return values.isEmpty() ? "" : String.join(",", values);
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        for (Map.Entry<CacheResult, LongAdder> entry : requests.entrySet()) {
+            out.append("http_cache_requests{result=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        int memoryObjects;
+        int diskObjects;
+        long memoryBodyBytes;
+        long diskBodyBytes;
+        synchronized (this) {
+            memoryObjects = memory.size();
+            diskObjects = disk.size();
+            memoryBodyBytes = memoryBytes - (long) memoryObjects * ENTRY_OVERHEAD;
+            diskBodyBytes = diskBytes;
+        }
+        out.append("http_cache_objects{tier=\"memory\"} ").append(memoryObjects).append('\n')
+                .append("http_cache_objects{tier=\"disk\"} ").append(diskObjects).append('\n')
+                .append("http_cache_bytes{tier=\"memory\"} ").append(memoryBodyBytes).append('\n')
+                .append("http_cache_bytes{tier=\"disk\"} ").append(diskBodyBytes).append('\n');
+    }
+
+    /**
+     * Stops the disk writer and releases all entries, deleting their files.
+     */
+    @Override
+    public void close() {
+        if (diskExecutor != null) {
+            diskExecutor.shutdown();
+            try {
+                diskExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<CacheEntry> released;
+        synchronized (this) {
+            released = new ArrayList<>(memory.values());
+            released.addAll(disk.values());
+            memory.clear();
+            disk.clear();
+            memoryBytes = 0;
+            diskBytes = 0;
+        }
+        released.forEach(CacheEntry::release);
+    }
+}
@@ -0,0 +1,49 @@
+package xzy.fz.cache;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * View of a memory-mapped cache file.
+ * <p>
+ * The mapping is read-write because Netty's direct buffer wrapper rejects read-only
+ * buffers; nothing writes through it once the file is complete.
+ * <p>
+ * Serving a disk entry writes duplicates of this buffer, so the kernel copies straight from
+ * the page cache to the socket. When the last reference is released the file is deleted;
+ * the mapping itself is released by the buffer's cleaner once it is garbage collected (until
+ * then the pages stay reachable, and on Windows the delete fails and is logged).
+ */
+final class MappedByteBuf extends UnpooledDirectByteBuf {
+    private static final Logger log = LoggerFactory.getLogger(MappedByteBuf.class);
+
+    private final Path file;
+
+    /**
+     * Wraps a mapping.
+     *
+     * @param mapped Mapping of the whole file
+     * @param file   Mapped file, deleted on release
+     */
+    MappedByteBuf(MappedByteBuffer mapped, Path file) {
+        super(UnpooledByteBufAllocator.DEFAULT, mapped, mapped.capacity());
+        this.file = file;
+    }
+
+    @Override
+    protected void deallocate() {
+        super.deallocate();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete cache file {}: {}", file, e.getMessage());
+        }
+    }
+}
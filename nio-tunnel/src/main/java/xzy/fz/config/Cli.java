@@ -97,18 +97,77 @@ public record Cli(Map<String, String> options) {
               --listen.host=HOST          Listen address (default: 127.0.0.1)
               --listen.port=PORT          HTTP proxy port (default: 8383)
               --listen.socks.port=PORT    SOCKS5 proxy port (default: 1080)
-              --upstream.host=HOST        Upstream HTTPS proxy host (required)
+              --listen.socks.fastOpen=BOOL  Reply SOCKS success before upstream CONNECT completes (default: false)
+              --listen.socks.fastOpen.maxBufferedBytes=BYTES  Early client bytes held meanwhile (default: 65536)
+              --upstream.host=HOST        Upstream HTTPS proxy host (required unless upstream.servers is set)
               --upstream.port=PORT        Upstream proxy port (default: 443)
+              --upstream.servers=LIST     Upstream proxies to balance across, host:port,...
+              --upstream.balance=NAME     Upstream selection: round_robin|least_conn|ewma (default: round_robin)
+              --upstream.breaker.failureThreshold=N  Failed connects that open an upstream's circuit (default: 5)
+              --upstream.breaker.openMillis=MS  Time before an open circuit lets a trial through (default: 10000)
+              --upstream.health.intervalMillis=MS  Upstream health probe interval, 0 disables (default: 0)
+              --upstream.health.timeoutMillis=MS  Health probe timeout (default: 2000)
+              --upstream.health.target=HOST:PORT  Canary target the health probe CONNECTs to
               --upstream.tls=BOOL         Enable TLS for upstream (default: true)
               --upstream.username=USER    Upstream proxy username
               --upstream.password=PASS    Upstream proxy password
+              --upstream.pool.size=N      Idle pre-connected upstream connections per event loop (default: 0)
+              --upstream.pool.maxIdleMillis=MS  Close pooled connections idle longer than this (default: 30000)
+              --upstream.tls.sessionCacheSize=N  Cached upstream TLS sessions (default: 1024)
+              --upstream.tls.sessionTimeoutSeconds=S  Cached TLS session lifetime (default: 3600)
+              --upstream.tls.sessionTickets=BOOL  Resume TLS sessions via tickets (default: true)
+              --upstream.tls.provider=NAME  Upstream TLS provider: auto|openssl|jdk (default: auto)
+              --upstream.tls.protocols=LIST  Enabled TLS protocols, e.g. TLSv1.3,TLSv1.2
+              --upstream.tls.ciphers=LIST  Enabled cipher suites (default: provider default)
+              --upstream.protocol=PROTO   CONNECT tunnels over http1 or h2 (multiplexed) (default: http1)
+              --upstream.h2.maxStreamsPerConnection=N  Tunnels per HTTP/2 connection (default: 100)
+              --upstream.keepAlive.maxIdle=N  Idle keep-alive connections for plain HTTP per event loop (default: 8)
+              --upstream.keepAlive.maxIdleMillis=MS  Close keep-alive connections idle longer than this (default: 15000)
+              --upstream.keepAlive.maxRequests=N  Requests per keep-alive connection (default: 100)
+              --upstream.connect.pipelined=BOOL  Send client bytes right behind upstream CONNECT (default: false)
+              --upstream.connect.pipelined.maxBufferedBytes=BYTES  Early client bytes held meanwhile (default: 65536)
+              --upstream.connect.attemptDelayMillis=MS  Happy Eyeballs delay between addresses (default: 250)
+              --upstream.dns.servers=LIST  DNS servers for upstream hostnames, IP[:port] (default: system)
+              --upstream.dns.maxTtlSeconds=SEC  Max DNS cache time (default: 300)
+              --upstream.dns.negativeTtlSeconds=SEC  Failed lookup cache time (default: 5)
               --listen.username=USER      Require local auth (username)
               --listen.password=PASS      Local auth password
+              --transport=TYPE            I/O transport: auto|nio|epoll|io_uring (default: auto)
+              --relay.splice=BOOL         Zero-copy splice for plaintext tunnels (default: false)
+              --relay.writeBuffer.lowWaterMark=BYTES   Resume reading below (default: 32768)
+              --relay.writeBuffer.highWaterMark=BYTES  Pause reading above (default: 65536)
+              --relay.maxReadsPerFlush=N  Flush a relay after N reads (default: 8)
+              --route.enabled=BOOL        Route tunnels direct/upstream/reject by rules (default: false)
+              --route.direct=RULES        Domains, CIDRs, :ports dialed directly (default: PAC's DIRECT set)
+              --route.upstream=RULES      Destinations tunneled through the upstream
+              --route.reject=RULES        Destinations refused
+              --route.default=ROUTE       Route when no rule matches (default: upstream)
               --pac.enabled=BOOL          Enable PAC file serving (default: true)
               --pac.path=PATH             PAC file URL path (default: /proxy.pac)
               --pac.host=HOST             Host in PAC file (default: 127.0.0.1)
               --pac.file=FILE             Custom PAC file path
+              --stats.enabled=BOOL        Serve counters on the HTTP listener (default: false)
+              --stats.path=PATH           Stats page URL path (default: /stats)
+              --cache.enabled=BOOL        Cache plain HTTP responses (default: false)
+              --cache.memory.maxBytes=BYTES        Memory tier capacity (default: 67108864)
+              --cache.memory.maxObjectBytes=BYTES  Largest body kept in memory (default: 1048576)
+              --cache.disk.dir=DIR        Directory of the disk tier (default: disabled)
+              --cache.disk.maxBytes=BYTES          Disk tier capacity (default: 1073741824)
+              --cache.disk.maxObjectBytes=BYTES    Largest body kept on disk (default: 268435456)
               --server.name=NAME          Server name for headers
+              --access.log.enabled=BOOL   Write the access log (default: true)
+              --access.log.file=FILE      Access log file (default: access.log)
+              --access.log.console=BOOL   Also print the access log to stdout (default: true)
+              --access.log.format=FORMAT  Access log file format: squid|binary (default: squid)
+              --access.log.bufferEntries=N  Entries buffered for the log writer (default: 8192)
+              --access.log.flushIntervalMillis=MS  Max delay before a logged line is written (default: 1000)
+              --access.log.fsync=BOOL     Force every access log write to disk (default: false)
+              --access.log.tunnel.sampleRate=N  Log 1 in N successful tunnels, 0 none (default: 1)
+              --access.log.tunnel.aggregateSeconds=S  Summarize unlogged tunnels every S seconds (default: 0, off)
+              --access.log.rotate.maxBytes=N  Rotate the access log at N bytes (default: 0, off)
+              --access.log.rotate.intervalSeconds=S  Rotate the access log every S seconds (default: 0, off)
+              --access.log.rotate.keep=N  Rotated access log files kept (default: 7)
+              --access.log.rotate.compress=gzip|none  Compression of rotated files (default: gzip)
               --help, -h                  Show this help
             
             Example:
@@ -22,48 +22,169 @@ import java.nio.file.Path;
  * @param listenHost               Local bind address for proxy listeners
  * @param listenPort               HTTP proxy listen port
  * @param socksPort                SOCKS5 proxy listen port
+ * @param socksFastOpen            Whether SOCKS success is sent before the upstream CONNECT completes
+ * @param socksFastOpenMaxBufferedBytes Client bytes buffered while a fast-open CONNECT is pending
  * @param requireClientAuth        Whether to require client authentication
  * @param expectedClientAuthHeader Expected Basic auth header for client auth
  * @param upstreamHost             Upstream HTTPS proxy hostname
  * @param upstreamPort             Upstream HTTPS proxy port
+ * @param upstreamServers          Comma-separated upstream proxies (host:port); empty for upstreamHost alone
+ * @param upstreamBalance          Upstream selection strategy: round_robin, least_conn or ewma
+ * @param upstreamBreakerFailureThreshold Connect failures in a row that open an upstream's circuit (0 disables)
+ * @param upstreamBreakerOpenMillis Time an open circuit waits before letting a trial through
+ * @param upstreamHealthIntervalMillis Interval between upstream health probes (0 disables)
+ * @param upstreamHealthTimeoutMillis Time after which a health probe counts as failed
+ * @param upstreamHealthTarget     host:port the health probe CONNECTs to (empty to probe connect and TLS only)
  * @param upstreamTls              Whether to use TLS for upstream connection
  * @param expectedUpstreamAuthHeader Basic auth header for upstream proxy
+ * @param upstreamPoolSize         Idle pre-connected upstream connections per event loop (0 disables)
+ * @param upstreamPoolMaxIdleMillis Maximum idle time of a pooled upstream connection
+ * @param upstreamTlsSessionCacheSize Maximum cached upstream TLS sessions
+ * @param upstreamTlsSessionTimeoutSeconds Lifetime of a cached upstream TLS session
+ * @param upstreamTlsSessionTickets Whether to use TLS session tickets for upstream resumption
+ * @param upstreamTlsProvider      Upstream TLS provider: auto, openssl or jdk
+ * @param upstreamTlsProtocols     Comma-separated upstream TLS protocols (empty for provider default)
+ * @param upstreamTlsCiphers       Comma-separated upstream cipher suites (empty for provider default)
+ * @param upstreamProtocol         Protocol for CONNECT tunnels to upstream: http1 or h2
+ * @param upstreamH2MaxStreams     Maximum concurrent tunnels per upstream HTTP/2 connection
+ * @param upstreamKeepAliveMaxIdle Idle keep-alive connections for plain HTTP kept per event loop and upstream (0 disables)
+ * @param upstreamKeepAliveMaxIdleMillis Maximum idle time of a keep-alive upstream connection
+ * @param upstreamKeepAliveMaxRequests Requests after which a keep-alive upstream connection is closed
+ * @param upstreamConnectPipelined Whether HTTP CONNECT tunnels send client bytes before the upstream's 200
+ * @param upstreamConnectPipelinedMaxBufferedBytes Client bytes buffered while a pipelined CONNECT is pending
+ * @param upstreamConnectAttemptDelayMillis Delay before the next address of an upstream is dialed in parallel (Happy Eyeballs)
+ * @param upstreamDnsServers       DNS servers for upstream hostnames (IP[:port], comma-separated; empty for the system's)
+ * @param upstreamDnsMaxTtlSeconds Maximum time a DNS answer is cached
+ * @param upstreamDnsNegativeTtlSeconds Time a failed DNS lookup is cached
  * @param connectTimeoutMillis     Connection timeout for upstream proxy
  * @param httpMaxInitialBytes      Maximum size for HTTP headers
+ * @param transport                I/O transport: auto, nio, epoll or io_uring
+ * @param relaySplice              Whether to splice plaintext tunnels in the kernel (epoll only)
+ * @param writeBufferLowWaterMark  Outbound bytes below which a paused relay resumes reading
+ * @param writeBufferHighWaterMark Outbound bytes above which a relay pauses reading
+ * @param relayMaxReadsPerFlush    Reads after which a relay flushes before its read batch completes
+ * @param routeEnabled             Whether tunnels are routed DIRECT/UPSTREAM/REJECT by rules
+ * @param routeDirect              Rules for destinations dialed directly
+ * @param routeUpstream            Rules for destinations tunneled through the upstream
+ * @param routeReject              Rules for destinations that are refused
+ * @param routeDefault             Route of destinations no rule matches
  * @param pacEnabled               Whether PAC file serving is enabled
  * @param pacPath                  URL path for PAC file
  * @param pacHost                  Host to use in generated PAC file
  * @param pacFile                  Optional path to custom PAC file
+ * @param statsEnabled             Whether the stats page is served
+ * @param statsPath                URL path for the stats page
+ * @param cacheEnabled             Whether plain HTTP responses are cached
+ * @param cacheMemoryMaxBytes      Memory tier capacity in bytes
+ * @param cacheMemoryMaxObjectBytes Largest body kept in the memory tier
+ * @param cacheDiskDir             Directory of the disk tier (empty disables it)
+ * @param cacheDiskMaxBytes        Disk tier capacity in bytes
+ * @param cacheDiskMaxObjectBytes  Largest body kept in the disk tier
  * @param serverName               Server name for HTTP headers
  * @param logFile                  Optional log file path (deprecated, use accessLogFile)
  * @param accessLogFile            Access log file path (Squid-style format)
  * @param accessLogConsole         Whether to output access log to console
  * @param accessLogEnabled         Whether access logging is enabled
+ * @param accessLogBufferEntries   Entries the access log buffers before dropping new ones
+ * @param accessLogFlushIntervalMillis Longest time a logged entry waits before being written (0: at once)
+ * @param accessLogFsync           Whether every access log write is forced to disk
+ * @param accessLogRotateMaxBytes  Access log size after which it is rotated (0 disables)
+ * @param accessLogRotateIntervalSeconds Interval after which the access log is rotated (0 disables)
+ * @param accessLogRotateKeep      Rotated access log segments kept (0 keeps all)
+ * @param accessLogRotateCompress  Compression of rotated access log segments: gzip or none
+ * @param accessLogFormat          Access log file format: squid (text) or binary
+ * @param accessLogTunnelSampleRate Successful tunnels are logged one in this many (0: none)
+ * @param accessLogTunnelAggregateSeconds Window over which unlogged successful tunnels are summarized (0 disables)
  */
 public record Config(
         String listenHost,
         int listenPort,
         int socksPort,
+        boolean socksFastOpen,
+        int socksFastOpenMaxBufferedBytes,
         boolean requireClientAuth,
         String expectedClientAuthHeader,
         String upstreamHost,
         int upstreamPort,
+        String upstreamServers,
+        String upstreamBalance,
+        int upstreamBreakerFailureThreshold,
+        int upstreamBreakerOpenMillis,
+        int upstreamHealthIntervalMillis,
+        int upstreamHealthTimeoutMillis,
+        String upstreamHealthTarget,
         boolean upstreamTls,
         String expectedUpstreamAuthHeader,
+        int upstreamPoolSize,
+        int upstreamPoolMaxIdleMillis,
+        int upstreamTlsSessionCacheSize,
+        int upstreamTlsSessionTimeoutSeconds,
+        boolean upstreamTlsSessionTickets,
+        String upstreamTlsProvider,
+        String upstreamTlsProtocols,
+        String upstreamTlsCiphers,
+        String upstreamProtocol,
+        int upstreamH2MaxStreams,
+        int upstreamKeepAliveMaxIdle,
+        int upstreamKeepAliveMaxIdleMillis,
+        int upstreamKeepAliveMaxRequests,
+        boolean upstreamConnectPipelined,
+        int upstreamConnectPipelinedMaxBufferedBytes,
+        int upstreamConnectAttemptDelayMillis,
+        String upstreamDnsServers,
+        int upstreamDnsMaxTtlSeconds,
+        int upstreamDnsNegativeTtlSeconds,
         int connectTimeoutMillis,
         int httpMaxInitialBytes,
+        String transport,
+        boolean relaySplice,
+        int writeBufferLowWaterMark,
+        int writeBufferHighWaterMark,
+        int relayMaxReadsPerFlush,
+        boolean routeEnabled,
+        String routeDirect,
+        String routeUpstream,
+        String routeReject,
+        String routeDefault,
         boolean pacEnabled,
         String pacPath,
         String pacHost,
         String pacFile,
+        boolean statsEnabled,
+        String statsPath,
+        boolean cacheEnabled,
+        long cacheMemoryMaxBytes,
+        int cacheMemoryMaxObjectBytes,
+        String cacheDiskDir,
+        long cacheDiskMaxBytes,
+        int cacheDiskMaxObjectBytes,
         String serverName,
         String logFile,
         String accessLogFile,
         boolean accessLogConsole,
-        boolean accessLogEnabled
+        boolean accessLogEnabled,
+        int accessLogBufferEntries,
+        int accessLogFlushIntervalMillis,
+        boolean accessLogFsync,
+        long accessLogRotateMaxBytes,
+        int accessLogRotateIntervalSeconds,
+        int accessLogRotateKeep,
+        String accessLogRotateCompress,
+        String accessLogFormat,
+        int accessLogTunnelSampleRate,
+        int accessLogTunnelAggregateSeconds
 ) {
     private static final Logger log = LoggerFactory.getLogger(Config.class);
 
+    /**
+     * Whether CONNECT tunnels are multiplexed over HTTP/2 upstream connections.
+     *
+     * @return true if {@link #upstreamProtocol} is {@code h2}
+     */
+    public boolean upstreamHttp2() {
+        return "h2".equalsIgnoreCase(upstreamProtocol);
+    }
+
     /**
      * Generates PAC (Proxy Auto-Config) file content.
      * <p>
@@ -65,6 +65,8 @@ public final class ConfigLoader {
         String listenHost = props.getProperty("listen.host", "127.0.0.1");
         int listenPort = parseInt(props, "listen.port", 8383);
         int socksPort = parseInt(props, "listen.socks.port", 1080);
+        boolean socksFastOpen = Boolean.parseBoolean(props.getProperty("listen.socks.fastOpen", "false"));
+        int socksFastOpenMaxBufferedBytes = parseInt(props, "listen.socks.fastOpen.maxBufferedBytes", 65536);
 
         // Client authentication
         String listenUser = props.getProperty("listen.username", "").trim();
@@ -75,21 +77,75 @@ public final class ConfigLoader {
         // Upstream proxy settings
         String upstreamHost = props.getProperty("upstream.host", "").trim();
         int upstreamPort = parseInt(props, "upstream.port", 443);
+        String upstreamServers = props.getProperty("upstream.servers", "").trim();
+        String upstreamBalance = props.getProperty("upstream.balance", "round_robin").trim();
+        int upstreamBreakerFailureThreshold = parseInt(props, "upstream.breaker.failureThreshold", 5);
+        int upstreamBreakerOpenMillis = parseInt(props, "upstream.breaker.openMillis", 10000);
+        int upstreamHealthIntervalMillis = parseInt(props, "upstream.health.intervalMillis", 0);
+        int upstreamHealthTimeoutMillis = parseInt(props, "upstream.health.timeoutMillis", 2000);
+        String upstreamHealthTarget = props.getProperty("upstream.health.target", "").trim();
         boolean upstreamTls = Boolean.parseBoolean(props.getProperty("upstream.tls", "true"));
         String upstreamUser = props.getProperty("upstream.username", "").trim();
         String upstreamPass = props.getProperty("upstream.password", "").trim();
         String upstreamAuthHeader = upstreamUser.isEmpty() ? null : basicHeader(upstreamUser, upstreamPass);
+        int upstreamPoolSize = parseInt(props, "upstream.pool.size", 0);
+        int upstreamPoolMaxIdleMillis = parseInt(props, "upstream.pool.maxIdleMillis", 30000);
+        int upstreamTlsSessionCacheSize = parseInt(props, "upstream.tls.sessionCacheSize", 1024);
+        int upstreamTlsSessionTimeoutSeconds = parseInt(props, "upstream.tls.sessionTimeoutSeconds", 3600);
+        boolean upstreamTlsSessionTickets = Boolean.parseBoolean(
+                props.getProperty("upstream.tls.sessionTickets", "true"));
+        String upstreamTlsProvider = props.getProperty("upstream.tls.provider", "auto").trim();
+        String upstreamTlsProtocols = props.getProperty("upstream.tls.protocols", "").trim();
+        String upstreamTlsCiphers = props.getProperty("upstream.tls.ciphers", "").trim();
+        String upstreamProtocol = props.getProperty("upstream.protocol", "http1").trim();
+        int upstreamH2MaxStreams = parseInt(props, "upstream.h2.maxStreamsPerConnection", 100);
+        int upstreamKeepAliveMaxIdle = parseInt(props, "upstream.keepAlive.maxIdle", 8);
+        int upstreamKeepAliveMaxIdleMillis = parseInt(props, "upstream.keepAlive.maxIdleMillis", 15000);
+        int upstreamKeepAliveMaxRequests = parseInt(props, "upstream.keepAlive.maxRequests", 100);
+        boolean upstreamConnectPipelined = Boolean.parseBoolean(
+                props.getProperty("upstream.connect.pipelined", "false"));
+        int upstreamConnectPipelinedMaxBufferedBytes = parseInt(props, "upstream.connect.pipelined.maxBufferedBytes", 65536);
+        int upstreamConnectAttemptDelayMillis = parseInt(props, "upstream.connect.attemptDelayMillis", 250);
+        String upstreamDnsServers = props.getProperty("upstream.dns.servers", "").trim();
+        int upstreamDnsMaxTtlSeconds = parseInt(props, "upstream.dns.maxTtlSeconds", 300);
+        int upstreamDnsNegativeTtlSeconds = parseInt(props, "upstream.dns.negativeTtlSeconds", 5);
 
         // Connection settings
         int connectTimeoutMillis = parseInt(props, "connect.timeout.millis", 5000);
         int httpMaxInitialBytes = parseInt(props, "http.maxInitialBytes", 1048576);
+        String transport = props.getProperty("transport", "auto").trim();
+        boolean relaySplice = Boolean.parseBoolean(props.getProperty("relay.splice", "false"));
+        int writeBufferHighWaterMark = parseInt(props, "relay.writeBuffer.highWaterMark", 65536);
+        int writeBufferLowWaterMark = Math.min(
+                parseInt(props, "relay.writeBuffer.lowWaterMark", 32768), writeBufferHighWaterMark);
+        int relayMaxReadsPerFlush = parseInt(props, "relay.maxReadsPerFlush", 8);
 
         // PAC settings
+        // Routing settings
+        boolean routeEnabled = Boolean.parseBoolean(props.getProperty("route.enabled", "false"));
+        String routeDirect = props.getProperty("route.direct",
+                "<local>, localhost, 127.0.0.0/8, 10.0.0.0/8, 172.16.0.0/12, 192.168.0.0/16, ::1, fc00::/7, fe80::/10").trim();
+        String routeUpstream = props.getProperty("route.upstream", "").trim();
+        String routeReject = props.getProperty("route.reject", "").trim();
+        String routeDefault = props.getProperty("route.default", "upstream").trim();
+
         boolean pacEnabled = Boolean.parseBoolean(props.getProperty("pac.enabled", "true"));
         String pacPath = props.getProperty("pac.path", "/proxy.pac");
         String pacHost = props.getProperty("pac.host", "127.0.0.1");
         String pacFile = props.getProperty("pac.file");
 
+        // Stats page settings
+        boolean statsEnabled = Boolean.parseBoolean(props.getProperty("stats.enabled", "false"));
+        String statsPath = props.getProperty("stats.path", "/stats");
+
+        // Response cache settings
+        boolean cacheEnabled = Boolean.parseBoolean(props.getProperty("cache.enabled", "false"));
+        long cacheMemoryMaxBytes = parseLong(props, "cache.memory.maxBytes", 67108864L);
+        int cacheMemoryMaxObjectBytes = parseInt(props, "cache.memory.maxObjectBytes", 1048576);
+        String cacheDiskDir = props.getProperty("cache.disk.dir", "").trim();
+        long cacheDiskMaxBytes = parseLong(props, "cache.disk.maxBytes", 1073741824L);
+        int cacheDiskMaxObjectBytes = parseInt(props, "cache.disk.maxObjectBytes", 268435456);
+
         // Misc settings
         String serverName = props.getProperty("server.name", "nio-tunnel");
         String logFile = props.getProperty("log.file");
@@ -98,15 +154,43 @@ public final class ConfigLoader {
         boolean accessLogEnabled = Boolean.parseBoolean(props.getProperty("access.log.enabled", "true"));
         String accessLogFile = props.getProperty("access.log.file");
         boolean accessLogConsole = Boolean.parseBoolean(props.getProperty("access.log.console", "true"));
+        int accessLogBufferEntries = parseInt(props, "access.log.bufferEntries", 8192);
+        int accessLogFlushIntervalMillis = parseInt(props, "access.log.flushIntervalMillis", 1000);
+        boolean accessLogFsync = Boolean.parseBoolean(props.getProperty("access.log.fsync", "false"));
+        long accessLogRotateMaxBytes = parseLong(props, "access.log.rotate.maxBytes", 0L);
+        int accessLogRotateIntervalSeconds = parseInt(props, "access.log.rotate.intervalSeconds", 0);
+        int accessLogRotateKeep = parseInt(props, "access.log.rotate.keep", 7);
+        String accessLogRotateCompress = props.getProperty("access.log.rotate.compress", "gzip");
+        String accessLogFormat = props.getProperty("access.log.format", "squid");
+        int accessLogTunnelSampleRate = parseInt(props, "access.log.tunnel.sampleRate", 1);
+        int accessLogTunnelAggregateSeconds = parseInt(props, "access.log.tunnel.aggregateSeconds", 0);
 
         return new Config(
-                listenHost, listenPort, socksPort,
+                listenHost, listenPort, socksPort, socksFastOpen, socksFastOpenMaxBufferedBytes,
                 requireClientAuth, expectedClientAuthHeader,
-                upstreamHost, upstreamPort, upstreamTls, upstreamAuthHeader,
-                connectTimeoutMillis, httpMaxInitialBytes,
+                upstreamHost, upstreamPort, upstreamServers, upstreamBalance,
+                upstreamBreakerFailureThreshold, upstreamBreakerOpenMillis,
+                upstreamHealthIntervalMillis, upstreamHealthTimeoutMillis, upstreamHealthTarget,
+                upstreamTls, upstreamAuthHeader,
+                upstreamPoolSize, upstreamPoolMaxIdleMillis,
+                upstreamTlsSessionCacheSize, upstreamTlsSessionTimeoutSeconds, upstreamTlsSessionTickets,
+                upstreamTlsProvider, upstreamTlsProtocols, upstreamTlsCiphers,
+                upstreamProtocol, upstreamH2MaxStreams,
+                upstreamKeepAliveMaxIdle, upstreamKeepAliveMaxIdleMillis, upstreamKeepAliveMaxRequests,
+                upstreamConnectPipelined, upstreamConnectPipelinedMaxBufferedBytes, upstreamConnectAttemptDelayMillis,
+                upstreamDnsServers, upstreamDnsMaxTtlSeconds, upstreamDnsNegativeTtlSeconds,
+                connectTimeoutMillis, httpMaxInitialBytes, transport, relaySplice,
+                writeBufferLowWaterMark, writeBufferHighWaterMark, relayMaxReadsPerFlush,
+                routeEnabled, routeDirect, routeUpstream, routeReject, routeDefault,
                 pacEnabled, pacPath, pacHost, pacFile,
+                statsEnabled, statsPath,
+                cacheEnabled, cacheMemoryMaxBytes, cacheMemoryMaxObjectBytes,
+                cacheDiskDir, cacheDiskMaxBytes, cacheDiskMaxObjectBytes,
                 serverName, logFile,
-                accessLogFile, accessLogConsole, accessLogEnabled
+                accessLogFile, accessLogConsole, accessLogEnabled,
+                accessLogBufferEntries, accessLogFlushIntervalMillis, accessLogFsync,
+                accessLogRotateMaxBytes, accessLogRotateIntervalSeconds, accessLogRotateKeep, accessLogRotateCompress,
+                accessLogFormat, accessLogTunnelSampleRate, accessLogTunnelAggregateSeconds
         );
     }
 
@@ -147,6 +231,19 @@ public final class ConfigLoader {
         }
     }
 
+    /**
+     * Parses a long property with a default value.
+     */
+    private static long parseLong(Properties props, String key, long defaultValue) {
+        String raw = props.getProperty(key);
+        if (raw == null) return defaultValue;
+        try {
+            return Long.parseLong(raw.trim());
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Creates a Basic authentication header value.
      *
@@ -0,0 +1,108 @@
+package xzy.fz.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds bytes a client sends after an optimistic success reply, until the upstream tunnel
+ * is ready to take them.
+ * <p>
+ * With {@code listen.socks.fastOpen=true} the SOCKS success reply, and with
+ * {@code upstream.connect.pipelined=true} the 200 to an HTTP CONNECT, goes out before the
+ * upstream CONNECT completes, so the client starts sending (typically a TLS ClientHello)
+ * one upstream round trip earlier. This handler replaces the client's protocol codecs and
+ * queues that data. Once the queue reaches {@code maxBufferedBytes}, reading from the
+ * client pauses. Protocol messages still leaving a removed decoder (such as the empty last
+ * content of the CONNECT request) are dropped.
+ * <p>
+ * The connect handler adds the relay behind this handler and then removes it; on removal
+ * the queued data is passed on to the relay in arrival order and reading resumes.
+ */
+public class EarlyDataHandler extends ChannelInboundHandlerAdapter {
+    private final int maxBufferedBytes;
+
+    /** Data received before the tunnel was ready */
+    private final ArrayDeque<ByteBuf> queued = new ArrayDeque<>();
+
+    /** Bytes held in {@link #queued} */
+    private long bufferedBytes;
+
+    /** Whether this handler paused reading from the client */
+    private boolean paused;
+
+    /**
+     * Creates a handler that buffers up to a limit.
+     *
+     * @param maxBufferedBytes Bytes after which reading from the client pauses
+     */
+    public EarlyDataHandler(int maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Queues client data until the tunnel is ready.
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof ByteBuf buf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        queued.add(buf);
+        bufferedBytes += buf.readableBytes();
+        if (bufferedBytes >= maxBufferedBytes && !paused) {
+            paused = true;
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Holds back read-complete events; the queued data is flushed on removal.
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // Nothing has been passed on yet
+    }
+
+    /**
+     * Releases queued data if the client leaves before the tunnel is ready.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        releaseQueued();
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * Passes the queued data on to the next handler (the relay) and resumes reading.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            // Resume first: the relay may pause again while taking the queued data
+            if (paused) {
+                ctx.channel().config().setAutoRead(true);
+            }
+            if (!queued.isEmpty()) {
+                ByteBuf buf;
+                while ((buf = queued.poll()) != null) {
+                    ctx.fireChannelRead(buf);
+                }
+                ctx.fireChannelReadComplete();
+            }
+        }
+        releaseQueued();
+    }
+
+    private void releaseQueued() {
+        ByteBuf buf;
+        while ((buf = queued.poll()) != null) {
+            buf.release();
+        }
+        bufferedBytes = 0;
+    }
+}
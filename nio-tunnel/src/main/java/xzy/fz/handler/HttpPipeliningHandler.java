@@ -0,0 +1,183 @@
+package xzy.fz.handler;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps client connections of the HTTP listener alive and answers pipelined requests in order.
+ * <p>
+ * Sits between the HTTP codec and {@link HttpProxyHandler}. Only one request is handed on
+ * at a time: requests that arrive while an earlier one is still being answered (pipelining)
+ * are queued together with their body chunks, and reading from the client pauses until the
+ * final response to the earlier request has been written. The next queued request is then
+ * dispatched, so responses always leave in request order.
+ *
+ * <h2>Connection persistence:</h2>
+ * After each final response the connection stays open unless
+ * <ul>
+ *   <li>the request asked to close it ({@code Connection: close}, or HTTP/1.0 without
+ *       {@code keep-alive} in {@code Connection} or {@code Proxy-Connection}),</li>
+ *   <li>the response body is delimited by connection close (no Content-Length, not chunked), or</li>
+ *   <li>the proxy itself answered with {@code Connection: close}</li>
+ * </ul>
+ * The {@code Connection} header of every final response is rewritten to match. Interim 1xx
+ * responses do not end the exchange, and a 2xx answer to CONNECT leaves the connection to
+ * the tunnel (this handler is removed from the pipeline when the relay starts).
+ */
+public class HttpPipeliningHandler extends ChannelDuplexHandler {
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    /** Messages of requests received while an earlier request was still being answered */
+    private final ArrayDeque<HttpObject> queued = new ArrayDeque<>();
+
+    /** Whether a request has been handed on and its final response is not complete yet */
+    private boolean inFlight;
+
+    /** Request currently being answered */
+    private HttpRequest current;
+
+    /** Whether the connection stays open after the current response */
+    private boolean keepAlive;
+
+    /** Whether the response being written is an interim 1xx response */
+    private boolean interim;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof HttpObject httpObject)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (!queued.isEmpty() || (inFlight && msg instanceof HttpRequest)) {
+            // Pipelined request: hold it (and stop reading) until the current one is answered
+            queued.add(httpObject);
+            ctx.channel().config().setAutoRead(false);
+            return;
+        }
+        if (msg instanceof HttpRequest request) {
+            begin(request);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!inFlight) {
+            ctx.write(msg, promise);
+            return;
+        }
+        if (msg instanceof HttpResponse response) {
+            interim = response.status().codeClass() == HttpStatusClass.INFORMATIONAL
+                    && response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+            if (!interim) {
+                if (current.method() == HttpMethod.CONNECT
+                        && response.status().codeClass() == HttpStatusClass.SUCCESS) {
+                    // Tunnel established: the connection now belongs to the relay
+                    inFlight = false;
+                    ctx.write(msg, promise);
+                    return;
+                }
+                // Responses generated by the proxy may ask to close (e.g. after an upstream failure)
+                keepAlive &= isSelfDelimited(response)
+                        && !response.headers().containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE, true);
+                HttpUtil.setKeepAlive(response, keepAlive);
+            }
+        }
+        if (msg instanceof LastHttpContent) {
+            if (interim) {
+                interim = false;
+            } else {
+                finish(ctx);
+                if (!keepAlive) {
+                    promise = promise.unvoid().addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Releases queued requests when the connection closes or the handler is removed.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseQueued();
+    }
+
+    private void begin(HttpRequest request) {
+        inFlight = true;
+        current = request;
+        // HTTP/1.0 proxy clients ask for persistence with Proxy-Connection
+        keepAlive = HttpUtil.isKeepAlive(request)
+                || (request.headers().containsValue(PROXY_CONNECTION, HttpHeaderValues.KEEP_ALIVE, true)
+                && !request.headers().containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE, true));
+    }
+
+    /**
+     * Ends the current exchange and schedules the next queued request.
+     * Dispatch runs as a separate task so that it never re-enters the writer's call stack.
+     */
+    private void finish(ChannelHandlerContext ctx) {
+        inFlight = false;
+        current = null;
+        if (!keepAlive) {
+            releaseQueued();
+        } else if (!queued.isEmpty()) {
+            ctx.executor().execute(() -> dispatchQueued(ctx));
+        }
+    }
+
+    /**
+     * Hands on queued messages up to (not including) the next request that has to wait,
+     * and resumes reading from the client once the queue is empty.
+     */
+    private void dispatchQueued(ChannelHandlerContext ctx) {
+        if (ctx.isRemoved() || !ctx.channel().isActive()) {
+            return;
+        }
+        boolean dispatched = false;
+        HttpObject msg;
+        while ((msg = queued.peek()) != null) {
+            if (msg instanceof HttpRequest request) {
+                if (inFlight) {
+                    break;
+                }
+                begin(request);
+            }
+            queued.poll();
+            ctx.fireChannelRead(msg);
+            dispatched = true;
+        }
+        if (dispatched) {
+            ctx.fireChannelReadComplete();
+        }
+        if (queued.isEmpty()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void releaseQueued() {
+        HttpObject msg;
+        while ((msg = queued.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Whether the client can find the end of the response body without the connection closing.
+     */
+    private boolean isSelfDelimited(HttpResponse response) {
+        return HttpUtil.isContentLengthSet(response)
+                || HttpUtil.isTransferEncodingChunked(response)
+                || current.method() == HttpMethod.HEAD
+                || response.status().code() == HttpResponseStatus.NO_CONTENT.code()
+                || response.status().code() == HttpResponseStatus.NOT_MODIFIED.code();
+    }
+}
@@ -1,22 +1,30 @@
 package xzy.fz.handler;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import xzy.fz.cache.CacheControl;
+import xzy.fz.cache.CacheEntry;
+import xzy.fz.cache.CacheResult;
+import xzy.fz.cache.HttpCache;
 import xzy.fz.config.Config;
 import xzy.fz.handler.upstream.HttpConnectHandler;
 import xzy.fz.handler.upstream.HttpForwardHandler;
 import xzy.fz.log.AccessLog;
+import xzy.fz.pac.PacFile;
+import xzy.fz.route.Route;
+import xzy.fz.route.Router;
+import xzy.fz.stats.Stats;
+import xzy.fz.upstream.UpstreamConnector;
 
 import java.nio.charset.StandardCharsets;
 
@@ -28,9 +36,16 @@ import java.nio.charset.StandardCharsets;
  *   <li><b>CONNECT method</b> - For HTTPS tunneling (e.g., CONNECT example.com:443)</li>
  *   <li><b>Regular HTTP methods</b> - GET, POST, etc. for HTTP proxying</li>
  *   <li><b>PAC file serving</b> - Serves proxy auto-config file at configured path</li>
+ *   <li><b>Stats page</b> - Serves internal counters at configured path</li>
  * </ul>
  * <p>
- * All requests are forwarded to the upstream HTTPS proxy configured in {@link Config}.
+ * All requests are forwarded to the upstream HTTPS proxy configured in {@link Config}. With a
+ * {@link Router}, CONNECT tunnels may instead be dialed directly or refused with 403.
+ * <p>
+ * Client connections are persistent; {@link HttpPipeliningHandler} in front of this handler
+ * passes requests on one at a time. Plain HTTP requests run over keep-alive upstream
+ * connections ({@link UpstreamConnector#connectHttp}). With a {@link HttpCache}, fresh
+ * stored responses are served without contacting upstream.
  *
  * <h2>HTTP Proxy Flow (CONNECT):</h2>
  * <pre>
@@ -48,21 +63,46 @@ import java.nio.charset.StandardCharsets;
 public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
     private static final Logger log = LoggerFactory.getLogger(HttpProxyHandler.class);
 
+    /** Forward handler receiving the body of the request currently being read */
+    private static final AttributeKey<HttpForwardHandler> REQUEST_BODY_SINK =
+            AttributeKey.valueOf(HttpProxyHandler.class, "requestBodySink");
+
+    /** Forward handler relaying the response to the current request */
+    private static final AttributeKey<HttpForwardHandler> RESPONSE_SOURCE =
+            AttributeKey.valueOf(HttpProxyHandler.class, "responseSource");
+
     private final Config config;
-    private final SslContext sslContext;
+    private final UpstreamConnector upstreamConnector;
+    private final Router router;
+    private final PacFile pacFile;
+    private final HttpCache cache;
+    private final Stats stats;
     private final AccessLog accessLog;
+    private final RelayStats relayStats;
 
     /**
      * Creates a new HTTP proxy handler.
      *
-     * @param config     Proxy configuration
-     * @param sslContext SSL context for upstream TLS connections (may be null if TLS disabled)
-     * @param accessLog  Access log for Squid-style logging (may be null if disabled)
+     * @param config            Proxy configuration
+     * @param upstreamConnector Connector for upstream proxy connections
+     * @param router            Tunnel routing rules (may be null if disabled)
+     * @param pacFile           PAC response (may be null if disabled)
+     * @param cache             Response cache for plain HTTP (may be null if disabled)
+     * @param stats             Counters for the stats page
+     * @param accessLog         Access log for Squid-style logging (may be null if disabled)
+     * @param relayStats        Shared relay counters for the stats page
      */
-    public HttpProxyHandler(Config config, SslContext sslContext, AccessLog accessLog) {
+    public HttpProxyHandler(Config config, UpstreamConnector upstreamConnector, Router router,
+                            PacFile pacFile, HttpCache cache, Stats stats, AccessLog accessLog,
+                            RelayStats relayStats) {
         this.config = config;
-        this.sslContext = sslContext;
+        this.upstreamConnector = upstreamConnector;
+        this.router = router;
+        this.pacFile = pacFile;
+        this.cache = cache;
+        this.stats = stats;
         this.accessLog = accessLog;
+        this.relayStats = relayStats;
     }
 
     /**
@@ -73,19 +113,51 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         if (msg instanceof HttpRequest request) {
             handleHttpRequest(ctx, request);
-        } else if (msg instanceof HttpContent) {
-            // For non-CONNECT requests, content chunks are handled by the relay
-            // after connection is established. Release here to prevent memory leaks.
-            ReferenceCountUtil.release(msg);
+        } else if (msg instanceof HttpContent content) {
+            // Stream request body chunks to the forward handler of the current request
+            HttpForwardHandler forward = ctx.channel().attr(REQUEST_BODY_SINK).get();
+            if (forward != null) {
+                if (content instanceof LastHttpContent) {
+                    ctx.channel().attr(REQUEST_BODY_SINK).set(null);
+                }
+                forward.offerRequestContent(content);
+            } else {
+                // No body expected (e.g. PAC request, rejected request): release to prevent leaks
+                ReferenceCountUtil.release(msg);
+            }
         } else {
             // Pass unknown messages to next handler
             ctx.fireChannelRead(msg);
         }
     }
 
+    /**
+     * Flushes request body chunks relayed upstream during this read batch.
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        HttpForwardHandler forward = ctx.channel().attr(REQUEST_BODY_SINK).get();
+        if (forward != null) {
+            forward.flushRequestContent();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Lets the forward handler resume reading the response once the client has drained.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        HttpForwardHandler forward = ctx.channel().attr(RESPONSE_SOURCE).get();
+        if (forward != null) {
+            forward.clientWritabilityChanged();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     /**
      * Main request routing logic.
-     * Routes requests to PAC handler, CONNECT handler, or HTTP forward handler.
+     * Routes requests to PAC handler, stats page, CONNECT handler, or HTTP forward handler.
      */
     private void handleHttpRequest(ChannelHandlerContext ctx, HttpRequest request) {
         String uri = request.uri();
@@ -94,8 +166,8 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
         log.debug("Received {} {} from {}", method, uri, ctx.channel().remoteAddress());
 
         // Check for PAC file request first
-        if (config.pacEnabled() && uri.equals(config.pacPath()) && method == HttpMethod.GET) {
-            servePacFile(ctx);
+        if (pacFile != null && uri.equals(config.pacPath()) && method == HttpMethod.GET) {
+            servePacFile(ctx, request);
             return;
         }
 
@@ -108,6 +180,12 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
             }
         }
 
+        // Metrics are only for authenticated clients
+        if (config.statsEnabled() && uri.equals(config.statsPath()) && method == HttpMethod.GET) {
+            serveStats(ctx);
+            return;
+        }
+
         // Route to appropriate handler based on HTTP method
         if (method == HttpMethod.CONNECT) {
             // CONNECT method: establish tunnel to upstream proxy
@@ -124,7 +202,7 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
      * Flow:
      * <ol>
      *   <li>Parse target host:port from request URI</li>
-     *   <li>Connect to upstream HTTPS proxy</li>
+     *   <li>Route it: refuse, dial directly, or connect to upstream HTTPS proxy</li>
      *   <li>Send CONNECT request to upstream</li>
      *   <li>On success, respond 200 to client and start raw byte relay</li>
      * </ol>
@@ -132,116 +210,197 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
     private void handleConnect(ChannelHandlerContext ctx, HttpRequest request) {
         // Parse target from CONNECT request (e.g., "example.com:443")
         String target = request.uri();
-        String[] parts = target.split(":");
-        String targetHost = parts[0];
-        int targetPort = parts.length > 1 ? Integer.parseInt(parts[1]) : 443;
+        int colon = target.lastIndexOf(':');
+        boolean hasPort = colon > target.lastIndexOf(']');  // IPv6 literals are bracketed
+        String targetHost = hasPort ? target.substring(0, colon) : target;
+        int targetPort;
+        try {
+            targetPort = hasPort ? Integer.parseInt(target.substring(colon + 1)) : 443;
+        } catch (NumberFormatException e) {
+            targetPort = -1;
+        }
+        if (targetPort < 1 || targetPort > 65535) {
+            log.debug("CONNECT {} has an invalid port", target);
+            sendError(ctx, HttpResponseStatus.BAD_REQUEST, "Invalid CONNECT port");
+            return;
+        }
 
         // Capture start time for access log
         long startTime = System.currentTimeMillis();
         String clientAddress = extractClientAddress(ctx);
 
-        log.info("CONNECT {} via upstream {}:{}", target, config.upstreamHost(), config.upstreamPort());
-
-        // Create bootstrap for upstream connection
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(ctx.channel().eventLoop())  // Use same event loop as client
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.connectTimeoutMillis())
-                .option(ChannelOption.TCP_NODELAY, true)  // Disable Nagle for lower latency
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) {
-                        ChannelPipeline p = ch.pipeline();
-                        // Add SSL handler if upstream requires TLS
-                        if (sslContext != null) {
-                            p.addLast(sslContext.newHandler(ch.alloc(),
-                                    config.upstreamHost(), config.upstreamPort()));
+        Route route = router != null ? router.route(targetHost, targetPort) : Route.UPSTREAM;
+        if (route == Route.REJECT) {
+            log.info("CONNECT {} rejected by routing rules", target);
+            if (accessLog != null) {
+                accessLog.logConnect(clientAddress, targetHost, targetPort, 403,
+                        System.currentTimeMillis() - startTime, 0);
+            }
+            sendError(ctx, HttpResponseStatus.FORBIDDEN, "Destination not allowed");
+            return;
+        }
+
+        if (config.upstreamConnectPipelined()) {
+            // Answer now; the client's first bytes follow the upstream CONNECT without waiting
+            ctx.writeAndFlush(HttpConnectHandler.connectionEstablished());
+            beginEarlyData(ctx);
+        }
+
+        // Open a tunnel on the client's event loop (HTTP/2 stream or pooled connection if
+        // available), or directly to the target
+        HttpConnectHandler connectHandler = new HttpConnectHandler(ctx, targetHost, targetPort, config,
+                accessLog, relayStats, startTime, clientAddress);
+        Future<Channel> tunnel = route == Route.DIRECT
+                ? upstreamConnector.openDirect(ctx.channel().eventLoop(),
+                        targetHost.startsWith("[") ? targetHost.substring(1, targetHost.length() - 1) : targetHost,
+                        targetPort, connectHandler)
+                : upstreamConnector.openTunnel(ctx.channel().eventLoop(), connectHandler);
+        tunnel.addListener((FutureListener<Channel>) future -> {
+                    if (future.isSuccess()) {
+                        log.info("CONNECT {} {}", target, route == Route.DIRECT
+                                ? "direct" : "via upstream " + UpstreamConnector.endpoint(future.getNow()));
+                    } else {
+                        log.error("Failed to connect {}: {}", route == Route.DIRECT ? "directly to " + target
+                                : "to upstream proxy", future.cause().getMessage());
+                        if (config.upstreamConnectPipelined()) {
+                            // 200 was already sent
+                            ctx.channel().close();
+                            return;
                         }
-                        // HTTP codec for initial CONNECT handshake with upstream
-                        p.addLast(new HttpClientCodec());
-                        // Aggregate full HTTP response for CONNECT result
-                        p.addLast(new HttpObjectAggregator(65536));
-                        // Handler for upstream CONNECT response
-                        p.addLast(new HttpConnectHandler(ctx, targetHost, targetPort, config,
-                                accessLog, startTime, clientAddress));
+                        sendError(ctx, HttpResponseStatus.BAD_GATEWAY, route == Route.DIRECT
+                                ? "Failed to connect to destination" : "Failed to connect to upstream proxy");
                     }
                 });
+    }
 
-        // Connect to upstream proxy
-        ChannelFuture connectFuture = bootstrap.connect(config.upstreamHost(), config.upstreamPort());
-        connectFuture.addListener((ChannelFutureListener) future -> {
-            if (!future.isSuccess()) {
-                log.error("Failed to connect to upstream proxy: {}", future.cause().getMessage());
-                sendError(ctx, HttpResponseStatus.BAD_GATEWAY, "Failed to connect to upstream proxy");
-            }
-        });
+    /**
+     * Replaces the HTTP handlers with an {@link EarlyDataHandler} after an optimistic 200 to
+     * CONNECT. Bytes the request decoder already holds are passed on to it.
+     */
+    private void beginEarlyData(ChannelHandlerContext ctx) {
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), "early-data", new EarlyDataHandler(config.upstreamConnectPipelinedMaxBufferedBytes()));
+        pipeline.remove(HttpPipeliningHandler.class);
+        pipeline.remove(HttpResponseEncoder.class);
+        pipeline.remove(HttpRequestDecoder.class);
+        pipeline.remove(this);
     }
 
     /**
      * Handles regular HTTP requests (GET, POST, etc.).
-     * Forwards the request to upstream proxy and relays the response back.
+     * Answers from the cache if a fresh response is stored, otherwise forwards the request
+     * to upstream proxy and streams the response back.
      */
     private void handleHttpForward(ChannelHandlerContext ctx, HttpRequest request) {
-        log.info("{} {} via upstream {}:{}",
-                request.method(), request.uri(), config.upstreamHost(), config.upstreamPort());
-
         // Capture start time for access log
         long startTime = System.currentTimeMillis();
         String clientAddress = extractClientAddress(ctx);
 
-        // Create bootstrap for upstream connection
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(ctx.channel().eventLoop())
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.connectTimeoutMillis())
-                .option(ChannelOption.TCP_NODELAY, true)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) {
-                        ChannelPipeline p = ch.pipeline();
-                        if (sslContext != null) {
-                            p.addLast(sslContext.newHandler(ch.alloc(),
-                                    config.upstreamHost(), config.upstreamPort()));
-                        }
-                        // HTTP codec for upstream communication
-                        p.addLast(new HttpClientCodec());
-                        // Aggregator for response handling
-                        p.addLast(new HttpObjectAggregator(config.httpMaxInitialBytes()));
-                        // Handler to forward request and relay response
-                        p.addLast(new HttpForwardHandler(ctx, request, config,
-                                accessLog, startTime, clientAddress));
-                    }
-                });
+        // Stale entry with validators to revalidate upstream
+        CacheEntry revalidating = null;
+        if (cache != null) {
+            CacheControl cacheControl = CacheControl.parse(request.headers());
+            CacheEntry entry = cache.lookup(request);
+            if (entry != null && entry.isFresh(startTime, cacheControl)) {
+                serveFromCache(ctx, request, entry, startTime, clientAddress);
+                return;
+            }
+            if (entry != null && !entry.hasValidators()) {
+                entry.release();
+                entry = null;
+            }
+            if (cacheControl.onlyIfCached()) {
+                // RFC 9111 section 5.2.1.7: no fresh stored response
+                if (entry != null) {
+                    entry.release();
+                }
+                sendError(ctx, HttpResponseStatus.GATEWAY_TIMEOUT, "Not in cache");
+                return;
+            }
+            revalidating = entry;
+        }
+        forward(ctx, request, startTime, clientAddress, revalidating, true);
+    }
+
+    /**
+     * Forwards a request upstream and streams the response back.
+     *
+     * @param revalidating Stale entry to revalidate, whose reference passes on (may be null)
+     * @param retryable    Whether this is the first attempt: it may use a keep-alive
+     *                     connection and is sent once more, on a fresh one, if that
+     *                     connection turns out to be closed
+     */
+    private void forward(ChannelHandlerContext ctx, HttpRequest request, long startTime, String clientAddress,
+                         CacheEntry revalidating, boolean retryable) {
+        // Handler to forward request and stream the response back; receives the request body
+        HttpForwardHandler forwardHandler = new HttpForwardHandler(ctx, request, config,
+                accessLog, startTime, clientAddress, upstreamConnector::releaseHttp, cache, revalidating,
+                retryable ? entry -> forward(ctx, request, startTime, clientAddress, entry, false) : null);
+        ctx.channel().attr(REQUEST_BODY_SINK).set(forwardHandler);
+        ctx.channel().attr(RESPONSE_SOURCE).set(forwardHandler);
 
-        bootstrap.connect(config.upstreamHost(), config.upstreamPort())
-                .addListener((ChannelFutureListener) future -> {
-                    if (!future.isSuccess()) {
+        // Keep-alive HTTP/1.1 connection (no aggregator: both bodies are streamed)
+        upstreamConnector.connectHttp(ctx.channel().eventLoop(), forwardHandler, retryable)
+                .addListener((FutureListener<Channel>) future -> {
+                    if (future.isSuccess()) {
+                        log.info("{} {} via upstream {}", request.method(), request.uri(),
+                                UpstreamConnector.endpoint(future.getNow()));
+                    } else {
                         log.error("Failed to connect to upstream: {}", future.cause().getMessage());
+                        forwardHandler.discard();
                         sendError(ctx, HttpResponseStatus.BAD_GATEWAY, "Failed to connect to upstream proxy");
                     }
                 });
     }
 
+    /**
+     * Answers a request from a fresh cache entry, with a 304 if the client's own
+     * conditional matches.
+     */
+    private void serveFromCache(ChannelHandlerContext ctx, HttpRequest request, CacheEntry entry,
+                                long startTime, String clientAddress) {
+        FullHttpResponse response = entry.newResponse(request, startTime);
+        entry.release();
+        CacheResult result = response.status().code() == HttpResponseStatus.NOT_MODIFIED.code()
+                ? CacheResult.TCP_IMS_HIT : CacheResult.TCP_HIT;
+        cache.record(result);
+        if (accessLog != null) {
+            accessLog.logCacheHit(clientAddress, result.name(), request.method().name(), request.uri(),
+                    response.status().code(), System.currentTimeMillis() - startTime,
+                    response.content().readableBytes(), response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+        }
+
+        ctx.writeAndFlush(response);
+        log.debug("Served {} {} from cache ({})", request.method(), request.uri(), result);
+    }
+
     /**
      * Serves the PAC (Proxy Auto-Config) file.
      * <p>
      * PAC files allow browsers and applications to automatically configure
-     * proxy settings. The file is generated dynamically based on configuration
-     * or loaded from a custom file if specified.
+     * proxy settings. The response shares the pre-encoded body held by {@link PacFile},
+     * or is a 304 if the client already has the current version.
      */
-    private void servePacFile(ChannelHandlerContext ctx) {
-        String pacContent = config.pacContent();
-        ByteBuf content = Unpooled.copiedBuffer(pacContent, StandardCharsets.UTF_8);
+    private void servePacFile(ChannelHandlerContext ctx, HttpRequest request) {
+        ctx.writeAndFlush(pacFile.newResponse(request));
+        log.debug("Served PAC file to {}", ctx.channel().remoteAddress());
+    }
+
+    /**
+     * Serves the stats page (Prometheus text exposition format).
+     */
+    private void serveStats(ChannelHandlerContext ctx) {
+        ByteBuf content = Unpooled.copiedBuffer(stats.render(), StandardCharsets.UTF_8);
 
         FullHttpResponse response = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
         response.headers()
-                .set(HttpHeaderNames.CONTENT_TYPE, "application/x-ns-proxy-autoconfig")
+                .set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
                 .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
-                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                .set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
 
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-        log.debug("Served PAC file to {}", ctx.channel().remoteAddress());
+        ctx.writeAndFlush(response);
+        log.debug("Served stats to {}", ctx.channel().remoteAddress());
     }
 
     /**
@@ -252,15 +411,15 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
                 HttpVersion.HTTP_1_1, HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED);
         response.headers()
                 .set(HttpHeaderNames.PROXY_AUTHENTICATE, "Basic realm=\"" + config.serverName() + "\"")
-                .set(HttpHeaderNames.CONTENT_LENGTH, 0)
-                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                .set(HttpHeaderNames.CONTENT_LENGTH, 0);
 
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        ctx.writeAndFlush(response);
         log.debug("Sent 407 Proxy Auth Required to {}", ctx.channel().remoteAddress());
     }
 
     /**
      * Sends an HTTP error response to the client.
+     * The connection stays open if the client asked for keep-alive.
      *
      * @param ctx     Channel context
      * @param status  HTTP status code
@@ -273,10 +432,9 @@ public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
                 HttpVersion.HTTP_1_1, status, content);
         response.headers()
                 .set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8")
-                .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
-                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
 
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        ctx.writeAndFlush(response);
     }
 
     /**
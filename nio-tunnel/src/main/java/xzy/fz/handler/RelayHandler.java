@@ -31,23 +31,47 @@ import java.util.concurrent.atomic.AtomicLong;
  * <h2>Features:</h2>
  * <ul>
  *   <li>Zero-copy forwarding of ByteBuf data</li>
+ *   <li>Flush consolidation: writes are queued per read and flushed once per read batch
+ *       ({@code channelReadComplete}), or after {@code relay.maxReadsPerFlush} reads</li>
  *   <li>Automatic cleanup when either channel closes</li>
- *   <li>Backpressure handling via Netty's write futures</li>
+ *   <li>Backpressure: reading pauses while the paired channel is above its write-buffer
+ *       high water mark and resumes once it drains below the low water mark</li>
  *   <li>Bytes transferred tracking for access logging</li>
  * </ul>
  */
 public class RelayHandler extends ChannelInboundHandlerAdapter {
     private static final Logger log = LoggerFactory.getLogger(RelayHandler.class);
 
+    /**
+     * Default reads after which pending writes are flushed even if the read batch has not completed.
+     * Kept below Netty's default read-loop limit (16 messages) so the early flush can fire.
+     */
+    static final int DEFAULT_MAX_READS_PER_FLUSH = 8;
+
     /** The channel to relay bytes to */
     private final Channel relayChannel;
 
     /** Callback to execute when relay completes (connection closed) */
     private final Runnable onCompleteCallback;
 
+    /** Reads after which pending writes are flushed even if the read batch has not completed */
+    private final int maxReadsPerFlush;
+
+    /** Shared relay counters for the stats page (may be null) */
+    private final RelayStats stats;
+
     /** Total bytes transferred through this relay */
     private final AtomicLong bytesTransferred = new AtomicLong(0);
 
+    /** Reads relayed since the last flush */
+    private int readsSinceFlush;
+
+    /** Total reads relayed in this direction */
+    private long readCount;
+
+    /** Total flushes issued in this direction */
+    private long flushCount;
+
     /** Whether the completion callback has been executed */
     private volatile boolean callbackExecuted = false;
 
@@ -67,8 +91,23 @@ public class RelayHandler extends ChannelInboundHandlerAdapter {
      * @param onCompleteCallback Callback to execute when relay completes
      */
     public RelayHandler(Channel relayChannel, Runnable onCompleteCallback) {
+        this(relayChannel, onCompleteCallback, DEFAULT_MAX_READS_PER_FLUSH, null);
+    }
+
+    /**
+     * Creates a relay handler with a completion callback, flush threshold and shared counters.
+     *
+     * @param relayChannel       Target channel to forward bytes to
+     * @param onCompleteCallback Callback to execute when relay completes
+     * @param maxReadsPerFlush   Reads after which pending writes are flushed early
+     * @param stats              Shared relay counters (may be null)
+     */
+    public RelayHandler(Channel relayChannel, Runnable onCompleteCallback, int maxReadsPerFlush,
+                        RelayStats stats) {
         this.relayChannel = relayChannel;
         this.onCompleteCallback = onCompleteCallback;
+        this.maxReadsPerFlush = maxReadsPerFlush;
+        this.stats = stats;
     }
 
     /**
@@ -80,10 +119,41 @@ public class RelayHandler extends ChannelInboundHandlerAdapter {
         return bytesTransferred.get();
     }
 
+    /**
+     * Gets the number of reads relayed in this direction.
+     *
+     * @return Total reads
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Gets the number of flushes issued to the paired channel.
+     *
+     * @return Total flushes
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Gets the average number of reads coalesced into one flush.
+     *
+     * @return Reads per flush (0 if nothing was flushed)
+     */
+    public double getReadsPerFlush() {
+        return flushCount == 0 ? 0 : (double) readCount / flushCount;
+    }
+
     /**
      * Forwards received bytes to the paired channel.
      * <p>
-     * If the relay channel is active, writes and flushes the message.
+     * If the relay channel is active, writes the message without flushing; the flush happens
+     * once per read batch in {@link #channelReadComplete}, or early after
+     * {@code maxReadsPerFlush} reads. If the write leaves the relay channel unwritable,
+     * auto-read is disabled on this channel and pending writes are flushed; reading resumes
+     * when the paired handler sees the relay channel drain (see {@link #channelWritabilityChanged}).
      * If the relay channel is closed, releases the message buffer and closes this channel.
      */
     @Override
@@ -94,15 +164,30 @@ public class RelayHandler extends ChannelInboundHandlerAdapter {
                 bytesTransferred.addAndGet(buf.readableBytes());
             }
 
-            // Forward bytes to paired channel
-            // Note: writeAndFlush transfers ownership of the ByteBuf to the channel
-            relayChannel.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
+            // Forward bytes to paired channel (flushed in channelReadComplete)
+            // Note: write transfers ownership of the ByteBuf to the channel
+            readCount++;
+            readsSinceFlush++;
+            if (stats != null) {
+                stats.recordRead();
+            }
+            relayChannel.write(msg).addListener((ChannelFutureListener) future -> {
                 if (!future.isSuccess()) {
                     // Write failed, close the connection
                     log.debug("Relay write failed, closing connection");
                     future.channel().close();
                 }
             });
+
+            // Stop reading while the paired channel's outbound buffer is above the high water mark.
+            // Pause before flushing: a flush that drains synchronously fires the writability
+            // change (and thus the resume) immediately.
+            if (!relayChannel.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+                flushRelay(true);
+            } else if (readsSinceFlush >= maxReadsPerFlush) {
+                flushRelay(true);
+            }
         } else {
             // Paired channel is closed, release buffer to prevent memory leak
             ReferenceCountUtil.release(msg);
@@ -110,6 +195,45 @@ public class RelayHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Flushes everything written during the current read batch with a single flush.
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        flushRelay(false);
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Flushes pending writes to the paired channel, if any.
+     *
+     * @param early Whether the flush happens before the read batch has completed
+     */
+    private void flushRelay(boolean early) {
+        if (readsSinceFlush > 0) {
+            readsSinceFlush = 0;
+            flushCount++;
+            if (stats != null) {
+                stats.recordFlush(early);
+            }
+            relayChannel.flush();
+        }
+    }
+
+    /**
+     * Resumes reading on the paired channel once this channel's outbound buffer has drained.
+     * <p>
+     * This channel is the write target of the paired handler, so its writability decides
+     * whether the paired channel may keep reading.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && relayChannel.isActive()) {
+            relayChannel.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     /**
      * Called when this channel becomes inactive (closed).
      * Closes the paired channel to complete the tunnel teardown.
@@ -119,6 +243,12 @@ public class RelayHandler extends ChannelInboundHandlerAdapter {
         // Execute callback when relay completes
         executeCallback();
 
+        if (log.isDebugEnabled()) {
+            log.debug("Relay from {} closed: {} reads, {} flushes ({} reads/flush)",
+                    ctx.channel().remoteAddress(), readCount, flushCount,
+                    String.format("%.1f", getReadsPerFlush()));
+        }
+
         if (relayChannel.isActive()) {
             log.debug("Channel inactive, closing paired channel");
             relayChannel.close();
@@ -0,0 +1,57 @@
+package xzy.fz.handler;
+
+import xzy.fz.stats.StatsSource;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts relay reads and the flushes they were coalesced into, across all tunnels.
+ * <p>
+ * A flush normally happens once per read batch; an early flush means a batch reached
+ * {@code relay.maxReadsPerFlush} reads, or the paired channel stopped being writable,
+ * before the batch completed.
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * relay_reads_total            Reads relayed to the paired channel
+ * relay_flushes_total          Flushes issued to the paired channel
+ * relay_early_flushes_total    Flushes issued before the read batch completed
+ * relay_reads_per_flush        reads / flushes
+ * </pre>
+ */
+public final class RelayStats implements StatsSource {
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder earlyFlushes = new LongAdder();
+
+    void recordRead() {
+        reads.increment();
+    }
+
+    void recordFlush(boolean early) {
+        flushes.increment();
+        if (early) {
+            earlyFlushes.increment();
+        }
+    }
+
+    /**
+     * Gets the average number of reads coalesced into one flush.
+     *
+     * @return Reads per flush (0 if nothing was flushed)
+     */
+    public double getReadsPerFlush() {
+        long flushCount = flushes.sum();
+        return flushCount == 0 ? 0 : (double) reads.sum() / flushCount;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("relay_reads_total ").append(reads.sum()).append('\n')
+                .append("relay_flushes_total ").append(flushes.sum()).append('\n')
+                .append("relay_early_flushes_total ").append(earlyFlushes.sum()).append('\n')
+                .append("relay_reads_per_flush ")
+                .append(String.format(Locale.ROOT, "%.2f", getReadsPerFlush())).append('\n');
+    }
+}
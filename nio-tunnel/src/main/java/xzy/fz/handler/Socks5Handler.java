@@ -1,15 +1,11 @@
 package xzy.fz.handler;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.socksx.SocksPortUnificationServerHandler;
 import io.netty.handler.codec.socksx.v4.*;
 import io.netty.handler.codec.socksx.v5.*;
-import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xzy.fz.config.Config;
@@ -17,9 +13,15 @@ import xzy.fz.config.ConfigLoader;
 import xzy.fz.handler.upstream.Socks4ConnectHandler;
 import xzy.fz.handler.upstream.Socks5ConnectHandler;
 import xzy.fz.log.AccessLog;
+import xzy.fz.route.Route;
+import xzy.fz.route.Router;
+import xzy.fz.upstream.UpstreamConnector;
 
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.List;
 
 /**
  * Netty handler for SOCKS4 and SOCKS5 proxy protocols.
@@ -55,6 +57,18 @@ import java.util.Base64;
  *   <tr><td>UDP</td><td>No</td><td>Yes</td></tr>
  * </table>
  *
+ * <h2>Fast open:</h2>
+ * With {@code listen.socks.fastOpen=true} the success reply is sent as soon as the CONNECT
+ * command arrives, carrying this listener's address as the bound address. The SOCKS codecs
+ * are replaced by an {@link EarlyDataHandler} that holds the client's first bytes until the
+ * upstream tunnel is ready. If the upstream CONNECT fails, the client connection is closed,
+ * since a failure reply can no longer be sent.
+ *
+ * <h2>Routing:</h2>
+ * With a {@link Router}, each CONNECT is dialed directly, tunneled through the upstream or
+ * refused ({@code FORBIDDEN} for SOCKS5, {@code REJECTED_OR_FAILED} for SOCKS4) before any
+ * reply is sent.
+ *
  * <h2>Supported Commands:</h2>
  * <ul>
  *   <li><b>CONNECT</b> - TCP connection to target (supported)</li>
@@ -66,20 +80,27 @@ public class Socks5Handler extends ChannelInboundHandlerAdapter {
     private static final Logger log = LoggerFactory.getLogger(Socks5Handler.class);
 
     private final Config config;
-    private final SslContext sslContext;
+    private final UpstreamConnector upstreamConnector;
+    private final Router router;
     private final AccessLog accessLog;
+    private final RelayStats relayStats;
 
     /**
      * Creates a new SOCKS5 handler.
      *
-     * @param config     Proxy configuration
-     * @param sslContext SSL context for upstream TLS connections
-     * @param accessLog  Access log instance (may be null)
+     * @param config            Proxy configuration
+     * @param upstreamConnector Connector for upstream proxy connections
+     * @param router            Tunnel routing rules (may be null if disabled)
+     * @param accessLog         Access log instance (may be null)
+     * @param relayStats        Shared relay counters for the stats page
      */
-    public Socks5Handler(Config config, SslContext sslContext, AccessLog accessLog) {
+    public Socks5Handler(Config config, UpstreamConnector upstreamConnector, Router router,
+                         AccessLog accessLog, RelayStats relayStats) {
         this.config = config;
-        this.sslContext = sslContext;
+        this.upstreamConnector = upstreamConnector;
+        this.router = router;
         this.accessLog = accessLog;
+        this.relayStats = relayStats;
     }
 
     /**
@@ -128,38 +149,41 @@ public class Socks5Handler extends ChannelInboundHandlerAdapter {
         long startTime = System.currentTimeMillis();
         String clientAddress = extractClientAddress(ctx);
 
-        log.info("SOCKS4 CONNECT {}:{} via upstream {}:{} (userid: {})",
-                targetHost, targetPort, config.upstreamHost(), config.upstreamPort(), request.userId());
+        Route route = router != null ? router.route(targetHost, targetPort) : Route.UPSTREAM;
+        if (route == Route.REJECT) {
+            log.info("SOCKS4 CONNECT {}:{} rejected by routing rules", targetHost, targetPort);
+            if (accessLog != null) {
+                accessLog.logSocks4Connect(clientAddress, targetHost, targetPort, false,
+                        System.currentTimeMillis() - startTime, 0);
+            }
+            ctx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.REJECTED_OR_FAILED))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
 
-        // Connect to upstream proxy via HTTP CONNECT
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(ctx.channel().eventLoop())
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.connectTimeoutMillis())
-                .option(ChannelOption.TCP_NODELAY, true)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) {
-                        ChannelPipeline p = ch.pipeline();
-                        // Add SSL handler if upstream requires TLS
-                        if (sslContext != null) {
-                            p.addLast(sslContext.newHandler(ch.alloc(),
-                                    config.upstreamHost(), config.upstreamPort()));
-                        }
-                        // HTTP codec for CONNECT handshake with upstream
-                        p.addLast(new HttpClientCodec());
-                        p.addLast(new HttpObjectAggregator(65536));
-                        // Handler for upstream CONNECT response (SOCKS4 version)
-                        p.addLast(new Socks4ConnectHandler(ctx, targetHost, targetPort, config,
-                                accessLog, startTime, clientAddress));
-                    }
-                });
+        if (config.socksFastOpen()) {
+            ctx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.SUCCESS));
+            beginEarlyData(ctx);
+        }
 
-        bootstrap.connect(config.upstreamHost(), config.upstreamPort())
-                .addListener((ChannelFutureListener) future -> {
-                    if (!future.isSuccess()) {
-                        log.error("Failed to connect to upstream for SOCKS4: {}",
-                                future.cause().getMessage());
+        // Open a tunnel via HTTP CONNECT (HTTP/2 stream or pooled connection if available),
+        // or directly to the target
+        openTunnel(ctx, route, targetHost, targetPort,
+                        // Handler for upstream CONNECT response (SOCKS4 version)
+                        new Socks4ConnectHandler(ctx, targetHost, targetPort, config,
+                                accessLog, relayStats, startTime, clientAddress))
+                .addListener((FutureListener<Channel>) future -> {
+                    if (future.isSuccess()) {
+                        log.info("SOCKS4 CONNECT {}:{} {} (userid: {})", targetHost, targetPort,
+                                via(route, future.getNow()), request.userId());
+                    } else {
+                        log.error("Failed to connect {} for SOCKS4: {}",
+                                route == Route.DIRECT ? "directly" : "to upstream", future.cause().getMessage());
+                        if (config.socksFastOpen()) {
+                            // Success was already sent
+                            ctx.channel().close();
+                            return;
+                        }
                         ctx.writeAndFlush(new DefaultSocks4CommandResponse(
                                         Socks4CommandStatus.REJECTED_OR_FAILED))
                                 .addListener(ChannelFutureListener.CLOSE);
@@ -245,38 +269,47 @@ public class Socks5Handler extends ChannelInboundHandlerAdapter {
         long startTime = System.currentTimeMillis();
         String clientAddress = extractClientAddress(ctx);
 
-        log.info("SOCKS5 CONNECT {}:{} via upstream {}:{}",
-                targetHost, targetPort, config.upstreamHost(), config.upstreamPort());
+        Route route = router != null ? router.route(targetHost, targetPort) : Route.UPSTREAM;
+        if (route == Route.REJECT) {
+            log.info("SOCKS5 CONNECT {}:{} rejected by routing rules", targetHost, targetPort);
+            if (accessLog != null) {
+                accessLog.logSocks5Connect(clientAddress, targetHost, targetPort, false,
+                        System.currentTimeMillis() - startTime, 0);
+            }
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(
+                            Socks5CommandStatus.FORBIDDEN, Socks5AddressType.IPv4))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
 
-        // Connect to upstream proxy via HTTP CONNECT
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(ctx.channel().eventLoop())
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.connectTimeoutMillis())
-                .option(ChannelOption.TCP_NODELAY, true)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) {
-                        ChannelPipeline p = ch.pipeline();
-                        // Add SSL handler if upstream requires TLS
-                        if (sslContext != null) {
-                            p.addLast(sslContext.newHandler(ch.alloc(),
-                                    config.upstreamHost(), config.upstreamPort()));
-                        }
-                        // HTTP codec for CONNECT handshake with upstream
-                        p.addLast(new HttpClientCodec());
-                        p.addLast(new HttpObjectAggregator(65536));
-                        // Handler for upstream CONNECT response
-                        p.addLast(new Socks5ConnectHandler(ctx, targetHost, targetPort, config,
-                                accessLog, startTime, clientAddress));
-                    }
-                });
+        if (config.socksFastOpen()) {
+            // The upstream side is not known yet; report the address the client connected to
+            InetSocketAddress localAddr = (InetSocketAddress) ctx.channel().localAddress();
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(
+                    Socks5CommandStatus.SUCCESS,
+                    localAddr.getAddress() instanceof Inet6Address ? Socks5AddressType.IPv6 : Socks5AddressType.IPv4,
+                    localAddr.getAddress().getHostAddress(),
+                    localAddr.getPort()));
+            beginEarlyData(ctx);
+        }
 
-        bootstrap.connect(config.upstreamHost(), config.upstreamPort())
-                .addListener((ChannelFutureListener) future -> {
-                    if (!future.isSuccess()) {
-                        log.error("Failed to connect to upstream for SOCKS5: {}",
-                                future.cause().getMessage());
+        // Open a tunnel via HTTP CONNECT (HTTP/2 stream or pooled connection if available),
+        // or directly to the target
+        openTunnel(ctx, route, targetHost, targetPort,
+                        // Handler for upstream CONNECT response
+                        new Socks5ConnectHandler(ctx, targetHost, targetPort, config,
+                                accessLog, relayStats, startTime, clientAddress))
+                .addListener((FutureListener<Channel>) future -> {
+                    if (future.isSuccess()) {
+                        log.info("SOCKS5 CONNECT {}:{} {}", targetHost, targetPort, via(route, future.getNow()));
+                    } else {
+                        log.error("Failed to connect {} for SOCKS5: {}",
+                                route == Route.DIRECT ? "directly" : "to upstream", future.cause().getMessage());
+                        if (config.socksFastOpen()) {
+                            // Success was already sent
+                            ctx.channel().close();
+                            return;
+                        }
                         ctx.writeAndFlush(new DefaultSocks5CommandResponse(
                                         Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
                                 .addListener(ChannelFutureListener.CLOSE);
@@ -284,6 +317,43 @@ public class Socks5Handler extends ChannelInboundHandlerAdapter {
                 });
     }
 
+    /**
+     * Opens the tunnel on the route chosen for it: straight to the target, or through the
+     * upstream proxy.
+     */
+    private Future<Channel> openTunnel(ChannelHandlerContext ctx, Route route, String targetHost,
+                                       int targetPort, ChannelHandler connectHandler) {
+        EventLoop eventLoop = ctx.channel().eventLoop();
+        return route == Route.DIRECT
+                ? upstreamConnector.openDirect(eventLoop, targetHost, targetPort, connectHandler)
+                : upstreamConnector.openTunnel(eventLoop, connectHandler);
+    }
+
+    /**
+     * Describes how a tunnel was opened, for logging.
+     */
+    private static String via(Route route, Channel tunnel) {
+        return route == Route.DIRECT ? "direct" : "via upstream " + UpstreamConnector.endpoint(tunnel);
+    }
+
+    /**
+     * Replaces the SOCKS codecs and this handler with an {@link EarlyDataHandler} after an
+     * optimistic success reply. Bytes the decoders already hold are passed on to it.
+     */
+    private void beginEarlyData(ChannelHandlerContext ctx) {
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), "early-data", new EarlyDataHandler(config.socksFastOpenMaxBufferedBytes()));
+        for (Class<? extends ChannelHandler> codec : List.of(
+                Socks5InitialRequestDecoder.class, Socks5PasswordAuthRequestDecoder.class,
+                Socks5CommandRequestDecoder.class, Socks5ServerEncoder.class,
+                Socks4ServerDecoder.class, Socks4ServerEncoder.class)) {
+            if (pipeline.get(codec) != null) {
+                pipeline.remove(codec);
+            }
+        }
+        pipeline.remove(this);
+    }
+
     /**
      * Extracts the client IP address from the channel context.
      */
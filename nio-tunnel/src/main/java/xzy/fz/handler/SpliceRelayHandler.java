@@ -0,0 +1,120 @@
+package xzy.fz.handler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Zero-copy relay handler that joins two epoll sockets with {@code splice(2)}.
+ * <p>
+ * The first {@link #SPLICE_CHUNK_BYTES} bytes of each direction are relayed through the
+ * regular buffered path of {@link RelayHandler}, so short exchanges (handshakes, small
+ * requests) are forwarded and counted exactly. Once a direction has carried that much data
+ * it switches to kernel splicing: payload moves socket &rarr; pipe &rarr; socket without
+ * entering user space. Bytes written into the kernel before the switch are flushed first,
+ * so ordering is preserved.
+ *
+ * <h2>Requirements:</h2>
+ * <ul>
+ *   <li>Both channels use the epoll transport and share one event loop</li>
+ *   <li>Neither pipeline contains an {@link SslHandler} (plaintext upstream only)</li>
+ * </ul>
+ * Use {@link #canSplice(Channel, Channel)} to check; otherwise fall back to {@link RelayHandler}.
+ *
+ * <h2>Byte accounting:</h2>
+ * Spliced bytes are counted per completed chunk. The last partial chunk of a direction
+ * that is still in flight when the tunnel closes is not included, so totals for
+ * spliced tunnels may be low by less than one chunk per direction.
+ */
+public class SpliceRelayHandler extends RelayHandler {
+    private static final Logger log = LoggerFactory.getLogger(SpliceRelayHandler.class);
+
+    /** Bytes per splice request, and buffered bytes relayed before splicing starts */
+    static final int SPLICE_CHUNK_BYTES = 64 * 1024;
+
+    /** The channel to splice bytes to */
+    private final Channel relayChannel;
+
+    /** Bytes moved by completed splice requests */
+    private final AtomicLong splicedBytes = new AtomicLong(0);
+
+    /** Whether this direction has switched from buffered relay to splice */
+    private boolean splicing;
+
+    /**
+     * Creates a splice relay handler that forwards bytes to the specified channel.
+     *
+     * @param relayChannel     Target channel to forward bytes to
+     * @param maxReadsPerFlush Reads after which buffered writes are flushed early
+     * @param stats            Shared relay counters (may be null)
+     */
+    public SpliceRelayHandler(Channel relayChannel, int maxReadsPerFlush, RelayStats stats) {
+        super(relayChannel, null, maxReadsPerFlush, stats);
+        this.relayChannel = relayChannel;
+    }
+
+    /**
+     * Checks whether two channels can be joined with splice.
+     *
+     * @param channel      Source channel
+     * @param relayChannel Target channel
+     * @return true if both are epoll stream channels on the same event loop without TLS
+     */
+    public static boolean canSplice(Channel channel, Channel relayChannel) {
+        return channel instanceof AbstractEpollStreamChannel
+                && relayChannel instanceof AbstractEpollStreamChannel
+                && channel.eventLoop() == relayChannel.eventLoop()
+                && channel.pipeline().get(SslHandler.class) == null
+                && relayChannel.pipeline().get(SslHandler.class) == null;
+    }
+
+    /**
+     * Gets the total bytes transferred, buffered and spliced.
+     *
+     * @return Total bytes transferred
+     */
+    @Override
+    public long getBytesTransferred() {
+        return super.getBytesTransferred() + splicedBytes.get();
+    }
+
+    /**
+     * Flushes the buffered read batch, then switches to splicing once enough bytes have
+     * gone through the buffered path.
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        super.channelReadComplete(ctx);
+        if (!splicing && super.getBytesTransferred() >= SPLICE_CHUNK_BYTES && relayChannel.isActive()) {
+            splicing = true;
+            log.debug("Switching relay {} -> {} to splice", ctx.channel().remoteAddress(),
+                    relayChannel.remoteAddress());
+            spliceNext(ctx.channel());
+        }
+    }
+
+    /**
+     * Issues the next chunk-sized splice request and re-arms itself on completion.
+     * A failed request means one side went away; both channels are closed.
+     */
+    private void spliceNext(Channel channel) {
+        ((AbstractEpollStreamChannel) channel)
+                .spliceTo((AbstractEpollStreamChannel) relayChannel, SPLICE_CHUNK_BYTES)
+                .addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        splicedBytes.addAndGet(SPLICE_CHUNK_BYTES);
+                        spliceNext(channel);
+                    } else {
+                        log.debug("Splice ended: {}", future.cause().getMessage());
+                        channel.close();
+                        relayChannel.close();
+                    }
+                });
+    }
+}
@@ -7,10 +7,16 @@ import io.netty.handler.codec.http.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xzy.fz.config.Config;
+import xzy.fz.handler.EarlyDataHandler;
+import xzy.fz.handler.HttpPipeliningHandler;
 import xzy.fz.handler.RelayHandler;
+import xzy.fz.handler.RelayStats;
+import xzy.fz.handler.SpliceRelayHandler;
 import xzy.fz.log.AccessLog;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles HTTP CONNECT response from upstream proxy for HTTP proxy requests.
@@ -27,6 +33,14 @@ import java.nio.charset.StandardCharsets;
  * <h2>Pipeline Transformation:</h2>
  * After successful CONNECT, both client and upstream pipelines are stripped
  * of HTTP codecs and replaced with {@link RelayHandler} for raw byte forwarding.
+ *
+ * <h2>Pipelined CONNECT:</h2>
+ * With {@code upstream.connect.pipelined=true} the client has already received its 200 and
+ * its first bytes are held by {@link EarlyDataHandler}. The CONNECT request goes out without
+ * a flush, the client relay is started right behind it, and the whole batch (CONNECT plus
+ * e.g. the TLS ClientHello) is flushed together. Upstream's response is still parsed by the
+ * HTTP codec before any bytes are relayed back; a failure closes the client connection.
+ * Splice is not used in this mode, since the client relay runs before the codecs are gone.
  */
 public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
     private static final Logger log = LoggerFactory.getLogger(HttpConnectHandler.class);
@@ -36,8 +50,16 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
     private final int targetPort;
     private final Config config;
     private final AccessLog accessLog;
+    private final RelayStats relayStats;
     private final long startTime;
     private final String clientAddress;
+    private final boolean pipelined;
+
+    /** Whether client bytes are already being relayed upstream */
+    private boolean clientRelayStarted;
+
+    /** Relay forwarding client bytes upstream, once started */
+    private RelayHandler clientRelay;
 
     /**
      * Creates a new HTTP CONNECT handler.
@@ -47,19 +69,47 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
      * @param targetPort    Target port from CONNECT request
      * @param config        Proxy configuration
      * @param accessLog     Access log instance (may be null)
+     * @param relayStats    Shared relay counters for the stats page
      * @param startTime     Request start time for duration calculation
      * @param clientAddress Client IP address for logging
      */
     public HttpConnectHandler(ChannelHandlerContext clientCtx, String targetHost,
-                              int targetPort, Config config, AccessLog accessLog,
+                              int targetPort, Config config, AccessLog accessLog, RelayStats relayStats,
                               long startTime, String clientAddress) {
         this.clientCtx = clientCtx;
         this.targetHost = targetHost;
         this.targetPort = targetPort;
         this.config = config;
         this.accessLog = accessLog;
+        this.relayStats = relayStats;
         this.startTime = startTime;
         this.clientAddress = clientAddress;
+        this.pipelined = config.upstreamConnectPipelined();
+    }
+
+    /**
+     * Builds the 200 response telling the client that the tunnel is established.
+     *
+     * @return New response to write to the client
+     */
+    public static FullHttpResponse connectionEstablished() {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, new HttpResponseStatus(200, "Connection Established"));
+        response.headers()
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
+                .set("Proxy-Connection", "keep-alive");
+        return response;
+    }
+
+    /**
+     * Sends the CONNECT request immediately when added to an already-connected
+     * (pooled) upstream channel, which will not fire {@code channelActive} again.
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            sendConnectRequest(ctx);
+        }
     }
 
     /**
@@ -68,9 +118,18 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        // Build CONNECT request for upstream proxy
-        FullHttpRequest connectRequest = new DefaultFullHttpRequest(
-                HttpVersion.HTTP_1_1, HttpMethod.CONNECT, targetHost + ":" + targetPort);
+        sendConnectRequest(ctx);
+    }
+
+    /**
+     * Builds and sends the CONNECT request to the upstream proxy.
+     */
+    private void sendConnectRequest(ChannelHandlerContext ctx) {
+        // Build CONNECT request for upstream proxy. When pipelined, send only the head so the
+        // codec lets the raw client bytes that follow pass through
+        HttpRequest connectRequest = pipelined
+                ? new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, targetHost + ":" + targetPort)
+                : new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, targetHost + ":" + targetPort);
         connectRequest.headers()
                 .set(HttpHeaderNames.HOST, targetHost + ":" + targetPort)
                 .set("Proxy-Connection", "keep-alive");
@@ -82,7 +141,29 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
         }
 
         log.debug("Sending CONNECT to upstream for {}:{}", targetHost, targetPort);
-        ctx.writeAndFlush(connectRequest);
+        if (!pipelined) {
+            ctx.writeAndFlush(connectRequest);
+            return;
+        }
+        ctx.write(connectRequest);
+        startClientRelay(ctx.channel());
+        ctx.flush();
+    }
+
+    /**
+     * Starts relaying client bytes upstream, beginning with those held by the
+     * {@link EarlyDataHandler}. Writes are flushed by the relay, or by the caller for the
+     * queued bytes passed on synchronously.
+     */
+    private void startClientRelay(Channel upstreamChannel) {
+        Channel clientChannel = clientCtx.channel();
+        clientRelayStarted = true;
+        if (!clientChannel.isActive()) {
+            return;
+        }
+        clientRelay = newRelay(upstreamChannel, false);
+        clientChannel.pipeline().addLast("relay", clientRelay);
+        removeHandlerSafely(clientChannel.pipeline(), EarlyDataHandler.class);
     }
 
     /**
@@ -90,16 +171,18 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
      */
     @Override
     protected void channelRead0(ChannelHandlerContext upstreamCtx, FullHttpResponse response) {
+        if (!clientCtx.channel().isActive()) {
+            // Client left while the tunnel was being opened
+            upstreamCtx.close();
+            return;
+        }
         if (response.status().code() == 200) {
             log.debug("Upstream CONNECT successful for {}:{}", targetHost, targetPort);
 
-            // Send 200 Connection Established to client
-            FullHttpResponse clientResponse = new DefaultFullHttpResponse(
-                    HttpVersion.HTTP_1_1, new HttpResponseStatus(200, "Connection Established"));
-            clientResponse.headers()
-                    .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
-                    .set("Proxy-Connection", "keep-alive");
-            clientCtx.writeAndFlush(clientResponse);
+            // Send 200 Connection Established to client (already done when pipelined)
+            if (!pipelined) {
+                clientCtx.writeAndFlush(connectionEstablished());
+            }
 
             // Switch both channels to raw byte relay mode with access logging
             switchToRelayMode(upstreamCtx);
@@ -109,6 +192,13 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
             // Log failed CONNECT
             logAccess(response.status().code(), 0);
 
+            if (pipelined) {
+                // The client has been told the tunnel is up; all that is left is to close it
+                clientCtx.channel().close();
+                upstreamCtx.close();
+                return;
+            }
+
             // Forward upstream error to client
             FullHttpResponse errorResponse = new DefaultFullHttpResponse(
                     HttpVersion.HTTP_1_1, response.status());
@@ -126,19 +216,9 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
         Channel clientChannel = clientCtx.channel();
         Channel upstreamChannel = upstreamCtx.channel();
 
-        // Remove HTTP codecs from client pipeline
-        removeHandlerSafely(clientChannel.pipeline(), HttpRequestDecoder.class);
-        removeHandlerSafely(clientChannel.pipeline(), HttpResponseEncoder.class);
-        removeHandlerSafely(clientChannel.pipeline(), "http-proxy-handler");
-
-        // Remove HTTP codecs from upstream pipeline
-        removeHandlerSafely(upstreamChannel.pipeline(), HttpClientCodec.class);
-        removeHandlerSafely(upstreamChannel.pipeline(), HttpObjectAggregator.class);
-        upstreamChannel.pipeline().remove(this);
-
         // Track total bytes for access logging
-        java.util.concurrent.atomic.AtomicLong totalBytes = new java.util.concurrent.atomic.AtomicLong(0);
-        java.util.concurrent.atomic.AtomicBoolean logged = new java.util.concurrent.atomic.AtomicBoolean(false);
+        AtomicLong totalBytes = new AtomicLong(0);
+        AtomicBoolean logged = new AtomicBoolean(false);
 
         // Create completion callback that logs once when connection closes
         Runnable logCallback = () -> {
@@ -148,16 +228,33 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
         };
 
         // Create relay handlers with bytes tracking
-        RelayHandler clientRelay = new RelayHandler(upstreamChannel, null);
-        RelayHandler upstreamRelay = new RelayHandler(clientChannel, null);
+        // (kernel splice when enabled and both sides are plaintext epoll sockets)
+        boolean splice = !clientRelayStarted && config.relaySplice()
+                && SpliceRelayHandler.canSplice(clientChannel, upstreamChannel);
+        RelayHandler upstreamRelay = newRelay(clientChannel, splice);
 
-        // Add relay handlers for bidirectional byte forwarding
-        clientChannel.pipeline().addLast("relay", clientRelay);
+        if (!clientRelayStarted) {
+            // Remove HTTP codecs from client pipeline
+            removeHandlerSafely(clientChannel.pipeline(), HttpRequestDecoder.class);
+            removeHandlerSafely(clientChannel.pipeline(), HttpResponseEncoder.class);
+            removeHandlerSafely(clientChannel.pipeline(), HttpPipeliningHandler.class);
+            removeHandlerSafely(clientChannel.pipeline(), "http-proxy-handler");
+
+            clientRelay = newRelay(upstreamChannel, splice);
+            clientChannel.pipeline().addLast("relay", clientRelay);
+        }
+
+        // Add the upstream relay before removing the codec, which passes on any bytes it
+        // has read past the response
         upstreamChannel.pipeline().addLast("relay", upstreamRelay);
-        
+        removeHandlerSafely(upstreamChannel.pipeline(), HttpClientCodec.class);
+        removeHandlerSafely(upstreamChannel.pipeline(), HttpObjectAggregator.class);
+        upstreamChannel.pipeline().remove(this);
+
         // Log access when either channel closes
+        RelayHandler relay = clientRelay;
         clientChannel.closeFuture().addListener(f -> {
-            totalBytes.addAndGet(clientRelay.getBytesTransferred());
+            totalBytes.addAndGet(relay.getBytesTransferred());
             totalBytes.addAndGet(upstreamRelay.getBytesTransferred());
             logCallback.run();
         });
@@ -171,8 +268,7 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
     private void logAccess(int statusCode, long bytesWritten) {
         if (accessLog != null) {
             long duration = System.currentTimeMillis() - startTime;
-            accessLog.logConnect(clientAddress, targetHost + ":" + targetPort,
-                    statusCode, duration, bytesWritten);
+            accessLog.logConnect(clientAddress, targetHost, targetPort, statusCode, duration, bytesWritten);
         }
     }
 
@@ -196,13 +292,54 @@ public class HttpConnectHandler extends SimpleChannelInboundHandler<FullHttpResp
         }
     }
 
+    /**
+     * Resumes reading from the client once upstream drains, while the client relay runs
+     * ahead of the upstream one in pipelined mode.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (clientRelayStarted && ctx.channel().isWritable() && clientCtx.channel().isActive()) {
+            clientCtx.channel().config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * Closes the client if upstream goes away before answering a pipelined CONNECT.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (pipelined) {
+            clientCtx.channel().close();
+        }
+        ctx.fireChannelInactive();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("Upstream connection error: {}", cause.getMessage());
-        sendErrorToClient(HttpResponseStatus.BAD_GATEWAY, "Upstream connection failed");
+        if (pipelined) {
+            clientCtx.channel().close();
+        } else {
+            sendErrorToClient(HttpResponseStatus.BAD_GATEWAY, "Upstream connection failed");
+        }
         ctx.close();
     }
 
+    /**
+     * Creates the relay handler that forwards bytes to the given channel.
+     *
+     * @param target Channel to forward bytes to
+     * @param splice Whether to use kernel splice
+     * @return Relay handler
+     */
+    private RelayHandler newRelay(Channel target, boolean splice) {
+        int maxReadsPerFlush = config.relayMaxReadsPerFlush();
+        return splice
+                ? new SpliceRelayHandler(target, maxReadsPerFlush, relayStats)
+                : new RelayHandler(target, null, maxReadsPerFlush, relayStats);
+    }
+
     /**
      * Sends an error response to the client.
      */
@@ -2,48 +2,163 @@ package xzy.fz.handler.upstream;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import xzy.fz.cache.CacheEntry;
+import xzy.fz.cache.CacheResult;
+import xzy.fz.cache.CacheWriter;
+import xzy.fz.cache.HttpCache;
 import xzy.fz.config.Config;
 import xzy.fz.log.AccessLog;
+import xzy.fz.upstream.UpstreamConnector;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
 
 /**
  * Handles forwarding regular HTTP requests (non-CONNECT) to upstream proxy.
  * <p>
  * This handler is used for HTTP methods like GET, POST, PUT, DELETE, etc.
- * It forwards the request to the upstream proxy and relays the response back.
+ * It forwards the request to the upstream proxy and streams the response back.
  *
  * <h2>Flow:</h2>
  * <ol>
- *   <li>On channel activation, forwards modified request to upstream</li>
- *   <li>Receives response from upstream</li>
- *   <li>Forwards response to client</li>
- *   <li>Closes the upstream connection</li>
+ *   <li>On channel activation, forwards modified request head to upstream</li>
+ *   <li>Streams request body chunks from the client as they arrive
+ *       (see {@link #offerRequestContent})</li>
+ *   <li>Relays the response head to the client as soon as it arrives</li>
+ *   <li>Relays each body chunk as it arrives, flushing once per read batch</li>
+ *   <li>On the last chunk, logs the request and returns the upstream connection to the
+ *       keep-alive pool, or closes it</li>
  * </ol>
+ * Responses are never aggregated, so memory per request stays constant regardless of
+ * body size. While the client's outbound buffer is above its high water mark, reading
+ * from upstream pauses until the client channel is writable again (see
+ * {@link #clientWritabilityChanged}).
+ * <p>
+ * Interim 1xx responses (e.g. 100 Continue) are relayed without ending the exchange.
+ * Whether the client connection stays open is decided by
+ * {@link xzy.fz.handler.HttpPipeliningHandler}.
+ *
+ * <h2>Upstream reuse:</h2>
+ * The upstream connection is handed back (with its HTTP codec, without this handler) once
+ * the request was sent in full and the upstream kept the connection alive after a response
+ * with a self-delimited body. Otherwise it is closed.
+ * <p>
+ * A pooled connection may have been closed by the upstream while it was idle, which is
+ * only noticed once the next request has been sent. If such a reused connection closes
+ * before any response, an idempotent request without a body is sent once more on a fresh
+ * connection (as browsers do) instead of answering 502.
+ *
+ * <h2>Caching:</h2>
+ * With a {@link HttpCache}, cacheable responses are stored while they stream to the
+ * client. When revalidating a stale entry, the request carries the entry's validators; a
+ * 304 refreshes the entry, which is then served to the client instead of the 304.
+ * Successful unsafe requests invalidate the stored response for their URI.
+ *
+ * <h2>Request body:</h2>
+ * Body chunks that arrive before the upstream connection is ready are queued; once the
+ * queue reaches the write-buffer high water mark, reading from the client pauses until
+ * the queue has been written upstream. After that, chunks are written straight through
+ * and reading from the client pauses whenever the upstream channel is not writable.
  *
  * <h2>Request Modifications:</h2>
  * <ul>
  *   <li>Removes client's Proxy-Authorization header</li>
  *   <li>Adds upstream Proxy-Authorization if configured</li>
  *   <li>Adds Proxy-Connection: keep-alive header</li>
+ *   <li>Drops hop-by-hop headers ({@code Connection}, {@code Keep-Alive},
+ *       {@code Proxy-Connection} and those listed in {@code Connection}) from the request
+ *       and from the response</li>
  * </ul>
  */
-public class HttpForwardHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+public class HttpForwardHandler extends SimpleChannelInboundHandler<HttpObject> {
     private static final Logger log = LoggerFactory.getLogger(HttpForwardHandler.class);
 
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
     private final ChannelHandlerContext clientCtx;
     private final HttpRequest originalRequest;
     private final Config config;
     private final AccessLog accessLog;
     private final long startTime;
     private final String clientAddress;
+    private final Consumer<Channel> upstreamRelease;
+    private final HttpCache cache;
+
+    /** Re-sends the request on a fresh connection (null once used, or if not allowed) */
+    private Consumer<CacheEntry> retry;
+
+    /** Stale entry being revalidated (reference owned by this handler), or null */
+    private CacheEntry revalidating;
+
+    /** How the request is answered, known once the response head has been received */
+    private CacheResult result = CacheResult.TCP_MISS;
+
+    /** Writer storing the response body, or null if it is not cached */
+    private CacheWriter cacheWriter;
+
+    /** Whether the response was served from the cache after a 304 (upstream body is dropped) */
+    private boolean servedFromCache;
+
+    /** Time the request head was sent upstream */
+    private long requestTime;
+
+    /** Response status, or null until the response head has been received */
+    private HttpResponseStatus status;
+
+    /** Response content type for the access log */
+    private String contentType;
+
+    /** Whether the upstream connection can carry another request after this response */
+    private boolean upstreamKeepAlive;
+
+    /** Body bytes relayed to the client */
+    private long bytesRelayed;
+
+    /** Whether the last body chunk has been relayed */
+    private boolean completed;
+
+    /** Whether the current response is an interim 1xx response */
+    private boolean interim;
+
+    /** Whether any part of a response (interim or final) has been received */
+    private boolean responseReceived;
+
+    /** Whether the upstream connection came from the keep-alive pool */
+    private boolean reused;
+
+    /** Request body bytes received from the client */
+    private long requestBodyBytes;
+
+    /** Upstream context, or null until the request head has been sent */
+    private ChannelHandlerContext upstreamCtx;
+
+    /** Request body chunks received before the upstream connection was ready */
+    private final ArrayDeque<HttpContent> pendingContent = new ArrayDeque<>();
+
+    /** Bytes queued in {@link #pendingContent} */
+    private long pendingBytes;
+
+    /** Whether the client has sent the last request body chunk */
+    private boolean requestComplete;
+
+    /** Whether this handler has left the upstream pipeline */
+    private boolean removed;
+
+    /** Whether this handler paused reading from the client */
+    private boolean clientPaused;
+
+    /** Whether this handler paused reading from the upstream */
+    private boolean upstreamPaused;
 
     /**
      * Creates a new HTTP forward handler.
@@ -54,15 +169,39 @@ public class HttpForwardHandler extends SimpleChannelInboundHandler<FullHttpResp
      * @param accessLog       Access log instance (may be null)
      * @param startTime       Request start time for duration calculation
      * @param clientAddress   Client IP address for logging
+     * @param upstreamRelease Receives the upstream channel when it can carry another request
+     *                        (may be null to always close it)
+     * @param cache           Response cache (may be null if disabled)
+     * @param revalidating    Stale entry to revalidate, whose reference passes to this handler
+     *                        (may be null)
+     * @param retry           Sends the request again on a fresh upstream connection, receiving
+     *                        the entry being revalidated (may be null to never retry)
      */
     public HttpForwardHandler(ChannelHandlerContext clientCtx, HttpRequest originalRequest,
-                               Config config, AccessLog accessLog, long startTime, String clientAddress) {
+                               Config config, AccessLog accessLog, long startTime, String clientAddress,
+                               Consumer<Channel> upstreamRelease, HttpCache cache, CacheEntry revalidating,
+                               Consumer<CacheEntry> retry) {
         this.clientCtx = clientCtx;
         this.originalRequest = originalRequest;
         this.config = config;
         this.accessLog = accessLog;
         this.startTime = startTime;
         this.clientAddress = clientAddress;
+        this.upstreamRelease = upstreamRelease;
+        this.cache = cache;
+        this.revalidating = revalidating;
+        this.retry = retry;
+    }
+
+    /**
+     * Sends the request immediately when added to an already-connected
+     * (pooled) upstream channel, which will not fire {@code channelActive} again.
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            sendForwardRequest(ctx);
+        }
     }
 
     /**
@@ -71,18 +210,22 @@ public class HttpForwardHandler extends SimpleChannelInboundHandler<FullHttpResp
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        // Build the forwarded request
-        DefaultFullHttpRequest forwardRequest = new DefaultFullHttpRequest(
+        sendForwardRequest(ctx);
+    }
+
+    /**
+     * Builds and sends the request to the upstream proxy.
+     */
+    private void sendForwardRequest(ChannelHandlerContext ctx) {
+        // Build the forwarded request head; the body follows as separate chunks
+        DefaultHttpRequest forwardRequest = new DefaultHttpRequest(
                 originalRequest.protocolVersion(),
                 originalRequest.method(),
                 originalRequest.uri());
 
-        // Copy headers, filtering out client proxy-auth
-        for (Map.Entry<String, String> header : originalRequest.headers()) {
-            if (!header.getKey().equalsIgnoreCase("Proxy-Authorization")) {
-                forwardRequest.headers().set(header.getKey(), header.getValue());
-            }
-        }
+        // Copy end-to-end headers, filtering out client proxy-auth
+        copyEndToEndHeaders(originalRequest.headers(), forwardRequest.headers());
+        forwardRequest.headers().remove(HttpHeaderNames.PROXY_AUTHORIZATION);
 
         // Add upstream authentication if configured
         if (config.expectedUpstreamAuthHeader() != null) {
@@ -93,35 +236,339 @@ public class HttpForwardHandler extends SimpleChannelInboundHandler<FullHttpResp
         // Add proxy-connection header
         forwardRequest.headers().set("Proxy-Connection", "keep-alive");
 
+        if (revalidating != null) {
+            revalidating.addValidators(forwardRequest);
+        }
+
         log.debug("Forwarding {} {} to upstream", originalRequest.method(), originalRequest.uri());
-        ctx.writeAndFlush(forwardRequest);
+        upstreamCtx = ctx;
+        reused = UpstreamConnector.isReused(ctx.channel());
+        requestTime = System.currentTimeMillis();
+        ctx.write(forwardRequest);
+
+        // Send the body received so far and let the client continue
+        HttpContent content;
+        while ((content = pendingContent.poll()) != null) {
+            ctx.write(content);
+        }
+        pendingBytes = 0;
+        ctx.flush();
+        if (ctx.channel().isWritable()) {
+            resumeClient();
+        }
+    }
+
+    /**
+     * Accepts a request body chunk from the client channel.
+     * <p>
+     * Must be called on the client's event loop (which is also the upstream's). Takes
+     * ownership of the chunk. Writes are flushed by {@link #flushRequestContent}, and
+     * immediately for the last chunk.
+     *
+     * @param content Body chunk; a {@link LastHttpContent} ends the request
+     */
+    public void offerRequestContent(HttpContent content) {
+        requestComplete = content instanceof LastHttpContent;
+        requestBodyBytes += content.content().readableBytes();
+        if (removed) {
+            content.release();
+            return;
+        }
+        if (upstreamCtx == null) {
+            pendingContent.add(content);
+            pendingBytes += content.content().readableBytes();
+            if (pendingBytes >= config.writeBufferHighWaterMark()) {
+                pauseClient();
+            }
+            return;
+        }
+        upstreamCtx.write(content);
+        if (requestComplete) {
+            // The client channel stops calling flushRequestContent after the last chunk
+            upstreamCtx.flush();
+        } else if (!upstreamCtx.channel().isWritable()) {
+            // Upstream is slower than the client: pause until channelWritabilityChanged
+            pauseClient();
+            upstreamCtx.flush();
+        }
+    }
+
+    /**
+     * Flushes request body chunks written during the client's current read batch.
+     */
+    public void flushRequestContent() {
+        if (upstreamCtx != null) {
+            upstreamCtx.flush();
+        }
+    }
+
+    /**
+     * Resumes reading the request body once the upstream has drained its outbound buffer.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && !requestComplete) {
+            resumeClient();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private void pauseClient() {
+        clientPaused = true;
+        clientCtx.channel().config().setAutoRead(false);
+    }
+
+    /**
+     * Resumes reading from the client if this handler paused it. Pauses made by other
+     * handlers (e.g. for pipelined requests) are left alone.
+     */
+    private void resumeClient() {
+        if (clientPaused) {
+            clientPaused = false;
+            clientCtx.channel().config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Relays the response head and body chunks to the client as they arrive.
+     */
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+        responseReceived = true;
+        if (msg instanceof HttpResponse response
+                && response.status().codeClass() == HttpStatusClass.INFORMATIONAL
+                && response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+            // Interim response: relay it and wait for the final one
+            interim = true;
+            FullHttpResponse clientResponse = new DefaultFullHttpResponse(response.protocolVersion(), response.status());
+            clientResponse.headers().set(response.headers());
+            clientCtx.writeAndFlush(clientResponse);
+            return;
+        }
+        if (interim) {
+            // Empty last content that ends the interim response
+            interim = !(msg instanceof LastHttpContent);
+            return;
+        }
+
+        if (msg instanceof HttpResponse response) {
+            status = response.status();
+            contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            upstreamKeepAlive = HttpUtil.isKeepAlive(response)
+                    && (HttpUtil.isContentLengthSet(response) || HttpUtil.isTransferEncodingChunked(response)
+                    || originalRequest.method() == HttpMethod.HEAD);
+
+            HttpResponse clientResponse = new DefaultHttpResponse(response.protocolVersion(), status);
+            copyEndToEndHeaders(response.headers(), clientResponse.headers());
+            if (revalidating != null && status.code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                serveRevalidated(clientResponse);
+            } else {
+                if (cache != null) {
+                    startCaching(clientResponse);
+                }
+                log.debug("Forwarding response {} to client", status);
+                clientCtx.write(clientResponse);
+            }
+        }
+
+        if (servedFromCache) {
+            // The 304 has no body; only its end matters
+            if (msg instanceof LastHttpContent) {
+                complete(ctx);
+            }
+            return;
+        }
+
+        if (msg instanceof HttpContent content) {
+            if (cacheWriter != null) {
+                cacheWriter.append(content.content());
+            }
+            // Retain the content because it is passed on to another channel
+            ByteBuf data = content.content().retain();
+            bytesRelayed += data.readableBytes();
+
+            if (content instanceof LastHttpContent last) {
+                if (cacheWriter != null) {
+                    cacheWriter.commit();
+                    cacheWriter = null;
+                }
+                clientCtx.write(new DefaultLastHttpContent(data, last.trailingHeaders()));
+                complete(ctx);
+                return;
+            }
+
+            clientCtx.write(new DefaultHttpContent(data));
+            if (!clientCtx.channel().isWritable()) {
+                // Client is slower than upstream: pause until clientWritabilityChanged
+                upstreamPaused = true;
+                ctx.channel().config().setAutoRead(false);
+                clientCtx.flush();
+            }
+        }
     }
 
     /**
-     * Receives response from upstream and forwards to client.
+     * Resumes reading the response once the client has drained its outbound buffer.
+     * <p>
+     * Must be called from the client channel's {@code channelWritabilityChanged}. Does
+     * nothing once the upstream channel has left this exchange (e.g. went back to the
+     * keep-alive pool), so a later exchange on that channel is not affected.
+     */
+    public void clientWritabilityChanged() {
+        if (upstreamPaused && !removed && clientCtx.channel().isWritable()) {
+            upstreamPaused = false;
+            upstreamCtx.channel().config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Answers the client from the revalidated entry after upstream confirmed it with a 304.
+     */
+    private void serveRevalidated(HttpResponse notModified) {
+        long now = System.currentTimeMillis();
+        CacheEntry refreshed = cache.refresh(revalidating, notModified, requestTime, now);
+        FullHttpResponse response = refreshed.newResponse(originalRequest, now);
+        refreshed.release();
+
+        result = CacheResult.TCP_REFRESH_HIT;
+        servedFromCache = true;
+        status = response.status();
+        contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        bytesRelayed = response.content().readableBytes();
+        log.debug("Serving revalidated {} from cache", originalRequest.uri());
+        clientCtx.write(response);
+    }
+
+    /**
+     * Decides how the response affects the cache: stores it if cacheable, and invalidates
+     * the URI after a successful unsafe request.
+     */
+    private void startCaching(HttpResponse clientResponse) {
+        result = revalidating != null ? CacheResult.TCP_REFRESH_MISS : CacheResult.TCP_MISS;
+        HttpMethod method = originalRequest.method();
+        if (method == HttpMethod.GET) {
+            cacheWriter = cache.newWriter(originalRequest, clientResponse, requestTime, System.currentTimeMillis());
+        } else if (method != HttpMethod.HEAD && method != HttpMethod.OPTIONS && method != HttpMethod.TRACE
+                && status.code() < 400) {
+            cache.invalidate(originalRequest.uri());
+        }
+    }
+
+    /**
+     * Flushes everything relayed during the current read batch.
      */
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
-        // Forward response to client
-        // Note: retain() the content because we're passing it to another channel
-        FullHttpResponse clientResponse = new DefaultFullHttpResponse(
-                response.protocolVersion(),
-                response.status(),
-                response.content().retain());
-        clientResponse.headers().set(response.headers());
-
-        // Log access
-        long duration = System.currentTimeMillis() - startTime;
-        int contentLength = response.content().readableBytes();
-        String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
-        logAccess(response.status().code(), duration, contentLength, contentType);
-
-        log.debug("Forwarding response {} to client", response.status());
-
-        clientCtx.writeAndFlush(clientResponse).addListener(future -> {
-            // Close upstream connection after response is sent
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        clientCtx.flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Finishes the exchange after the last body chunk.
+     */
+    private void complete(ChannelHandlerContext ctx) {
+        completed = true;
+        logAccess(status.code(), System.currentTimeMillis() - startTime, bytesRelayed, contentType);
+        if (cache != null) {
+            cache.record(result);
+        }
+
+        clientCtx.flush();
+        if (upstreamKeepAlive && requestComplete && upstreamRelease != null && ctx.channel().isActive()) {
+            if (upstreamPaused) {
+                // The response is complete; the pool reads to notice the connection closing
+                upstreamPaused = false;
+                ctx.channel().config().setAutoRead(true);
+            }
+            // Leave the codec in place for the next request on this connection
+            ctx.pipeline().remove(this);
+            upstreamRelease.accept(ctx.channel());
+        } else {
             ctx.close();
-        });
+        }
+    }
+
+    /**
+     * Releases request body chunks that were never sent, drops an incomplete cached body
+     * and lets the client read again.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        discard();
+    }
+
+    /**
+     * Releases everything this handler holds. Also called when no upstream channel could
+     * be obtained, so the handler was never added to a pipeline; safe to call twice.
+     */
+    public void discard() {
+        removed = true;
+        if (cacheWriter != null) {
+            cacheWriter.abort();
+            cacheWriter = null;
+        }
+        if (revalidating != null) {
+            revalidating.release();
+            revalidating = null;
+        }
+        HttpContent content;
+        while ((content = pendingContent.poll()) != null) {
+            content.release();
+        }
+        if (clientCtx.channel().isActive()) {
+            resumeClient();
+        }
+    }
+
+    /**
+     * Copies headers except hop-by-hop ones, which apply to a single connection only.
+     */
+    private static void copyEndToEndHeaders(HttpHeaders from, HttpHeaders to) {
+        to.set(from);
+        for (String connectionOption : from.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String name : connectionOption.split(",")) {
+                to.remove(name.trim());
+            }
+        }
+        to.remove(HttpHeaderNames.CONNECTION)
+                .remove(KEEP_ALIVE)
+                .remove(PROXY_CONNECTION);
+    }
+
+    /**
+     * Ends the client's response if the upstream connection closed before it completed.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (!completed && clientCtx.channel().isActive()) {
+            if (canRetry()) {
+                log.debug("Reused upstream connection closed before answering {} {}, retrying",
+                        originalRequest.method(), originalRequest.uri());
+                Consumer<CacheEntry> resend = retry;
+                CacheEntry entry = revalidating;
+                retry = null;
+                revalidating = null;  // The reference passes to the retry
+                resend.accept(entry);
+            } else if (status == null) {
+                sendBadGateway();
+            } else {
+                // Response head already sent: closing is the only way to signal truncation
+                clientCtx.close();
+            }
+        }
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * Whether the request can be sent again after the upstream closed the connection: it
+     * went out on a reused connection, nothing came back, and it is idempotent and complete
+     * without a body, so sending it twice is safe and nothing needs to be replayed.
+     */
+    private boolean canRetry() {
+        HttpMethod method = originalRequest.method();
+        return retry != null && reused && !responseReceived && requestComplete && requestBodyBytes == 0
+                && (method == HttpMethod.GET || method == HttpMethod.HEAD || method == HttpMethod.OPTIONS
+                || method == HttpMethod.TRACE || method == HttpMethod.PUT || method == HttpMethod.DELETE);
     }
 
     /**
@@ -129,27 +576,32 @@ public class HttpForwardHandler extends SimpleChannelInboundHandler<FullHttpResp
      */
     private void logAccess(int statusCode, long duration, long bytesWritten, String contentType) {
         if (accessLog != null) {
-            accessLog.logHttpForward(clientAddress, originalRequest.method().name(),
+            accessLog.logHttpForward(clientAddress, result.name(), originalRequest.method().name(),
                     originalRequest.uri(), statusCode, duration, bytesWritten, contentType);
         }
     }
 
+    /**
+     * Closes the upstream connection; {@link #channelInactive} reports the failure to the client.
+     */
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("HTTP forward error: {}", cause.getMessage());
         ctx.close();
+    }
 
-        // Send error to client if still active
-        if (clientCtx.channel().isActive()) {
-            ByteBuf content = Unpooled.copiedBuffer(
-                    "<html><body><h1>Bad Gateway</h1></body></html>", StandardCharsets.UTF_8);
-            FullHttpResponse response = new DefaultFullHttpResponse(
-                    HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY, content);
-            response.headers()
-                    .set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8")
-                    .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
-                    .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-            clientCtx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-        }
+    /**
+     * Sends 502 Bad Gateway to the client and closes it.
+     */
+    private void sendBadGateway() {
+        ByteBuf content = Unpooled.copiedBuffer(
+                "<html><body><h1>Bad Gateway</h1></body></html>", StandardCharsets.UTF_8);
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY, content);
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8")
+                .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        clientCtx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
     }
 }
@@ -6,7 +6,10 @@ import io.netty.handler.codec.socksx.v4.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xzy.fz.config.Config;
+import xzy.fz.handler.EarlyDataHandler;
 import xzy.fz.handler.RelayHandler;
+import xzy.fz.handler.RelayStats;
+import xzy.fz.handler.SpliceRelayHandler;
 import xzy.fz.log.AccessLog;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -26,6 +29,9 @@ import java.util.concurrent.atomic.AtomicLong;
  *   <li>Sends SOCKS4 success response to client</li>
  *   <li>Switches both channels to relay mode</li>
  * </ol>
+ * In fast-open mode ({@code listen.socks.fastOpen}) the success response has already been
+ * sent; the relay takes over the client bytes held by {@link EarlyDataHandler}, and a
+ * failure closes the client connection instead of replying.
  */
 public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
     private static final Logger log = LoggerFactory.getLogger(Socks4ConnectHandler.class);
@@ -35,6 +41,7 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
     private final int targetPort;
     private final Config config;
     private final AccessLog accessLog;
+    private final RelayStats relayStats;
     private final long startTime;
     private final String clientAddress;
 
@@ -46,27 +53,47 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
      * @param targetPort    Target port from SOCKS4 CONNECT command
      * @param config        Proxy configuration
      * @param accessLog     Access log for Squid-style logging
+     * @param relayStats    Shared relay counters for the stats page
      * @param startTime     Request start time in milliseconds
      * @param clientAddress Client address string for logging
      */
     public Socks4ConnectHandler(ChannelHandlerContext clientCtx, String targetHost,
-                                int targetPort, Config config, AccessLog accessLog,
+                                int targetPort, Config config, AccessLog accessLog, RelayStats relayStats,
                                 long startTime, String clientAddress) {
         this.clientCtx = clientCtx;
         this.targetHost = targetHost;
         this.targetPort = targetPort;
         this.config = config;
         this.accessLog = accessLog;
+        this.relayStats = relayStats;
         this.startTime = startTime;
         this.clientAddress = clientAddress;
     }
 
+    /**
+     * Sends the HTTP CONNECT request immediately when added to an already-connected
+     * (pooled) upstream channel, which will not fire {@code channelActive} again.
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            sendConnectRequest(ctx);
+        }
+    }
+
     /**
      * Called when upstream connection is established.
      * Sends HTTP CONNECT request to upstream proxy.
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
+        sendConnectRequest(ctx);
+    }
+
+    /**
+     * Builds and sends the HTTP CONNECT request to the upstream proxy.
+     */
+    private void sendConnectRequest(ChannelHandlerContext ctx) {
         // Build HTTP CONNECT request
         FullHttpRequest connectRequest = new DefaultFullHttpRequest(
                 HttpVersion.HTTP_1_1, HttpMethod.CONNECT, targetHost + ":" + targetPort);
@@ -89,11 +116,18 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
      */
     @Override
     protected void channelRead0(ChannelHandlerContext upstreamCtx, FullHttpResponse response) {
+        if (!clientCtx.channel().isActive()) {
+            // Client left while the tunnel was being opened
+            upstreamCtx.close();
+            return;
+        }
         if (response.status().code() == 200) {
             log.debug("SOCKS4 upstream CONNECT successful for {}:{}", targetHost, targetPort);
 
-            // Send SOCKS4 success response to client
-            clientCtx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.SUCCESS));
+            if (!config.socksFastOpen()) {
+                // Send SOCKS4 success response to client
+                clientCtx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.SUCCESS));
+            }
 
             // Switch both channels to relay mode
             switchToRelayMode(upstreamCtx);
@@ -103,9 +137,7 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
             // Log failed access
             logAccess(response.status().code(), 0);
 
-            // Send SOCKS4 failure response to client
-            clientCtx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.REJECTED_OR_FAILED))
-                    .addListener(ChannelFutureListener.CLOSE);
+            failClient();
             upstreamCtx.close();
         }
     }
@@ -140,13 +172,19 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
         };
 
         // Create relay handlers
-        RelayHandler clientRelay = new RelayHandler(upstreamChannel, null);
-        RelayHandler upstreamRelay = new RelayHandler(clientChannel, null);
+        // (kernel splice when enabled and both sides are plaintext epoll sockets)
+        boolean splice = config.relaySplice()
+                && SpliceRelayHandler.canSplice(clientChannel, upstreamChannel);
+        RelayHandler clientRelay = newRelay(upstreamChannel, splice);
+        RelayHandler upstreamRelay = newRelay(clientChannel, splice);
 
         // Add relay handlers for bidirectional byte forwarding
         clientChannel.pipeline().addLast("relay", clientRelay);
         upstreamChannel.pipeline().addLast("relay", upstreamRelay);
 
+        // Fast open: hand the client bytes held so far to the relay
+        removeHandlerSafely(clientChannel.pipeline(), EarlyDataHandler.class);
+
         // Log access when either channel closes
         clientChannel.closeFuture().addListener(f -> {
             totalBytes.addAndGet(clientRelay.getBytesTransferred());
@@ -163,9 +201,8 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
     private void logAccess(int statusCode, long bytes) {
         if (accessLog != null) {
             long duration = System.currentTimeMillis() - startTime;
-            String url = targetHost + ":" + targetPort;
             boolean success = statusCode == 200;
-            accessLog.logSocks4Connect(clientAddress, url, success, duration, bytes);
+            accessLog.logSocks4Connect(clientAddress, targetHost, targetPort, success, duration, bytes);
         }
     }
 
@@ -191,14 +228,52 @@ public class Socks4ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
         }
     }
 
+    /**
+     * Sends the SOCKS4 failure response and closes the client, or just closes it if
+     * fast open already sent success.
+     */
+    private void failClient() {
+        if (config.socksFastOpen()) {
+            clientCtx.channel().close();
+            return;
+        }
+        clientCtx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.REJECTED_OR_FAILED))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Creates the relay handler that forwards bytes to the given channel.
+     *
+     * @param target Channel to forward bytes to
+     * @param splice Whether to use kernel splice
+     * @return Relay handler
+     */
+    private RelayHandler newRelay(Channel target, boolean splice) {
+        int maxReadsPerFlush = config.relayMaxReadsPerFlush();
+        return splice
+                ? new SpliceRelayHandler(target, maxReadsPerFlush, relayStats)
+                : new RelayHandler(target, null, maxReadsPerFlush, relayStats);
+    }
+
+    /**
+     * Closes the client if upstream goes away before answering a fast-open CONNECT (the
+     * handler leaves the pipeline once the relay starts).
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (config.socksFastOpen()) {
+            clientCtx.channel().close();
+        }
+        ctx.fireChannelInactive();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("SOCKS4 upstream error: {}", cause.getMessage());
 
         // Send SOCKS4 failure to client
         if (clientCtx.channel().isActive()) {
-            clientCtx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.REJECTED_OR_FAILED))
-                    .addListener(ChannelFutureListener.CLOSE);
+            failClient();
         }
         ctx.close();
     }
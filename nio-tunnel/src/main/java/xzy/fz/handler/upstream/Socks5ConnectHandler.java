@@ -7,7 +7,10 @@ import io.netty.handler.codec.socksx.v5.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xzy.fz.config.Config;
+import xzy.fz.handler.EarlyDataHandler;
 import xzy.fz.handler.RelayHandler;
+import xzy.fz.handler.RelayStats;
+import xzy.fz.handler.SpliceRelayHandler;
 import xzy.fz.handler.Socks5Handler;
 import xzy.fz.log.AccessLog;
 
@@ -28,6 +31,9 @@ import java.util.concurrent.atomic.AtomicLong;
  *   <li>Sends SOCKS5 success response to client</li>
  *   <li>Switches both channels to relay mode</li>
  * </ol>
+ * In fast-open mode ({@code listen.socks.fastOpen}) the success response has already been
+ * sent; the relay takes over the client bytes held by {@link EarlyDataHandler}, and a
+ * failure closes the client connection instead of replying.
  */
 public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
     private static final Logger log = LoggerFactory.getLogger(Socks5ConnectHandler.class);
@@ -37,6 +43,7 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
     private final int targetPort;
     private final Config config;
     private final AccessLog accessLog;
+    private final RelayStats relayStats;
     private final long startTime;
     private final String clientAddress;
 
@@ -48,27 +55,47 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
      * @param targetPort    Target port from SOCKS5 CONNECT command
      * @param config        Proxy configuration
      * @param accessLog     Access log for Squid-style logging
+     * @param relayStats    Shared relay counters for the stats page
      * @param startTime     Request start time in milliseconds
      * @param clientAddress Client address string for logging
      */
     public Socks5ConnectHandler(ChannelHandlerContext clientCtx, String targetHost,
-                                int targetPort, Config config, AccessLog accessLog,
+                                int targetPort, Config config, AccessLog accessLog, RelayStats relayStats,
                                 long startTime, String clientAddress) {
         this.clientCtx = clientCtx;
         this.targetHost = targetHost;
         this.targetPort = targetPort;
         this.config = config;
         this.accessLog = accessLog;
+        this.relayStats = relayStats;
         this.startTime = startTime;
         this.clientAddress = clientAddress;
     }
 
+    /**
+     * Sends the HTTP CONNECT request immediately when added to an already-connected
+     * (pooled) upstream channel, which will not fire {@code channelActive} again.
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            sendConnectRequest(ctx);
+        }
+    }
+
     /**
      * Called when upstream connection is established.
      * Sends HTTP CONNECT request to upstream proxy.
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
+        sendConnectRequest(ctx);
+    }
+
+    /**
+     * Builds and sends the HTTP CONNECT request to the upstream proxy.
+     */
+    private void sendConnectRequest(ChannelHandlerContext ctx) {
         // Build HTTP CONNECT request
         FullHttpRequest connectRequest = new DefaultFullHttpRequest(
                 HttpVersion.HTTP_1_1, HttpMethod.CONNECT, targetHost + ":" + targetPort);
@@ -91,17 +118,24 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
      */
     @Override
     protected void channelRead0(ChannelHandlerContext upstreamCtx, FullHttpResponse response) {
+        if (!clientCtx.channel().isActive()) {
+            // Client left while the tunnel was being opened
+            upstreamCtx.close();
+            return;
+        }
         if (response.status().code() == 200) {
             log.debug("SOCKS5 upstream CONNECT successful for {}:{}", targetHost, targetPort);
 
-            // Send SOCKS5 success response to client
-            // Use local address as the bound address (required by SOCKS5 protocol)
-            InetSocketAddress upstreamAddr = (InetSocketAddress) upstreamCtx.channel().localAddress();
-            clientCtx.writeAndFlush(new DefaultSocks5CommandResponse(
-                    Socks5CommandStatus.SUCCESS,
-                    Socks5AddressType.IPv4,
-                    upstreamAddr.getAddress().getHostAddress(),
-                    upstreamAddr.getPort()));
+            if (!config.socksFastOpen()) {
+                // Send SOCKS5 success response to client
+                // Use local address as the bound address (required by SOCKS5 protocol)
+                InetSocketAddress upstreamAddr = (InetSocketAddress) upstreamCtx.channel().localAddress();
+                clientCtx.writeAndFlush(new DefaultSocks5CommandResponse(
+                        Socks5CommandStatus.SUCCESS,
+                        Socks5AddressType.IPv4,
+                        upstreamAddr.getAddress().getHostAddress(),
+                        upstreamAddr.getPort()));
+            }
 
             // Switch both channels to relay mode
             switchToRelayMode(upstreamCtx);
@@ -111,10 +145,7 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
             // Log failed access
             logAccess(response.status().code(), 0);
 
-            // Send SOCKS5 failure response to client
-            clientCtx.writeAndFlush(new DefaultSocks5CommandResponse(
-                            Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
-                    .addListener(ChannelFutureListener.CLOSE);
+            failClient();
             upstreamCtx.close();
         }
     }
@@ -142,11 +173,17 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
         Runnable logCallback = () -> logAccess(200, totalBytes.get());
 
         // Add relay handlers for bidirectional byte forwarding with bytes tracking
-        RelayHandler clientRelay = new RelayHandler(upstreamChannel, null);
-        RelayHandler upstreamRelay = new RelayHandler(clientChannel, null);
+        // (kernel splice when enabled and both sides are plaintext epoll sockets)
+        boolean splice = config.relaySplice()
+                && SpliceRelayHandler.canSplice(clientChannel, upstreamChannel);
+        RelayHandler clientRelay = newRelay(upstreamChannel, splice);
+        RelayHandler upstreamRelay = newRelay(clientChannel, splice);
         
         clientChannel.pipeline().addLast("relay", clientRelay);
         upstreamChannel.pipeline().addLast("relay", upstreamRelay);
+
+        // Fast open: hand the client bytes held so far to the relay
+        removeHandlerSafely(clientChannel.pipeline(), EarlyDataHandler.class);
         
         // Log access when connection closes
         clientChannel.closeFuture().addListener(f -> {
@@ -164,9 +201,8 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
     private void logAccess(int statusCode, long bytes) {
         if (accessLog != null) {
             long duration = System.currentTimeMillis() - startTime;
-            String url = targetHost + ":" + targetPort;
             boolean success = statusCode == 200;
-            accessLog.logSocks5Connect(clientAddress, url, success, duration, bytes);
+            accessLog.logSocks5Connect(clientAddress, targetHost, targetPort, success, duration, bytes);
         }
     }
 
@@ -191,15 +227,53 @@ public class Socks5ConnectHandler extends SimpleChannelInboundHandler<FullHttpRe
         }
     }
 
+    /**
+     * Sends the SOCKS5 failure response and closes the client, or just closes it if
+     * fast open already sent success.
+     */
+    private void failClient() {
+        if (config.socksFastOpen()) {
+            clientCtx.channel().close();
+            return;
+        }
+        clientCtx.writeAndFlush(new DefaultSocks5CommandResponse(
+                            Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Creates the relay handler that forwards bytes to the given channel.
+     *
+     * @param target Channel to forward bytes to
+     * @param splice Whether to use kernel splice
+     * @return Relay handler
+     */
+    private RelayHandler newRelay(Channel target, boolean splice) {
+        int maxReadsPerFlush = config.relayMaxReadsPerFlush();
+        return splice
+                ? new SpliceRelayHandler(target, maxReadsPerFlush, relayStats)
+                : new RelayHandler(target, null, maxReadsPerFlush, relayStats);
+    }
+
+    /**
+     * Closes the client if upstream goes away before answering a fast-open CONNECT (the
+     * handler leaves the pipeline once the relay starts).
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (config.socksFastOpen()) {
+            clientCtx.channel().close();
+        }
+        ctx.fireChannelInactive();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("SOCKS5 upstream error: {}", cause.getMessage());
 
         // Send SOCKS5 failure to client
         if (clientCtx.channel().isActive()) {
-            clientCtx.writeAndFlush(new DefaultSocks5CommandResponse(
-                            Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
-                    .addListener(ChannelFutureListener.CLOSE);
+            failClient();
         }
         ctx.close();
     }
@@ -2,17 +2,20 @@ package xzy.fz.log;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import xzy.fz.config.Config;
+import xzy.fz.stats.StatsSource;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Squid-style access log writer with high-readability timestamps.
@@ -26,49 +29,153 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <pre>
  * 2025-12-31 10:30:45 150 192.168.1.100 TCP_TUNNEL/200 1234 CONNECT example.com:443 - HIER_DIRECT/example.com -
  * 2025-12-31 10:30:46 200 192.168.1.100 TCP_MISS/200 5678 GET http://example.com/ - HIER_DIRECT/example.com text/html
+ * 2025-12-31 10:30:47 0 192.168.1.100 TCP_HIT/200 5678 GET http://example.com/ - HIER_NONE/- text/html
  * </pre>
  * <p>
- * The log writer uses an async queue to avoid blocking request handling.
+ * With {@code access.log.format=binary} the file holds compact records with
+ * dictionary-encoded strings instead (see {@link BinaryFormat}), which
+ * {@link AccessLogQuery} summarizes without parsing text; nothing is printed to the console.
+ *
+ * <h2>Writing:</h2>
+ * Request threads copy each entry into a slot of a preallocated ring
+ * ({@code access.log.bufferEntries}) and never block; if the ring is full the entry is
+ * dropped and counted. Request threads only capture the entry's fields; a single
+ * "access-log-writer" thread formats the lines (see {@link SquidFormat}) in batches into a
+ * reusable direct buffer and writes each batch with one {@link FileChannel#write} per
+ * output. Lines reach the file at most {@code access.log.flushIntervalMillis} after they
+ * are logged (at once if 0), and with {@code access.log.fsync} each write is also forced
+ * to disk.
+ *
+ * <h2>Sampling and aggregation:</h2>
+ * Failed tunnels and plain HTTP requests are always logged. Successful tunnels are logged
+ * one in {@code access.log.tunnel.sampleRate}, chosen deterministically (0 logs none).
+ * With {@code access.log.tunnel.aggregateSeconds} the others are not skipped but folded
+ * into one summary line per client, destination, action and window, which carries their
+ * count, total bytes and median and 99th percentile duration (see {@link TunnelAggregator};
+ * approximate above {@value TunnelAggregator#MAX_SAMPLES} tunnels); a summary's duration
+ * field is the median:
+ * <pre>
+ * 2025-12-31 10:31:00 38 192.168.1.100 TCP_TUNNEL/200 912345 CONNECT example.com:443 - HIER_DIRECT/example.com - count=1200 p50=38 p99=95
+ * </pre>
+ * Every tunnel is thus either logged on its own or counted in exactly one summary.
+ *
+ * <h2>Rotation:</h2>
+ * With {@code access.log.rotate.maxBytes} and/or {@code access.log.rotate.intervalSeconds}
+ * the file is renamed to {@code <name>.<yyyyMMdd-HHmmss>} when it grows too large or the
+ * interval ends (checked before each batch), and the old segment is compressed ({@code access.log.rotate.compress})
+ * and pruned to the newest {@code access.log.rotate.keep} in the background (see
+ * {@link LogFile}).
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * access_log_entries_total      Entries written individually
+ * access_log_dropped_total      Entries dropped because the ring was full
+ * access_log_writes_total       Batches written
+ * access_log_sampled_out_total  Successful tunnels not logged (sampling without aggregation)
+ * access_log_aggregated_total   Successful tunnels folded into summaries
+ * access_log_summaries_total    Summary lines written
+ * </pre>
  */
-public final class AccessLog implements AutoCloseable {
+public final class AccessLog implements StatsSource, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
 
-    /** Timestamp format: yyyy-MM-dd HH:mm:ss for high readability */
-    private static final DateTimeFormatter TIMESTAMP_FORMAT =
-            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    /** Size of the batch buffer; a batch is written early once it is full */
+    private static final int BATCH_BYTES = 256 * 1024;
 
-    /** Async log queue to avoid blocking request handling */
-    private final BlockingQueue<String> logQueue = new LinkedBlockingQueue<>(10000);
+    /** Longest time the writer sleeps when there is nothing to write */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Minimum time between two "dropped entries" warnings */
+    private static final long DROP_REPORT_INTERVAL_MILLIS = 1000;
+
+    /** Entries handed from request threads to the writer */
+    private final EntryRing ring;
+
+    /** Positions at which a producer wakes a sleeping writer (mask of the position's low bits) */
+    private final long wakeMask;
+
+    private final long flushIntervalMillis;
+    private final boolean fsync;
 
     /** Writer thread running flag */
-    private final AtomicBoolean running = new AtomicBoolean(true);
+    private volatile boolean running = true;
+
+    /** Whether the writer is (about to be) parked and needs an unpark to notice new entries */
+    private volatile boolean writerParked;
 
     /** Log file path (null for stdout only) */
     private final Path logFilePath;
 
-    /** Log file writer */
-    private PrintWriter fileWriter;
+    /** Log file (null if disabled or it could not be opened) */
+    private final LogFile logFile;
+
+    /** Standard output, if the log is also printed to the console (never closed) */
+    private final WritableByteChannel consoleChannel;
+
+    /** Lines formatted but not yet written (writer thread only) */
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+
+    /** Entry encoder (writer thread only) */
+    private final EntryFormat format;
+
+    /** Time of the oldest entry in {@link #batch} (writer thread only) */
+    private long pendingSince;
+
+    /** Successful tunnels are logged one in this many (0: none); the others are aggregated or skipped */
+    private final int tunnelSampleRate;
+
+    /** Successful tunnels seen, and the one sampled from the current block (writer thread only) */
+    private long tunnels;
+    private long sampledTunnel;
+
+    /** Folds tunnels that are not sampled into summaries (null if disabled) */
+    private final TunnelAggregator aggregator;
+
+    /** Entry the aggregator's summaries are filled into (writer thread only) */
+    private final EntryRing.Slot summary = new EntryRing.Slot();
 
     /** Writer thread */
     private final Thread writerThread;
 
-    /** Whether to also output to console */
-    private final boolean consoleOutput;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder aggregated = new LongAdder();
+    private final LongAdder summaries = new LongAdder();
 
     /**
      * Creates an access log instance.
      *
-     * @param logFile       Path to log file (null or empty for stdout only)
-     * @param consoleOutput Whether to also output to console
+     * @param config Proxy configuration ({@code access.log.*} settings)
      */
-    public AccessLog(String logFile, boolean consoleOutput) {
-        this.consoleOutput = consoleOutput;
+    public AccessLog(Config config) {
+        this.ring = new EntryRing(config.accessLogBufferEntries());
+        this.flushIntervalMillis = Math.max(0, config.accessLogFlushIntervalMillis());
+        this.fsync = config.accessLogFsync();
+        // Batched writes only need the writer every quarter ring (every entry for rings
+        // below 8 slots); unbatched ones at once
+        this.wakeMask = flushIntervalMillis == 0 ? 0 : Math.max(ring.capacity() / 4, 1) - 1;
+        this.format = newFormat(config.accessLogFormat());
+        this.tunnelSampleRate = Math.max(0, config.accessLogTunnelSampleRate());
+        this.aggregator = config.accessLogTunnelAggregateSeconds() > 0
+                ? new TunnelAggregator(config.accessLogTunnelAggregateSeconds() * 1000L) : null;
+
+        String file = config.accessLogFile();
+        boolean binary = format instanceof BinaryFormat;
+        if (binary && (file == null || file.isBlank())) {
+            throw new IllegalArgumentException("access.log.format=binary requires access.log.file");
+        }
+        // Binary records are not for the console
+        this.consoleChannel = config.accessLogConsole() && !binary
+                ? new FileOutputStream(FileDescriptor.out).getChannel() : null;
 
-        if (logFile != null && !logFile.isBlank()) {
-            this.logFilePath = Path.of(logFile);
-            initFileWriter();
+        if (file != null && !file.isBlank()) {
+            this.logFilePath = Path.of(file);
+            this.logFile = openLogFile(config);
         } else {
             this.logFilePath = null;
+            this.logFile = null;
         }
 
         // Start async writer thread
@@ -76,42 +183,62 @@ public final class AccessLog implements AutoCloseable {
         this.writerThread.setDaemon(true);
         this.writerThread.start();
 
-        log.info("Access log initialized: file={}, console={}",
-                logFilePath != null ? logFilePath : "disabled", consoleOutput);
+        log.info("Access log initialized: file={}, format={}, console={}, buffer={} entries, flush={}ms, fsync={}",
+                logFilePath != null ? logFilePath : "disabled", binary ? "binary" : "squid",
+                consoleChannel != null, ring.capacity(), flushIntervalMillis, fsync);
+    }
+
+    private static EntryFormat newFormat(String name) {
+        return switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "squid", "" -> new SquidFormat();
+            case "binary" -> new BinaryFormat();
+            default -> throw new IllegalArgumentException(
+                    "Unknown access log format: " + name + " (supported: squid, binary)");
+        };
     }
 
     /**
-     * Initializes the file writer.
+     * Opens the log file for appending.
      */
-    private void initFileWriter() {
+    private LogFile openLogFile(Config config) {
+        LogFile.Compression compression = LogFile.Compression.parse(config.accessLogRotateCompress());
         try {
-            // Create parent directories if needed
-            if (logFilePath.getParent() != null) {
-                Files.createDirectories(logFilePath.getParent());
-            }
-
-            // Open file for appending
-            OutputStream out = Files.newOutputStream(logFilePath,
-                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-            this.fileWriter = new PrintWriter(new BufferedWriter(
-                    new OutputStreamWriter(out, StandardCharsets.UTF_8)), true);
-
+            LogFile opened = new LogFile(logFilePath, Math.max(0, config.accessLogRotateMaxBytes()),
+                    Math.max(0, config.accessLogRotateIntervalSeconds()) * 1000L,
+                    Math.max(0, config.accessLogRotateKeep()), compression);
             log.debug("Access log file opened: {}", logFilePath);
+            return opened;
         } catch (IOException e) {
             log.error("Failed to open access log file {}: {}", logFilePath, e.getMessage());
-            this.fileWriter = null;
+            return null;
         }
     }
 
     /**
-     * Logs a completed request in Squid-style format.
-     *
-     * @param entry The access log entry to write
+     * Copies an entry into the ring; drops it if the ring is full.
      */
-    public void log(AccessLogEntry entry) {
-        String line = formatEntry(entry);
-        if (!logQueue.offer(line)) {
-            log.warn("Access log queue full, dropping entry");
+    private void append(long durationMs, String clientAddress, String action, int statusCode,
+                        long bytesWritten, String method, String target, int port, boolean fromCache,
+                        String contentType) {
+        EntryRing.Slot slot = ring.claim();
+        if (slot == null) {
+            dropped.increment();
+            return;
+        }
+        slot.timestampMillis = System.currentTimeMillis();
+        slot.durationMs = durationMs;
+        slot.clientAddress = clientAddress;
+        slot.action = action;
+        slot.statusCode = statusCode;
+        slot.bytesWritten = bytesWritten;
+        slot.method = method;
+        slot.target = target;
+        slot.port = port;
+        slot.fromCache = fromCache;
+        slot.contentType = contentType;
+        long position = ring.publish(slot);
+        if ((position & wakeMask) == 0 && writerParked) {
+            LockSupport.unpark(writerThread);
         }
     }
 
@@ -119,87 +246,55 @@ public final class AccessLog implements AutoCloseable {
      * Logs a CONNECT tunnel request.
      *
      * @param clientAddress Client IP address
-     * @param target        Target host:port
+     * @param host          Target host
+     * @param port          Target port
      * @param statusCode    HTTP status code
      * @param durationMs    Request duration in milliseconds
      * @param bytesWritten  Total bytes transferred
      */
-    public void logConnect(String clientAddress, String target, int statusCode,
+    public void logConnect(String clientAddress, String host, int port, int statusCode,
                            long durationMs, long bytesWritten) {
-        AccessLogEntry entry = new AccessLogEntry(
-                LocalDateTime.now(),
-                durationMs,
-                clientAddress,
-                "TCP_TUNNEL",
-                statusCode,
-                bytesWritten,
-                "CONNECT",
-                target,
-                "-",
-                "HIER_DIRECT/" + extractHost(target),
-                "-"
-        );
-        log(entry);
+        append(durationMs, clientAddress, "TCP_TUNNEL", statusCode, bytesWritten,
+                "CONNECT", host, port, false, null);
     }
 
     /**
      * Logs a SOCKS5 CONNECT request.
      *
      * @param clientAddress Client IP address
-     * @param target        Target host:port
+     * @param host          Target host
+     * @param port          Target port
      * @param success       Whether connection was successful
      * @param durationMs    Request duration in milliseconds
      * @param bytesWritten  Total bytes transferred
      */
-    public void logSocks5Connect(String clientAddress, String target, boolean success,
+    public void logSocks5Connect(String clientAddress, String host, int port, boolean success,
                                   long durationMs, long bytesWritten) {
-        AccessLogEntry entry = new AccessLogEntry(
-                LocalDateTime.now(),
-                durationMs,
-                clientAddress,
-                success ? "TCP_TUNNEL" : "TCP_DENIED",
-                success ? 200 : 403,
-                bytesWritten,
-                "SOCKS5_CONNECT",
-                target,
-                "-",
-                "HIER_DIRECT/" + extractHost(target),
-                "-"
-        );
-        log(entry);
+        append(durationMs, clientAddress, success ? "TCP_TUNNEL" : "TCP_DENIED", success ? 200 : 403,
+                bytesWritten, "SOCKS5_CONNECT", host, port, false, null);
     }
 
     /**
      * Logs a SOCKS4 CONNECT request.
      *
      * @param clientAddress Client IP address
-     * @param target        Target host:port
+     * @param host          Target host
+     * @param port          Target port
      * @param success       Whether connection was successful
      * @param durationMs    Request duration in milliseconds
      * @param bytesWritten  Total bytes transferred
      */
-    public void logSocks4Connect(String clientAddress, String target, boolean success,
+    public void logSocks4Connect(String clientAddress, String host, int port, boolean success,
                                   long durationMs, long bytesWritten) {
-        AccessLogEntry entry = new AccessLogEntry(
-                LocalDateTime.now(),
-                durationMs,
-                clientAddress,
-                success ? "TCP_TUNNEL" : "TCP_DENIED",
-                success ? 200 : 403,
-                bytesWritten,
-                "SOCKS4_CONNECT",
-                target,
-                "-",
-                "HIER_DIRECT/" + extractHost(target),
-                "-"
-        );
-        log(entry);
+        append(durationMs, clientAddress, success ? "TCP_TUNNEL" : "TCP_DENIED", success ? 200 : 403,
+                bytesWritten, "SOCKS4_CONNECT", host, port, false, null);
     }
 
     /**
      * Logs an HTTP forward request (non-CONNECT).
      *
      * @param clientAddress Client IP address
+     * @param action        Result code, e.g. TCP_MISS or TCP_REFRESH_HIT
      * @param method        HTTP method (GET, POST, etc.)
      * @param uri           Request URI
      * @param statusCode    Response status code
@@ -207,140 +302,224 @@ public final class AccessLog implements AutoCloseable {
      * @param bytesWritten  Response size in bytes
      * @param contentType   Response content type
      */
-    public void logHttpForward(String clientAddress, String method, String uri,
+    public void logHttpForward(String clientAddress, String action, String method, String uri,
                                 int statusCode, long durationMs, long bytesWritten,
                                 String contentType) {
-        AccessLogEntry entry = new AccessLogEntry(
-                LocalDateTime.now(),
-                durationMs,
-                clientAddress,
-                "TCP_MISS",
-                statusCode,
-                bytesWritten,
-                method,
-                uri,
-                "-",
-                "HIER_DIRECT/" + extractHostFromUri(uri),
-                contentType != null ? contentType : "-"
-        );
-        log(entry);
+        append(durationMs, clientAddress, action, statusCode, bytesWritten, method, uri, -1, false, contentType);
     }
 
     /**
-     * Formats a log entry as a Squid-style line.
+     * Logs an HTTP request answered from the cache without contacting upstream.
+     *
+     * @param clientAddress Client IP address
+     * @param action        Result code, e.g. TCP_HIT or TCP_IMS_HIT
+     * @param method        HTTP method (GET or HEAD)
+     * @param uri           Request URI
+     * @param statusCode    Response status code
+     * @param durationMs    Request duration in milliseconds
+     * @param bytesWritten  Response size in bytes
+     * @param contentType   Response content type
      */
-    private String formatEntry(AccessLogEntry entry) {
-        // Format: timestamp duration client action/code size method URL user hierarchy content-type
-        return String.format("%s %d %s %s/%d %d %s %s %s %s %s",
-                TIMESTAMP_FORMAT.format(entry.timestamp()),
-                entry.durationMs(),
-                entry.clientAddress(),
-                entry.action(),
-                entry.statusCode(),
-                entry.bytesWritten(),
-                entry.method(),
-                entry.uri(),
-                entry.user(),
-                entry.hierarchy(),
-                entry.contentType()
-        );
+    public void logCacheHit(String clientAddress, String action, String method, String uri,
+                            int statusCode, long durationMs, long bytesWritten,
+                            String contentType) {
+        append(durationMs, clientAddress, action, statusCode, bytesWritten, method, uri, -1, true, contentType);
     }
 
     /**
-     * Extracts host from host:port format.
+     * Async writer loop - drains the ring into the batch buffer and writes it out once
+     * the oldest buffered line is due.
      */
-    private String extractHost(String target) {
-        int colonIdx = target.lastIndexOf(':');
-        return colonIdx > 0 ? target.substring(0, colonIdx) : target;
+    private void writeLoop() {
+        long lastDropReport = 0;
+        long reportedDrops = 0;
+        while (true) {
+            // Anything published before close() is still drained on the last pass
+            boolean stopping = !running;
+            int drained = 0;
+            int logged = 0;
+            for (EntryRing.Slot slot = ring.poll(); slot != null; slot = ring.poll()) {
+                if (handle(slot)) {
+                    logged++;
+                }
+                ring.release(slot);
+                drained++;
+            }
+            written.add(logged);
+
+            long now = System.currentTimeMillis();
+            if (aggregator != null && (stopping || aggregator.due(now))) {
+                drainSummaries(now);
+            }
+            long drops = dropped.sum();
+            if (drops > reportedDrops && now - lastDropReport >= DROP_REPORT_INTERVAL_MILLIS) {
+                log.warn("Access log buffer full, dropped {} entries", drops - reportedDrops);
+                reportedDrops = drops;
+                lastDropReport = now;
+            }
+
+            if (batch.position() > 0 && (stopping || now - pendingSince >= flushIntervalMillis)) {
+                writeBatch();
+            }
+            if (stopping) {
+                return;
+            }
+
+            long parkNanos = batch.position() > 0
+                    ? TimeUnit.MILLISECONDS.toNanos(pendingSince + flushIntervalMillis - now)
+                    : Math.max(IDLE_PARK_NANOS, TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+            if (drained == 0 && parkNanos > 0) {
+                if (!ring.isEmpty()) {
+                    // A producer is between claiming and publishing the next slot
+                    Thread.yield();
+                    continue;
+                }
+                writerParked = true;
+                if (running && ring.isEmpty()) {
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+                writerParked = false;
+            }
+        }
     }
 
     /**
-     * Extracts host from a full URI.
+     * Logs an entry individually, unless it is a successful tunnel that is not sampled: that
+     * goes into the current summaries if aggregation is on, and is skipped otherwise.
+     * Failures are always logged.
+     *
+     * @return Whether the entry was logged individually
      */
-    private String extractHostFromUri(String uri) {
-        try {
-            if (uri.startsWith("http://")) {
-                String afterScheme = uri.substring(7);
-                int slashIdx = afterScheme.indexOf('/');
-                return slashIdx > 0 ? afterScheme.substring(0, slashIdx) : afterScheme;
-            } else if (uri.startsWith("https://")) {
-                String afterScheme = uri.substring(8);
-                int slashIdx = afterScheme.indexOf('/');
-                return slashIdx > 0 ? afterScheme.substring(0, slashIdx) : afterScheme;
+    private boolean handle(EntryRing.Slot entry) {
+        boolean successfulTunnel = entry.port >= 0 && entry.statusCode == 200;
+        if (successfulTunnel && !sampleTunnel()) {
+            if (aggregator == null) {
+                sampledOut.increment();
+                return false;
+            }
+            if (aggregator.due(entry.timestampMillis)) {
+                drainSummaries(entry.timestampMillis);
             }
-            return uri;
-        } catch (Exception e) {
-            return uri;
+            if (aggregator.add(entry)) {
+                aggregated.increment();
+                return false;
+            }
+            // Too many keys in this window
         }
+        encode(entry);
+        return true;
     }
 
     /**
-     * Async writer loop - pulls entries from queue and writes to outputs.
+     * Picks exactly one tunnel out of each block of {@link #tunnelSampleRate}: the same ones on
+     * every run, but at a scrambled position in the block, so that periodic traffic (say,
+     * alternating clients) cannot line up with the rate.
      */
-    private void writeLoop() {
-        while (running.get() || !logQueue.isEmpty()) {
-            try {
-                String line = logQueue.poll(100, java.util.concurrent.TimeUnit.MILLISECONDS);
-                if (line != null) {
-                    writeLine(line);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+    private boolean sampleTunnel() {
+        if (tunnelSampleRate <= 1) {
+            return tunnelSampleRate == 1;
+        }
+        long position = tunnels++;
+        if (position % tunnelSampleRate == 0) {
+            sampledTunnel = position + Long.remainderUnsigned(mix(position / tunnelSampleRate), tunnelSampleRate);
+        }
+        return position == sampledTunnel;
+    }
+
+    /** Murmur3 64-bit finalizer */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private void drainSummaries(long now) {
+        summaries.add(aggregator.drain(summary, this::encode, now));
+    }
+
+    /**
+     * Adds an entry's line to the batch, writing the batch out first if the line might not fit.
+     */
+    private void encode(EntryRing.Slot entry) {
+        int maxLength = format.maxLength(entry);
+        if (maxLength > batch.remaining() && batch.position() > 0) {
+            writeBatch();
+        }
+        if (batch.position() == 0) {
+            pendingSince = entry.timestampMillis;
+            if (logFile != null && logFile.rotateIfDue()) {
+                format.startFile();
             }
         }
+        if (maxLength > batch.capacity()) {
+            // Possibly longer than the whole buffer
+            ByteBuffer oversized = ByteBuffer.allocate(maxLength);
+            format.encode(entry, oversized);
+            write(oversized.flip());
+            return;
+        }
+        format.encode(entry, batch);
+    }
 
-        // Flush remaining entries
-        logQueue.forEach(this::writeLine);
+    private void writeBatch() {
+        write(batch.flip());
+        batch.clear();
     }
 
     /**
-     * Writes a line to configured outputs.
+     * Writes buffered lines to the configured outputs.
      */
-    private void writeLine(String line) {
-        // Write to file if configured
-        if (fileWriter != null) {
-            fileWriter.println(line);
+    private void write(ByteBuffer lines) {
+        if (logFile != null) {
+            try {
+                logFile.write(lines.duplicate(), fsync);
+            } catch (IOException e) {
+                log.error("Failed to write access log file {}: {}", logFilePath, e.getMessage());
+            }
+        }
+        if (consoleChannel != null) {
+            try {
+                writeFully(consoleChannel, lines.duplicate());
+            } catch (IOException e) {
+                log.debug("Failed to write access log to console: {}", e.getMessage());
+            }
         }
+        writes.increment();
+    }
 
-        // Write to console if enabled
-        if (consoleOutput) {
-            System.out.println(line);
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
     }
 
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("access_log_entries_total ").append(written.sum()).append('\n');
+        out.append("access_log_dropped_total ").append(dropped.sum()).append('\n');
+        out.append("access_log_writes_total ").append(writes.sum()).append('\n');
+        out.append("access_log_sampled_out_total ").append(sampledOut.sum()).append('\n');
+        out.append("access_log_aggregated_total ").append(aggregated.sum()).append('\n');
+        out.append("access_log_summaries_total ").append(summaries.sum()).append('\n');
+    }
+
     /**
      * Closes the access log and flushes remaining entries.
      */
     @Override
     public void close() {
-        running.set(false);
+        running = false;
+        LockSupport.unpark(writerThread);
         try {
             writerThread.join(5000);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
 
-        if (fileWriter != null) {
-            fileWriter.close();
+        if (logFile != null) {
+            logFile.close();
         }
     }
-
-    /**
-     * Access log entry record.
-     */
-    public record AccessLogEntry(
-            LocalDateTime timestamp,
-            long durationMs,
-            String clientAddress,
-            String action,
-            int statusCode,
-            long bytesWritten,
-            String method,
-            String uri,
-            String user,
-            String hierarchy,
-            String contentType
-    ) {
-    }
 }
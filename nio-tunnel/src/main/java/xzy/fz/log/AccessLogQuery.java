@@ -0,0 +1,373 @@
+package xzy.fz.log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Summarizes binary access logs ({@code access.log.format=binary}, see {@link BinaryFormat}).
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp nio-tunnel.jar xzy.fz.log.AccessLogQuery [--top=N] [--by=bytes|count] FILE|DIR...
+ * </pre>
+ * Reads the given files, or the binary logs in the given directories (rotated segments
+ * included), and prints entry and byte totals, duration percentiles and the top
+ * destinations. Uncompressed files are memory-mapped and scanned in place; gzipped
+ * segments are inflated in memory. Records are read at fixed offsets and strings are only
+ * decoded once per dictionary entry, so no text is parsed per entry.
+ */
+public final class AccessLogQuery {
+    /** Largest part of a file mapped at once */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private final Histogram durations = new Histogram();
+    private long entries;
+    private long bytes;
+    private long failures;
+    private long summarized;
+    private long firstMillis = Long.MAX_VALUE;
+    private long lastMillis = Long.MIN_VALUE;
+
+    /** Dictionary of the file being read: strings and the destinations they resolved to */
+    private final List<String> strings = new ArrayList<>();
+    private final List<Destination> resolved = new ArrayList<>();
+
+    private AccessLogQuery() {
+    }
+
+    /**
+     * Entry point of the query tool.
+     *
+     * @param args Options and input files or directories (see {@code --help})
+     */
+    public static void main(String[] args) {
+        int top = 10;
+        boolean byCount = false;
+        List<Path> inputs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--help") || arg.equals("-h")) {
+                printHelp();
+                return;
+            } else if (arg.startsWith("--top=")) {
+                top = Integer.parseInt(arg.substring(6));
+            } else if (arg.startsWith("--by=")) {
+                byCount = arg.substring(5).equals("count");
+            } else {
+                inputs.add(Path.of(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            printHelp();
+            System.exit(1);
+        }
+
+        AccessLogQuery query = new AccessLogQuery();
+        for (Path input : inputs) {
+            for (Path file : files(input)) {
+                try {
+                    query.read(file);
+                } catch (IOException | IllegalStateException e) {
+                    System.err.println("Skipping " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        query.print(top, byCount);
+    }
+
+    private static void printHelp() {
+        System.out.println("""
+            Usage: java -cp nio-tunnel.jar xzy.fz.log.AccessLogQuery [options] FILE|DIR...
+
+            Summarizes binary access logs (access.log.format=binary), rotated and
+            gzipped segments included.
+
+            Options:
+              --top=N              Destinations listed (default: 10)
+              --by=bytes|count     Rank destinations by bytes or entries (default: bytes)
+              --help, -h           Show this help message
+            """);
+    }
+
+    /**
+     * Expands a directory into its regular files.
+     */
+    private static List<Path> files(Path input) {
+        if (!Files.isDirectory(input)) {
+            return List.of(input);
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(input, Files::isRegularFile)) {
+            for (Path file : dir) {
+                if (isBinaryLog(file)) {
+                    files.add(file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Skipping " + input + ": " + e.getMessage());
+        }
+        files.sort(Comparator.naturalOrder());
+        return files;
+    }
+
+    private static boolean isBinaryLog(Path file) {
+        try (InputStream in = open(file)) {
+            byte[] head = in.readNBytes(BinaryFormat.RECORD_PREFIX + BinaryFormat.MAGIC.length);
+            return head.length == BinaryFormat.RECORD_PREFIX + BinaryFormat.MAGIC.length
+                    && head[2] == BinaryFormat.HEADER
+                    && Arrays.equals(head, BinaryFormat.RECORD_PREFIX, head.length,
+                    BinaryFormat.MAGIC, 0, BinaryFormat.MAGIC.length);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return file.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    private void read(Path file) throws IOException {
+        strings.clear();
+        resolved.clear();
+        if (file.getFileName().toString().endsWith(".gz")) {
+            byte[] content;
+            try (InputStream in = open(file)) {
+                content = in.readAllBytes();
+            }
+            scan(ByteBuffer.wrap(content), true);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(size - offset, MAP_WINDOW));
+                int consumed = scan(window, offset == 0);
+                if (consumed == 0) {
+                    // A record cut short, e.g. the one being written to a live log
+                    break;
+                }
+                offset += consumed;
+            }
+        }
+    }
+
+    /**
+     * Reads the complete records in a buffer.
+     *
+     * @param start Whether the buffer starts the file (and must start with a HEADER)
+     * @return Bytes of the records read
+     */
+    private int scan(ByteBuffer in, boolean start) {
+        if (start) {
+            int type = in.remaining() >= BinaryFormat.RECORD_PREFIX ? in.get(2) : -1;
+            if (type != BinaryFormat.HEADER) {
+                throw new IllegalStateException("not a binary access log");
+            }
+        }
+        int position = 0;
+        int limit = in.limit();
+        while (limit - position >= BinaryFormat.RECORD_PREFIX) {
+            int length = in.getShort(position) & 0xFFFF;
+            int body = position + BinaryFormat.RECORD_PREFIX;
+            if (limit - body < length) {
+                break;
+            }
+            switch (in.get(position + 2)) {
+                case BinaryFormat.HEADER -> header(in, body, length);
+                case BinaryFormat.STRING -> {
+                    byte[] utf8 = new byte[length];
+                    in.get(body, utf8);
+                    strings.add(new String(utf8, StandardCharsets.UTF_8));
+                    resolved.add(null);
+                }
+                case BinaryFormat.ENTRY -> entry(in, body, length);
+                default -> {
+                    // Unknown record type, skipped
+                }
+            }
+            position = body + length;
+        }
+        return position;
+    }
+
+    private void header(ByteBuffer in, int body, int length) {
+        byte[] magic = new byte[BinaryFormat.MAGIC.length];
+        if (length > magic.length) {
+            in.get(body, magic);
+        }
+        if (!Arrays.equals(magic, BinaryFormat.MAGIC)) {
+            throw new IllegalStateException("not a binary access log");
+        }
+        if (in.get(body + magic.length) != BinaryFormat.VERSION) {
+            throw new IllegalStateException("unsupported binary access log version");
+        }
+        strings.clear();
+        resolved.clear();
+    }
+
+    private void entry(ByteBuffer in, int body, int length) {
+        if (length < BinaryFormat.ENTRY_FIXED_LENGTH) {
+            throw new IllegalStateException("truncated entry record");
+        }
+        long timestamp = in.getLong(body);
+        int duration = in.getInt(body + 8);
+        long size = in.getLong(body + 12);
+        int status = in.getShort(body + 20) & 0xFFFF;
+        int flags = in.get(body + 24);
+        int host = in.getShort(body + 31) & 0xFFFF;
+        int count = 1;
+        if ((flags & BinaryFormat.FLAG_SUMMARY) != 0) {
+            if (length < BinaryFormat.ENTRY_FIXED_LENGTH + BinaryFormat.SUMMARY_LENGTH) {
+                throw new IllegalStateException("truncated summary record");
+            }
+            count = in.getInt(body + BinaryFormat.ENTRY_FIXED_LENGTH);
+            summarized += count;
+        } else {
+            // A summary only has the median and p99 of its tunnels
+            durations.record(duration);
+        }
+
+        entries += count;
+        bytes += size;
+        if (status >= 400) {
+            failures += count;
+        }
+        firstMillis = Math.min(firstMillis, timestamp);
+        lastMillis = Math.max(lastMillis, timestamp);
+
+        Destination destination = destination(host);
+        destination.entries += count;
+        destination.bytes += size;
+    }
+
+    private Destination destination(int id) {
+        if (id == BinaryFormat.NONE) {
+            return destinations.computeIfAbsent("-", Destination::new);
+        }
+        if (id >= strings.size()) {
+            throw new IllegalStateException("undefined string id " + id);
+        }
+        Destination destination = resolved.get(id);
+        if (destination == null) {
+            destination = destinations.computeIfAbsent(strings.get(id), Destination::new);
+            resolved.set(id, destination);
+        }
+        return destination;
+    }
+
+    private void print(int top, boolean byCount) {
+        System.out.printf("Entries:   %d (%d failed)%n", entries, failures);
+        if (entries == 0) {
+            return;
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        System.out.printf("Period:    %s - %s%n",
+                TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(firstMillis), zone)),
+                TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(lastMillis), zone)));
+        System.out.printf("Bytes:     %d%n", bytes);
+        if (durations.total() > 0) {
+            System.out.printf("Duration:  p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%s%n",
+                    durations.percentile(50), durations.percentile(90), durations.percentile(99),
+                    durations.percentile(100),
+                    summarized > 0 ? " (excluding " + summarized + " summarized tunnels)" : "");
+        }
+
+        List<Destination> ranked = new ArrayList<>(destinations.values());
+        ranked.sort(byCount
+                ? Comparator.comparingLong((Destination d) -> d.entries).reversed()
+                : Comparator.comparingLong((Destination d) -> d.bytes).reversed());
+        System.out.printf("%nTop %d destinations by %s:%n", Math.min(top, ranked.size()),
+                byCount ? "entries" : "bytes");
+        System.out.printf("%16s %10s  %s%n", "BYTES", "ENTRIES", "HOST");
+        for (Destination destination : ranked.subList(0, Math.min(top, ranked.size()))) {
+            System.out.printf("%16d %10d  %s%n", destination.bytes, destination.entries, destination.host);
+        }
+    }
+
+    private static final class Destination {
+        final String host;
+        long entries;
+        long bytes;
+
+        Destination(String host) {
+            this.host = host;
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values: exact below 1024, within 0.2% above.
+     */
+    private static final class Histogram {
+        private static final int EXACT = 1024;
+        private static final int SUB_BUCKETS = 512;
+
+        private final long[] counts = new long[EXACT + (Integer.SIZE - 10) * SUB_BUCKETS];
+        private long total;
+
+        long total() {
+            return total;
+        }
+
+        void record(int value) {
+            counts[index(Math.max(value, 0))]++;
+            total++;
+        }
+
+        private static int index(int value) {
+            if (value < EXACT) {
+                return value;
+            }
+            int exponent = 31 - Integer.numberOfLeadingZeros(value);
+            int mantissa = value >>> (exponent - 9);
+            return EXACT + (exponent - 10) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+        }
+
+        private static long lowerBound(int index) {
+            if (index < EXACT) {
+                return index;
+            }
+            int exponent = (index - EXACT) / SUB_BUCKETS + 10;
+            long mantissa = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+            return mantissa << (exponent - 9);
+        }
+
+        /**
+         * Gets the smallest recorded value (bucket) that at least {@code percent}% of the
+         * values do not exceed.
+         */
+        long percentile(double percent) {
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
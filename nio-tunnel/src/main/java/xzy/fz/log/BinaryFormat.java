@@ -0,0 +1,162 @@
+package xzy.fz.log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes ring entries as compact binary records ({@code access.log.format=binary}).
+ * <p>
+ * A log is a sequence of length-prefixed records, all numbers big-endian:
+ * <pre>
+ * record  = length:u16 type:u8 body[length]
+ * HEADER  (1) "NTAL" version:u8          starts a file; clears the dictionary
+ * STRING  (2) UTF-8 bytes                defines the next dictionary id (0, 1, ...)
+ * ENTRY   (3) timestamp:i64 duration:i32 bytes:i64 status:u16 port:u16 flags:u8
+ *             client:u16 action:u16 method:u16 host:u16 contentType:u16 [summary] [uri]
+ * summary = count:i32 p99:i32
+ * </pre>
+ * Client addresses, actions, methods, destination hosts and content types are written once
+ * as STRING records and referenced by id ({@value #NONE} for none), so an entry has a fixed
+ * 35-byte body. An entry for a plain HTTP request (flag {@value #FLAG_URI}) is followed by
+ * its request URI and has port 0; {@value #FLAG_CACHE} marks a cache hit. An entry with flag
+ * {@value #FLAG_SUMMARY} summarizes {@code count} tunnels: its bytes are their total and
+ * its duration their median. Strings are cut to {@value #MAX_STRING_CHARS} characters.
+ * <p>
+ * Every file starts with a HEADER, so each rotated segment can be read on its own. The
+ * dictionary is also restarted with a HEADER once it runs out of ids. Unknown record types
+ * are to be skipped. {@link AccessLogQuery} reads this format.
+ */
+final class BinaryFormat implements EntryFormat {
+    static final byte[] MAGIC = {'N', 'T', 'A', 'L'};
+    static final int VERSION = 1;
+
+    static final int HEADER = 1;
+    static final int STRING = 2;
+    static final int ENTRY = 3;
+
+    /** Bytes before a record's body: length and type */
+    static final int RECORD_PREFIX = 3;
+
+    /** Body of an ENTRY record without the URI */
+    static final int ENTRY_FIXED_LENGTH = 35;
+
+    /** Id of an absent string */
+    static final int NONE = 0xFFFF;
+
+    static final int FLAG_CACHE = 1;
+    static final int FLAG_URI = 2;
+    static final int FLAG_SUMMARY = 4;
+
+    /** Summary fields after an ENTRY's fixed body */
+    static final int SUMMARY_LENGTH = 8;
+
+    static final int MAX_STRING_CHARS = 16 * 1024;
+
+    /** Strings one entry can add to the dictionary */
+    private static final int STRINGS_PER_ENTRY = 5;
+
+    /** Ids of the strings defined since the last HEADER */
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /** Whether a HEADER must precede the next entry */
+    private boolean headerDue = true;
+
+    @Override
+    public int maxLength(EntryRing.Slot entry) {
+        // Up to 3 bytes per UTF-16 char; the host is part of the target
+        return RECORD_PREFIX + MAGIC.length + 1
+                + STRINGS_PER_ENTRY * RECORD_PREFIX
+                + 3 * (length(entry.clientAddress) + length(entry.action) + length(entry.method)
+                + 2 * length(entry.target) + length(entry.contentType))
+                + RECORD_PREFIX + ENTRY_FIXED_LENGTH + SUMMARY_LENGTH;
+    }
+
+    @Override
+    public void encode(EntryRing.Slot entry, ByteBuffer out) {
+        if (headerDue || ids.size() > NONE - STRINGS_PER_ENTRY) {
+            ids.clear();
+            int start = beginRecord(HEADER, out);
+            out.put(MAGIC).put((byte) VERSION);
+            endRecord(start, out);
+            headerDue = false;
+        }
+
+        String target = entry.target;
+        boolean uri = entry.port < 0 && target != null;
+        boolean summary = entry.count > 0;
+        int client = id(entry.clientAddress, out);
+        int action = id(entry.action, out);
+        int method = id(entry.method, out);
+        int host;
+        if (uri) {
+            int start = SquidFormat.authorityStart(target);
+            host = id(start == 0 ? target : target.substring(start, SquidFormat.authorityEnd(target, start)), out);
+        } else {
+            host = id(target, out);
+        }
+        int contentType = id(entry.contentType, out);
+
+        int start = beginRecord(ENTRY, out);
+        out.putLong(entry.timestampMillis)
+                .putInt(clampDuration(entry.durationMs))
+                .putLong(entry.bytesWritten)
+                .putShort((short) entry.statusCode)
+                .putShort((short) (uri ? 0 : entry.port))
+                .put((byte) ((entry.fromCache ? FLAG_CACHE : 0) | (uri ? FLAG_URI : 0)
+                        | (summary ? FLAG_SUMMARY : 0)))
+                .putShort((short) client)
+                .putShort((short) action)
+                .putShort((short) method)
+                .putShort((short) host)
+                .putShort((short) contentType);
+        if (summary) {
+            out.putInt(entry.count).putInt(clampDuration(entry.p99Ms));
+        }
+        if (uri) {
+            SquidFormat.putString(target, 0, Math.min(target.length(), MAX_STRING_CHARS), out);
+        }
+        endRecord(start, out);
+    }
+
+    @Override
+    public void startFile() {
+        headerDue = true;
+    }
+
+    /**
+     * Gets a string's dictionary id, defining it first if it is new.
+     */
+    private int id(String s, ByteBuffer out) {
+        if (s == null) {
+            return NONE;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = ids.size();
+            ids.put(s, id);
+            int start = beginRecord(STRING, out);
+            SquidFormat.putString(s, 0, Math.min(s.length(), MAX_STRING_CHARS), out);
+            endRecord(start, out);
+        }
+        return id;
+    }
+
+    private static int beginRecord(int type, ByteBuffer out) {
+        int start = out.position();
+        out.putShort((short) 0).put((byte) type);
+        return start;
+    }
+
+    private static void endRecord(int start, ByteBuffer out) {
+        out.putShort(start, (short) (out.position() - start - RECORD_PREFIX));
+    }
+
+    private static int clampDuration(long durationMs) {
+        return (int) Math.min(Math.max(durationMs, 0), Integer.MAX_VALUE);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : Math.min(s.length(), MAX_STRING_CHARS);
+    }
+}
@@ -0,0 +1,29 @@
+package xzy.fz.log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes ring entries into the access log's batch buffer (writer thread only).
+ */
+interface EntryFormat {
+
+    /**
+     * Gets an upper bound of an entry's encoded length.
+     */
+    int maxLength(EntryRing.Slot entry);
+
+    /**
+     * Appends an entry.
+     *
+     * @param entry Entry to encode
+     * @param out   Buffer with at least {@link #maxLength} bytes remaining
+     */
+    void encode(EntryRing.Slot entry, ByteBuffer out);
+
+    /**
+     * Called when the log continues in a new file: what is encoded next must be readable
+     * without what came before.
+     */
+    default void startFile() {
+    }
+}
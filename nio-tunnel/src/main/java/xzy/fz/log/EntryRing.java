@@ -0,0 +1,151 @@
+package xzy.fz.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring of preallocated, mutable access log entries.
+ * <p>
+ * Each slot carries a sequence number (as in Vyukov's bounded queue): a producer claims the
+ * slot at the next position with one CAS, fills it in place and publishes it by advancing
+ * its sequence; the consumer reads published slots in order and hands them back. Nothing
+ * is allocated per entry, and a full ring makes {@link #claim()} fail instead of blocking.
+ */
+final class EntryRing {
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     * Per slot: its position while free, position + 1 once published, position + capacity
+     * once consumed (free for the next lap)
+     */
+    private final AtomicLongArray sequences;
+
+    /** Next position to claim */
+    private final AtomicLong claimPosition = new AtomicLong();
+
+    /** Next position to consume (consumer thread only) */
+    private long consumePosition;
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity Number of slots, rounded up to a power of two
+     */
+    EntryRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Claims the next slot for writing. The caller must fill it and {@link #publish} it.
+     *
+     * @return Claimed slot, or null if the ring is full
+     */
+    Slot claim() {
+        long position = claimPosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (claimPosition.compareAndSet(position, position + 1)) {
+                    Slot slot = slots[index];
+                    slot.position = position;
+                    return slot;
+                }
+                position = claimPosition.get();
+            } else if (diff < 0) {
+                // The consumer has not freed this slot yet
+                return null;
+            } else {
+                // Another producer took this position
+                position = claimPosition.get();
+            }
+        }
+    }
+
+    /**
+     * Makes a filled slot visible to the consumer.
+     *
+     * @return Position of the slot in the ring's sequence of entries
+     */
+    long publish(Slot slot) {
+        long position = slot.position;
+        sequences.set((int) position & mask, position + 1);
+        return position;
+    }
+
+    /**
+     * Gets the next published slot (consumer thread only).
+     *
+     * @return Slot to read, then {@link #release}, or null if none is published yet
+     */
+    Slot poll() {
+        long position = consumePosition;
+        int index = (int) position & mask;
+        return sequences.get(index) == position + 1 ? slots[index] : null;
+    }
+
+    /**
+     * Whether no slot is claimed beyond those consumed (consumer thread only). If
+     * {@link #poll()} returns null while this is false, a producer is still filling the
+     * next slot.
+     */
+    boolean isEmpty() {
+        return claimPosition.get() == consumePosition;
+    }
+
+    /**
+     * Hands a slot returned by {@link #poll()} back to the producers.
+     */
+    void release(Slot slot) {
+        slot.clear();
+        sequences.set((int) slot.position & mask, slot.position + slots.length);
+        consumePosition++;
+    }
+
+    /**
+     * One access log entry, overwritten in place on every lap.
+     */
+    static final class Slot {
+        private long position;
+
+        long timestampMillis;
+        long durationMs;
+        String clientAddress;
+        String action;
+        int statusCode;
+        long bytesWritten;
+        String method;
+        /** Destination host of a tunnel, or the request URI */
+        String target;
+        /** Destination port of a tunnel, or -1 if {@link #target} is a URI */
+        int port;
+        /** Whether the response came from the cache (no upstream hierarchy) */
+        boolean fromCache;
+        String contentType;
+        /** Tunnels a summary stands for, or 0 for a single entry; {@link #durationMs} is then their median */
+        int count;
+        /** 99th percentile duration of a summary's tunnels */
+        long p99Ms;
+
+        /** Drops references so a consumed slot does not keep request data alive */
+        private void clear() {
+            clientAddress = null;
+            action = null;
+            method = null;
+            target = null;
+            contentType = null;
+        }
+    }
+}
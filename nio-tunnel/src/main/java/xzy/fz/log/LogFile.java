@@ -0,0 +1,337 @@
+package xzy.fz.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only log file that rotates by size and/or time.
+ * <p>
+ * On rotation the file is renamed to {@code <name>.<yyyyMMdd-HHmmss>} and a new file is
+ * opened under the original name. The old channel stays open until the new one is, so no
+ * entry is lost if the switch fails. Rotated segments are compressed and pruned to the
+ * newest {@code keep} on a low-priority "access-log-compressor" thread, so the writer only
+ * pays for a rename and an open. Segments left uncompressed by a previous run are
+ * compressed at startup.
+ * <p>
+ * Used by the access log writer thread only.
+ */
+final class LogFile implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(LogFile.class);
+
+    private static final DateTimeFormatter SEGMENT_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /** Time before a failed rotation is tried again */
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Compression of rotated segments */
+    enum Compression {
+        NONE, GZIP;
+
+        static Compression parse(String name) {
+            return switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "none", "" -> NONE;
+                case "gzip" -> GZIP;
+                default -> throw new IllegalArgumentException(
+                        "Unknown access log compression: " + name + " (supported: gzip, none)");
+            };
+        }
+    }
+
+    private final Path path;
+    private final long maxBytes;
+    private final long intervalMillis;
+    private final int keep;
+    private final Compression compression;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    /** Compresses and prunes rotated segments (null if rotation is disabled) */
+    private final ExecutorService compressor;
+
+    private FileChannel channel;
+    private long size;
+
+    /** Time of the next time-based rotation (Long.MAX_VALUE if disabled) */
+    private long nextRotationMillis = Long.MAX_VALUE;
+
+    /** No rotation is attempted before this time (after a failed one) */
+    private long retryAtMillis;
+
+    /** Timestamp part of the last segment name, and the suffix it last got */
+    private String lastSegmentBase;
+    private int lastSegmentSuffix;
+
+    /**
+     * Opens (or creates) the log file for appending.
+     *
+     * @param path           Log file
+     * @param maxBytes       Size after which the file is rotated (0 disables)
+     * @param intervalMillis Rotation interval, aligned to local time (0 disables)
+     * @param keep           Rotated segments kept (0 keeps all)
+     * @param compression    Compression of rotated segments
+     * @throws IOException if the file cannot be opened
+     */
+    LogFile(Path path, long maxBytes, long intervalMillis, int keep, Compression compression) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.maxBytes = maxBytes;
+        this.intervalMillis = intervalMillis;
+        this.keep = keep;
+        this.compression = compression;
+        if (this.path.getParent() != null) {
+            Files.createDirectories(this.path.getParent());
+        }
+        this.channel = open();
+        if (maxBytes > 0 || intervalMillis > 0) {
+            this.compressor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "access-log-compressor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            compressor.execute(this::compressLeftovers);
+        } else {
+            this.compressor = null;
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        FileChannel opened = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        size = opened.size();
+        nextRotationMillis = nextBoundary(System.currentTimeMillis());
+        return opened;
+    }
+
+    /**
+     * Gets the end of the rotation interval containing {@code now}, aligned to local time
+     * (e.g. midnight for a daily interval).
+     */
+    private long nextBoundary(long now) {
+        if (intervalMillis <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long offset = zone.getRules().getOffset(Instant.ofEpochMilli(now)).getTotalSeconds() * 1000L;
+        return Math.floorDiv(now + offset, intervalMillis) * intervalMillis + intervalMillis - offset;
+    }
+
+    /**
+     * Rotates the file if it has reached the size limit or its interval has ended. Called
+     * before each batch is encoded, so a batch never spans two files; a file may thus exceed
+     * the size limit by up to one batch.
+     *
+     * @return Whether a new, empty file was started
+     */
+    boolean rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (now >= nextRotationMillis && size == 0) {
+            // Nothing was written in the past interval
+            nextRotationMillis = nextBoundary(now);
+        }
+        if (size > 0 && now >= retryAtMillis
+                && ((maxBytes > 0 && size >= maxBytes) || now >= nextRotationMillis)) {
+            return rotate();
+        }
+        return false;
+    }
+
+    /**
+     * Appends lines.
+     *
+     * @param lines Whole lines to append (the buffer's position is advanced)
+     * @param force Whether to force the data to disk
+     * @throws IOException if writing fails
+     */
+    void write(ByteBuffer lines, boolean force) throws IOException {
+        while (lines.hasRemaining()) {
+            size += channel.write(lines);
+        }
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    private boolean rotate() {
+        Path segment = segmentPath();
+        try {
+            Files.move(path, segment, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to rotate access log {}: {}", path, e.getMessage());
+            retryAtMillis = System.currentTimeMillis() + RETRY_MILLIS;
+            return false;
+        }
+        FileChannel previous = channel;
+        try {
+            channel = open();
+        } catch (IOException e) {
+            // Keep appending to the old file rather than losing entries
+            log.error("Failed to reopen access log {}: {}", path, e.getMessage());
+            retryAtMillis = System.currentTimeMillis() + RETRY_MILLIS;
+            try {
+                Files.move(segment, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException moveBack) {
+                log.error("Access log continues in {}", segment);
+            }
+            return false;
+        }
+        try {
+            previous.close();
+        } catch (IOException e) {
+            log.debug("Failed to close rotated access log {}: {}", segment, e.getMessage());
+        }
+        log.info("Rotated access log to {}", segment.getFileName());
+        compressor.execute(() -> {
+            compress(segment);
+            prune();
+        });
+        return true;
+    }
+
+    /**
+     * Picks an unused segment name for the current time. Several segments rotated within one
+     * second get increasing suffixes, even if an earlier one was pruned meanwhile.
+     */
+    private Path segmentPath() {
+        String base = path.getFileName() + "." + SEGMENT_FORMAT.format(LocalDateTime.now(zone));
+        int suffix = base.equals(lastSegmentBase) ? lastSegmentSuffix + 1 : 0;
+        Path segment = path.resolveSibling(suffix == 0 ? base : base + "-" + suffix);
+        while (Files.exists(segment) || Files.exists(withSuffix(segment, GZIP_SUFFIX))) {
+            segment = path.resolveSibling(base + "-" + ++suffix);
+        }
+        lastSegmentBase = base;
+        lastSegmentSuffix = suffix;
+        return segment;
+    }
+
+    private void compress(Path segment) {
+        if (compression == Compression.NONE) {
+            return;
+        }
+        Path target = withSuffix(segment, GZIP_SUFFIX);
+        Path temp = withSuffix(target, TEMP_SUFFIX);
+        try {
+            FileTime modified = Files.getLastModifiedTime(segment);
+            try (InputStream in = Files.newInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            // Keep the segment's time, which orders segments for pruning
+            Files.setLastModifiedTime(temp, modified);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment);
+        } catch (IOException e) {
+            log.warn("Failed to compress access log segment {}: {}", segment, e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Retried at the next startup
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest rotated segments beyond {@link #keep}.
+     */
+    private void prune() {
+        if (keep <= 0) {
+            return;
+        }
+        List<Path> segments = segments();
+        segments.sort(Comparator.comparing(LogFile::lastModified).thenComparing(Path::toString));
+        for (int i = 0; i < segments.size() - keep; i++) {
+            try {
+                Files.deleteIfExists(segments.get(i));
+            } catch (IOException e) {
+                log.warn("Failed to delete old access log segment {}: {}", segments.get(i), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compresses segments a previous run rotated but did not compress, then prunes.
+     */
+    private void compressLeftovers() {
+        for (Path segment : segments()) {
+            String name = segment.getFileName().toString();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                try {
+                    Files.deleteIfExists(segment);
+                } catch (IOException e) {
+                    log.debug("Failed to delete {}: {}", segment, e.getMessage());
+                }
+            } else if (!name.endsWith(GZIP_SUFFIX)) {
+                compress(segment);
+            }
+        }
+        prune();
+    }
+
+    /**
+     * Lists rotated segments ({@code <name>.<timestamp>[.gz]}) next to the log file.
+     */
+    private List<Path> segments() {
+        List<Path> segments = new ArrayList<>();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(path.getParent(), prefix + "[0-9]*")) {
+            for (Path file : dir) {
+                segments.add(file);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to list access log segments in {}: {}", path.getParent(), e.getMessage());
+        }
+        return segments;
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static Path withSuffix(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    /**
+     * Closes the file and waits briefly for pending compression.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close access log file: {}", e.getMessage());
+        }
+        if (compressor != null) {
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
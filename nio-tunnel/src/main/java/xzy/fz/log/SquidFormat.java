@@ -0,0 +1,199 @@
+package xzy.fz.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Encodes ring entries as Squid-style lines straight into a byte buffer.
+ * <p>
+ * Runs on the writer thread only. Numbers and strings are encoded by hand (UTF-8, which is
+ * plain ASCII for hosts and request URIs), and the timestamp prefix is formatted once per
+ * second, so a line costs no allocation.
+ */
+final class SquidFormat implements EntryFormat {
+    /** Timestamp format: yyyy-MM-dd HH:mm:ss for high readability */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final byte[] HIER_DIRECT = "HIER_DIRECT/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HIER_NONE = "HIER_NONE/-".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] COUNT = " count=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] P50 = " p50=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] P99 = " p99=".getBytes(StandardCharsets.US_ASCII);
+
+    /** Fixed bytes of a line: timestamp, numbers, separators, hierarchy and summary fields */
+    private static final int FIXED_LENGTH = 240;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    /** "yyyy-MM-dd HH:mm:ss " of {@link #prefixSecond} */
+    private final byte[] timestampPrefix = new byte[20];
+    private long prefixSecond = Long.MIN_VALUE;
+
+    /** Scratch space for the digits of a number */
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Gets an upper bound of an entry's encoded length, newline included.
+     */
+    @Override
+    public int maxLength(EntryRing.Slot entry) {
+        // Up to 3 bytes per UTF-16 char; the target appears twice (URL and hierarchy)
+        return FIXED_LENGTH + 3 * (length(entry.clientAddress) + length(entry.action) + length(entry.method)
+                + 2 * length(entry.target) + length(entry.contentType));
+    }
+
+    /**
+     * Appends an entry as one line.
+     *
+     * @param entry Entry to encode
+     * @param out   Buffer with at least {@link #maxLength} bytes remaining
+     */
+    @Override
+    public void encode(EntryRing.Slot entry, ByteBuffer out) {
+        // Format: timestamp duration client action/code size method URL user hierarchy content-type
+        putTimestamp(entry.timestampMillis, out);
+        putLong(entry.durationMs, out);
+        out.put((byte) ' ');
+        putString(entry.clientAddress, out);
+        out.put((byte) ' ');
+        putString(entry.action, out);
+        out.put((byte) '/');
+        putLong(entry.statusCode, out);
+        out.put((byte) ' ');
+        putLong(entry.bytesWritten, out);
+        out.put((byte) ' ');
+        putString(entry.method, out);
+        out.put((byte) ' ');
+        putString(entry.target, out);
+        if (entry.port >= 0) {
+            out.put((byte) ':');
+            putLong(entry.port, out);
+        }
+        out.put((byte) ' ').put((byte) '-').put((byte) ' ');
+        if (entry.fromCache) {
+            out.put(HIER_NONE);
+        } else {
+            out.put(HIER_DIRECT);
+            putHost(entry, out);
+        }
+        out.put((byte) ' ');
+        putString(entry.contentType, out);
+        if (entry.count > 0) {
+            // Summary of several tunnels: the duration field holds their median
+            out.put(COUNT);
+            putLong(entry.count, out);
+            out.put(P50);
+            putLong(entry.durationMs, out);
+            out.put(P99);
+            putLong(entry.p99Ms, out);
+        }
+        out.put((byte) '\n');
+    }
+
+    /**
+     * Writes the host part of the target: a tunnel's host, or the authority of an absolute
+     * request URI.
+     */
+    private static void putHost(EntryRing.Slot entry, ByteBuffer out) {
+        String target = entry.target;
+        if (target == null || entry.port >= 0) {
+            putString(target, out);
+            return;
+        }
+        int start = authorityStart(target);
+        putString(target, start, authorityEnd(target, start), out);
+    }
+
+    /**
+     * Gets the index where the authority of an absolute http(s) URI starts, or 0 if the URI
+     * has none (the whole URI then stands for the host).
+     */
+    static int authorityStart(String uri) {
+        return uri.startsWith("http://") ? 7 : uri.startsWith("https://") ? 8 : 0;
+    }
+
+    /**
+     * Gets the index where the authority starting at {@code start} ends.
+     */
+    static int authorityEnd(String uri, int start) {
+        if (start == 0) {
+            return uri.length();
+        }
+        int slash = uri.indexOf('/', start);
+        return slash > start ? slash : uri.length();
+    }
+
+    private void putTimestamp(long timestampMillis, ByteBuffer out) {
+        long second = Math.floorDiv(timestampMillis, 1000);
+        if (second != prefixSecond) {
+            Instant instant = Instant.ofEpochSecond(second);
+            String text = TIMESTAMP_FORMAT.format(LocalDateTime.ofInstant(instant, zone));
+            for (int i = 0; i < timestampPrefix.length - 1; i++) {
+                timestampPrefix[i] = (byte) text.charAt(i);
+            }
+            timestampPrefix[timestampPrefix.length - 1] = ' ';
+            prefixSecond = second;
+        }
+        out.put(timestampPrefix);
+    }
+
+    private void putLong(long value, ByteBuffer out) {
+        // Digits are taken from the negative value, which also covers Long.MIN_VALUE
+        if (value < 0) {
+            out.put((byte) '-');
+        } else {
+            value = -value;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' - (value % 10));
+            value /= 10;
+        } while (value != 0);
+        out.put(digits, i, digits.length - i);
+    }
+
+    private static void putString(String s, ByteBuffer out) {
+        if (s == null) {
+            out.put((byte) '-');
+        } else {
+            putString(s, 0, s.length(), out);
+        }
+    }
+
+    /**
+     * Encodes {@code s[start, end)} as UTF-8; unpaired surrogates become '?'.
+     */
+    static void putString(String s, int start, int end, ByteBuffer out) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)))
+                        .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)))
+                        .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static int length(String s) {
+        return s == null ? 1 : s.length();
+    }
+}
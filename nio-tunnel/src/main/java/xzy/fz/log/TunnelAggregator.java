@@ -0,0 +1,207 @@
+package xzy.fz.log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+/**
+ * Folds successful tunnels into one summary per (client, destination, action) and time
+ * window ({@code access.log.tunnel.aggregateSeconds}).
+ * <p>
+ * A summary carries the number of tunnels, their total bytes and the median and 99th
+ * percentile of their durations. The percentiles are exact up to {@value #MAX_SAMPLES}
+ * tunnels per key; beyond that they are taken from a uniform random sample of that many
+ * durations (reservoir sampling), so they are approximate. Windows are aligned to the
+ * clock (a 60-second window ends on the minute). Used by the access log writer thread
+ * only; an entry is looked up with a reusable key, so only a window's first tunnel per
+ * key allocates.
+ */
+final class TunnelAggregator {
+    /** Keys per window; further tunnels are logged individually */
+    static final int MAX_KEYS = 100_000;
+
+    /** Durations kept per key for the percentiles */
+    static final int MAX_SAMPLES = 512;
+
+    private final long windowMillis;
+    private final Map<Key, Aggregate> aggregates = new HashMap<>();
+    private final Key probe = new Key();
+    private final SplittableRandom random = new SplittableRandom();
+
+    /** End of the current window (Long.MAX_VALUE while nothing is aggregated) */
+    private long windowEnd = Long.MAX_VALUE;
+
+    /**
+     * Creates an aggregator.
+     *
+     * @param windowMillis Length of a window
+     */
+    TunnelAggregator(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Whether the current window has ended and its summaries should be taken.
+     */
+    boolean due(long now) {
+        return now >= windowEnd;
+    }
+
+    /**
+     * Adds a tunnel to the current window.
+     *
+     * @return false if the window has no room for another key (the entry is not added)
+     */
+    boolean add(EntryRing.Slot entry) {
+        Aggregate aggregate = aggregates.get(probe.set(entry));
+        if (aggregate == null) {
+            if (aggregates.size() >= MAX_KEYS) {
+                return false;
+            }
+            aggregate = new Aggregate();
+            aggregates.put(probe.copy(), aggregate);
+            if (windowEnd == Long.MAX_VALUE) {
+                windowEnd = Math.floorDiv(entry.timestampMillis, windowMillis) * windowMillis + windowMillis;
+            }
+        }
+        aggregate.add(entry.durationMs, entry.bytesWritten, random);
+        return true;
+    }
+
+    /**
+     * Hands out the summaries of the current window and starts a new one.
+     *
+     * @param summary Entry to fill with each summary in turn
+     * @param sink    Receives {@code summary} once per key
+     * @param now     Current time; summaries are stamped with the window's end, or with
+     *                {@code now} if that is earlier (on shutdown)
+     * @return Number of summaries
+     */
+    int drain(EntryRing.Slot summary, Consumer<EntryRing.Slot> sink, long now) {
+        int drained = aggregates.size();
+        long timestamp = Math.min(windowEnd, now);
+        for (Map.Entry<Key, Aggregate> e : aggregates.entrySet()) {
+            Key key = e.getKey();
+            Aggregate aggregate = e.getValue();
+            summary.timestampMillis = timestamp;
+            summary.clientAddress = key.clientAddress;
+            summary.action = key.action;
+            summary.statusCode = key.statusCode;
+            summary.method = key.method;
+            summary.target = key.target;
+            summary.port = key.port;
+            summary.fromCache = false;
+            summary.contentType = null;
+            summary.bytesWritten = aggregate.bytes;
+            summary.count = aggregate.count;
+            aggregate.sortDurations();
+            summary.durationMs = aggregate.percentile(50);
+            summary.p99Ms = aggregate.percentile(99);
+            sink.accept(summary);
+        }
+        aggregates.clear();
+        windowEnd = Long.MAX_VALUE;
+        return drained;
+    }
+
+    /**
+     * What tunnels are grouped by. Mutable so that lookups can reuse one instance.
+     */
+    private static final class Key {
+        String clientAddress;
+        String action;
+        int statusCode;
+        String method;
+        String target;
+        int port;
+        private int hash;
+
+        Key set(EntryRing.Slot entry) {
+            clientAddress = entry.clientAddress;
+            action = entry.action;
+            statusCode = entry.statusCode;
+            method = entry.method;
+            target = entry.target;
+            port = entry.port;
+            int h = Objects.hashCode(target);
+            h = 31 * h + port;
+            h = 31 * h + Objects.hashCode(clientAddress);
+            h = 31 * h + Objects.hashCode(action);
+            h = 31 * h + Objects.hashCode(method);
+            hash = 31 * h + statusCode;
+            return this;
+        }
+
+        Key copy() {
+            Key copy = new Key();
+            copy.clientAddress = clientAddress;
+            copy.action = action;
+            copy.statusCode = statusCode;
+            copy.method = method;
+            copy.target = target;
+            copy.port = port;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other
+                    && port == other.port
+                    && statusCode == other.statusCode
+                    && Objects.equals(target, other.target)
+                    && Objects.equals(clientAddress, other.clientAddress)
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(method, other.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Totals of one key, with up to {@link #MAX_SAMPLES} of its durations.
+     */
+    private static final class Aggregate {
+        int count;
+        long bytes;
+        long[] durations = new long[8];
+
+        /** Durations kept, {@code min(count, MAX_SAMPLES)} */
+        int samples;
+
+        void add(long durationMs, long bytesWritten, SplittableRandom random) {
+            count++;
+            bytes += bytesWritten;
+            if (samples < MAX_SAMPLES) {
+                if (samples == durations.length) {
+                    durations = Arrays.copyOf(durations, Math.min(durations.length * 2, MAX_SAMPLES));
+                }
+                durations[samples++] = durationMs;
+            } else {
+                // Keeps every tunnel with equal probability MAX_SAMPLES / count
+                int slot = random.nextInt(count);
+                if (slot < MAX_SAMPLES) {
+                    durations[slot] = durationMs;
+                }
+            }
+        }
+
+        void sortDurations() {
+            Arrays.sort(durations, 0, samples);
+        }
+
+        /**
+         * Nearest-rank percentile of the sorted durations kept.
+         */
+        long percentile(int percent) {
+            int rank = Math.max(1, (int) (((long) samples * percent + 99) / 100));
+            return durations[rank - 1];
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package xzy.fz.pac;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.cache.CacheEntry;
+import xzy.fz.config.Config;
+import xzy.fz.stats.StatsSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * The PAC (Proxy Auto-Config) response, encoded once and shared by all requests.
+ * <p>
+ * The body is held in a read-only direct buffer that every response duplicates, so serving
+ * the PAC copies nothing (the transport writes direct buffers as they are). Responses carry a strong {@code ETag} derived from the content, and a
+ * request whose {@code If-None-Match} matches it is answered with 304.
+ * <p>
+ * The generated PAC depends only on the configuration and never changes. A custom PAC file
+ * ({@code pac.file}) is watched on a "pac-watcher" thread and re-read when it changes; if
+ * it cannot be read, the previous content stays in use.
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * pac_responses_total{status="200|304"}  PAC requests answered
+ * pac_reloads_total                      Times a changed PAC file was loaded
+ * </pre>
+ */
+public final class PacFile implements StatsSource, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PacFile.class);
+
+    private static final String CONTENT_TYPE = "application/x-ns-proxy-autoconfig";
+
+    /** Watches the PAC file's directory (null if the PAC is generated or watching failed) */
+    private final WatchService watchService;
+
+    /** Current content, replaced as a whole on reload */
+    private volatile Content content;
+
+    private final LongAdder served = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+
+    /**
+     * Loads the PAC and, for a custom PAC file, starts watching it.
+     *
+     * @param config Proxy configuration ({@code pac.*} settings)
+     */
+    public PacFile(Config config) {
+        this.content = Content.of(config.pacContent().getBytes(StandardCharsets.UTF_8));
+        this.watchService = config.pacFile() != null && !config.pacFile().isBlank()
+                ? watch(Path.of(config.pacFile()).toAbsolutePath()) : null;
+    }
+
+    private WatchService watch(Path file) {
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            // Editors often replace the file rather than write it in place, so watch the directory
+            file.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            log.warn("Cannot watch PAC file {}, changes will not be picked up: {}", file, e.getMessage());
+            closeQuietly(watchService);
+            return null;
+        }
+        WatchService service = watchService;
+        Thread watcher = new Thread(() -> watchLoop(service, file), "pac-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return service;
+    }
+
+    /**
+     * Creates the response to a PAC request.
+     *
+     * @param request PAC request (its {@code If-None-Match} is honored)
+     * @return 200 sharing the encoded body, or 304 if the client's copy is current
+     */
+    public FullHttpResponse newResponse(HttpRequest request) {
+        Content current = content;
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null && CacheEntry.etagMatches(ifNoneMatch, current.etag)) {
+            notModified.increment();
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+            response.headers().set(HttpHeaderNames.ETAG, current.etag);
+            return response;
+        }
+        served.increment();
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK, current.body.retainedDuplicate());
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE)
+                .set(HttpHeaderNames.CONTENT_LENGTH, current.bytes.length)
+                .set(HttpHeaderNames.ETAG, current.etag);
+        return response;
+    }
+
+    private void watchLoop(WatchService service, Path file) {
+        Path name = file.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    reload(file);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed on shutdown
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reload(Path file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            // Possibly mid-replace; the next event brings the new file
+            log.warn("Failed to reload PAC file {}, keeping the previous version: {}", file, e.getMessage());
+            return;
+        }
+        if (content.matches(bytes)) {
+            return;
+        }
+        content = Content.of(bytes);
+        reloads.increment();
+        log.info("Reloaded PAC file {} ({} bytes, ETag {})", file, bytes.length, content.etag);
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("pac_responses_total{status=\"200\"} ").append(served.sum()).append('\n');
+        out.append("pac_responses_total{status=\"304\"} ").append(notModified.sum()).append('\n');
+        out.append("pac_reloads_total ").append(reloads.sum()).append('\n');
+    }
+
+    /**
+     * Stops watching the PAC file.
+     */
+    @Override
+    public void close() {
+        closeQuietly(watchService);
+    }
+
+    private static void closeQuietly(WatchService watchService) {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.debug("Failed to close PAC file watch: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Encoded PAC body with its entity tag.
+     * <p>
+     * The body is an unreleasable, read-only view of a JDK direct buffer: responses share
+     * it through duplicates, and a replaced version is freed by the JDK's cleaner once it
+     * is garbage collected, so a reload never frees memory a response is still writing.
+     */
+    private record Content(byte[] bytes, ByteBuf body, String etag) {
+        static Content of(byte[] bytes) {
+            CRC32C crc = new CRC32C();
+            crc.update(bytes);
+            String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length) + "\"";
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+            ByteBuf body = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(direct.asReadOnlyBuffer()));
+            return new Content(bytes, body, etag);
+        }
+
+        boolean matches(byte[] other) {
+            return Arrays.equals(bytes, other);
+        }
+    }
+}
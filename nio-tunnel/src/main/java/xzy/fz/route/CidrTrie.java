@@ -0,0 +1,247 @@
+package xzy.fz.route;
+
+import io.netty.util.NetUtil;
+
+/**
+ * CIDR rules for IP-literal destinations, stored as binary tries (one for IPv4, one for
+ * IPv6) so a lookup is a longest-prefix match in at most 32 or 128 steps.
+ * <p>
+ * Lookups parse the literal in place, without allocating. IPv4-mapped IPv6 addresses
+ * ({@code ::ffff:a.b.c.d}) are matched against the IPv4 rules.
+ * <p>
+ * Built once at startup; lookups may then run concurrently.
+ */
+final class CidrTrie {
+    private final Node v4 = new Node();
+    private final Node v6 = new Node();
+
+    /**
+     * Adds a rule.
+     *
+     * @param cidr  {@code address/prefix}, or a single address
+     * @param route Route for the range
+     * @throws IllegalArgumentException if the range is malformed
+     */
+    void add(String cidr, Route route) {
+        int slash = cidr.indexOf('/');
+        String address = slash < 0 ? cidr : cidr.substring(0, slash);
+        byte[] bytes = NetUtil.createByteArrayFromIpAddressString(address);
+        if (bytes == null) {
+            throw new IllegalArgumentException("Invalid CIDR rule: " + cidr);
+        }
+        int bits = bytes.length * 8;
+        int prefix = bits;
+        if (slash >= 0) {
+            try {
+                prefix = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                prefix = -1;
+            }
+            if (prefix < 0 || prefix > bits) {
+                throw new IllegalArgumentException("Invalid CIDR rule: " + cidr);
+            }
+        }
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (i < 8) {
+                hi |= (bytes[i] & 0xFFL) << (56 - 8 * i);
+            } else {
+                lo |= (bytes[i] & 0xFFL) << (56 - 8 * (i - 8));
+            }
+        }
+        Node node = bits == 32 ? v4 : v6;
+        for (int i = 0; i < prefix; i++) {
+            if (bit(hi, lo, i) == 0) {
+                node = node.zero != null ? node.zero : (node.zero = new Node());
+            } else {
+                node = node.one != null ? node.one : (node.one = new Node());
+            }
+        }
+        node.route = route;
+    }
+
+    /**
+     * Matches an IPv4 literal ({@code host[start, end)}).
+     *
+     * @return Route of the longest matching range, or null if no range matches or the
+     *         text is not an IPv4 address
+     */
+    Route matchIpv4(String host, int start, int end) {
+        long address = parseIpv4(host, start, end);
+        return address < 0 ? null : matchIpv4(address);
+    }
+
+    private Route matchIpv4(long address) {
+        return longestMatch(v4, address << 32, 0, 32);
+    }
+
+    /**
+     * Matches an IPv6 literal ({@code host[start, end)}, without brackets; a zone ID is
+     * ignored).
+     *
+     * @return Route of the longest matching range, or null if no range matches or the
+     *         text is not an IPv6 address
+     */
+    Route matchIpv6(String host, int start, int end) {
+        int percent = host.indexOf('%', start);
+        if (percent >= 0 && percent < end) {
+            end = percent;
+        }
+        // Groups before "::" go to head, groups after it to tail
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+        int i = start;
+        if (end - start >= 2 && host.charAt(start) == ':' && host.charAt(start + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int fieldEnd = i;
+            boolean dotted = false;
+            while (fieldEnd < end && host.charAt(fieldEnd) != ':') {
+                dotted |= host.charAt(fieldEnd) == '.';
+                fieldEnd++;
+            }
+            long value;
+            int groups;
+            if (dotted) {
+                // Embedded IPv4 address, only as the last field
+                value = fieldEnd == end ? parseIpv4(host, i, fieldEnd) : -1;
+                groups = 2;
+            } else {
+                value = parseHexGroup(host, i, fieldEnd);
+                groups = 1;
+            }
+            if (value < 0) {
+                return null;
+            }
+            int shift = 16 * groups;
+            if (compressed) {
+                tailHi = (tailHi << shift) | (tailLo >>> (64 - shift));
+                tailLo = (tailLo << shift) | value;
+                tailGroups += groups;
+            } else {
+                headHi = (headHi << shift) | (headLo >>> (64 - shift));
+                headLo = (headLo << shift) | value;
+                headGroups += groups;
+            }
+            if (fieldEnd == end) {
+                break;
+            }
+            if (fieldEnd + 1 < end && host.charAt(fieldEnd + 1) == ':') {
+                if (compressed) {
+                    return null;
+                }
+                compressed = true;
+                i = fieldEnd + 2;
+            } else {
+                i = fieldEnd + 1;
+                if (i == end) {
+                    return null;
+                }
+            }
+        }
+        int total = headGroups + tailGroups;
+        if (compressed ? total > 7 : total != 8) {
+            return null;
+        }
+        // Move the head groups to the top; "::" stands for the zero groups in between
+        int shift = 16 * (8 - headGroups);
+        long hi;
+        long lo;
+        if (shift == 0) {
+            hi = headHi;
+            lo = headLo;
+        } else if (shift >= 64) {
+            hi = shift == 128 ? 0 : headLo << (shift - 64);
+            lo = 0;
+        } else {
+            hi = (headHi << shift) | (headLo >>> (64 - shift));
+            lo = headLo << shift;
+        }
+        hi |= tailHi;
+        lo |= tailLo;
+        if (hi == 0 && (lo >>> 32) == 0xFFFFL) {
+            return matchIpv4(lo & 0xFFFFFFFFL);
+        }
+        return longestMatch(v6, hi, lo, 128);
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address.
+     *
+     * @return Address as an unsigned 32-bit value, or -1 if the text is not an IPv4 address
+     */
+    static long parseIpv4(String s, int start, int end) {
+        long address = 0;
+        int parts = 0;
+        int i = start;
+        while (parts < 4) {
+            int digits = 0;
+            int part = 0;
+            while (i < end && digits < 3 && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                part = part * 10 + (s.charAt(i) - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || part > 255) {
+                return -1;
+            }
+            address = (address << 8) | part;
+            parts++;
+            if (parts < 4) {
+                if (i >= end || s.charAt(i) != '.') {
+                    return -1;
+                }
+                i++;
+            }
+        }
+        return i == end ? address : -1;
+    }
+
+    private static long parseHexGroup(String s, int start, int end) {
+        if (end == start || end - start > 4) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static long bit(long hi, long lo, int index) {
+        return index < 64 ? (hi >>> (63 - index)) & 1 : (lo >>> (127 - index)) & 1;
+    }
+
+    private static Route longestMatch(Node root, long hi, long lo, int bits) {
+        Route best = root.route;
+        Node node = root;
+        for (int i = 0; i < bits; i++) {
+            node = bit(hi, lo, i) == 0 ? node.zero : node.one;
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                best = node.route;
+            }
+        }
+        return best;
+    }
+
+    private static final class Node {
+        private Node zero;
+        private Node one;
+        private Route route;
+    }
+}
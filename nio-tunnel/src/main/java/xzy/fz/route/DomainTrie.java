@@ -0,0 +1,107 @@
+package xzy.fz.route;
+
+import java.util.Arrays;
+
+/**
+ * Domain suffix rules, stored as a trie over the characters of each domain read from
+ * right to left.
+ * <p>
+ * A rule for {@code example.com} matches {@code example.com} and every subdomain such as
+ * {@code www.example.com}, but not {@code badexample.com}. The longest matching rule wins.
+ * A lookup walks the hostname once from its end, so it takes time proportional to the
+ * hostname's length and allocates nothing. Matching is ASCII case-insensitive; a trailing
+ * dot is ignored.
+ * <p>
+ * Built once at startup; lookups may then run concurrently.
+ */
+final class DomainTrie {
+    private final Node root = new Node();
+
+    /**
+     * Adds a rule. A leading {@code *.} or {@code .} is ignored: every rule covers the
+     * domain and its subdomains.
+     *
+     * @param domain Domain name
+     * @param route  Route for the domain
+     * @throws IllegalArgumentException if the domain is empty
+     */
+    void add(String domain, Route route) {
+        String name = domain;
+        if (name.startsWith("*.")) {
+            name = name.substring(2);
+        } else if (name.startsWith(".")) {
+            name = name.substring(1);
+        }
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Invalid domain rule: " + domain);
+        }
+        Node node = root;
+        for (int i = name.length() - 1; i >= 0; i--) {
+            node = node.childOrNew(lower(name.charAt(i)));
+        }
+        node.route = route;
+    }
+
+    /**
+     * Finds the route of the longest rule matching {@code host[start, end)}.
+     *
+     * @return Matching route, or null if no rule matches
+     */
+    Route match(String host, int start, int end) {
+        if (end > start && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        Route best = null;
+        Node node = root;
+        for (int i = end - 1; i >= start; i--) {
+            node = node.child(lower(host.charAt(i)));
+            if (node == null) {
+                break;
+            }
+            // A rule only matches whole labels
+            if (node.route != null && (i == start || host.charAt(i - 1) == '.')) {
+                best = node.route;
+            }
+        }
+        return best;
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * One character position; children are scanned linearly, since hostnames use a small
+     * alphabet.
+     */
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Route route;
+
+        Node child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node childOrNew(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
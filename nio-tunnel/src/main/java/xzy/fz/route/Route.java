@@ -0,0 +1,40 @@
+package xzy.fz.route;
+
+import java.util.Locale;
+
+/**
+ * Where a tunnel to a destination goes, as decided by the {@link Router}.
+ */
+public enum Route {
+    /** Dial the destination from this host, bypassing the upstream proxy */
+    DIRECT,
+
+    /** Tunnel through the upstream proxy */
+    UPSTREAM,
+
+    /** Refuse the tunnel */
+    REJECT;
+
+    /**
+     * Parses a route name as used in the configuration ({@code direct}, {@code upstream}
+     * or {@code reject}, case-insensitive).
+     *
+     * @param name Route name
+     * @return Parsed route
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static Route parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown route: " + name);
+        }
+    }
+
+    /**
+     * Gets the lowercase name used in the configuration and metrics.
+     */
+    public String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
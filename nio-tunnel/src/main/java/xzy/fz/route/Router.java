@@ -0,0 +1,189 @@
+package xzy.fz.route;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+import xzy.fz.stats.StatsSource;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides per tunnel (HTTP CONNECT, SOCKS4 and SOCKS5) whether the destination is dialed
+ * directly, tunneled through the upstream proxy or refused.
+ * <p>
+ * Clients that honor the PAC file already go DIRECT for local destinations; this applies
+ * the same decision to clients that send everything to the proxy, such as SOCKS-only
+ * tools. Plain HTTP requests always go through the upstream.
+ *
+ * <h2>Rules ({@code route.direct}, {@code route.upstream}, {@code route.reject}):</h2>
+ * Comma-separated entries of these kinds:
+ * <ul>
+ *   <li><b>Domain</b> - {@code example.com} (or {@code .example.com}, {@code *.example.com})
+ *       matches the domain and all its subdomains</li>
+ *   <li><b>CIDR</b> - {@code 10.0.0.0/8}, {@code fc00::/7} or a single address; matches
+ *       destinations given as IP literals (hostnames are not resolved for routing)</li>
+ *   <li><b>Port</b> - {@code :25} or {@code :6660-6669} matches the destination port</li>
+ *   <li><b>{@code <local>}</b> - hostnames without a dot</li>
+ * </ul>
+ *
+ * <h2>Precedence:</h2>
+ * A REJECT from either the host or the port rule wins. Otherwise the most specific host
+ * rule (longest domain suffix or CIDR prefix) decides, then the port rule, then
+ * {@code route.default}. The same entry in several lists counts as the last of upstream,
+ * direct, reject.
+ * <p>
+ * A lookup allocates nothing and takes time proportional to the hostname's length.
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * route_decisions_total{route="direct|upstream|reject"}  Tunnels routed each way
+ * </pre>
+ */
+public final class Router implements StatsSource {
+    private static final Logger log = LoggerFactory.getLogger(Router.class);
+
+    /** Keyword for hostnames without a dot */
+    private static final String LOCAL = "<local>";
+
+    private static final Route[] ROUTES = Route.values();
+
+    private final DomainTrie domains = new DomainTrie();
+    private final CidrTrie cidrs = new CidrTrie();
+    private final Route defaultRoute;
+
+    /** Route of hostnames without a dot (null if no rule) */
+    private Route localRoute;
+
+    /** Route ordinal + 1 per port, 0 if no rule (null if there are no port rules) */
+    private byte[] ports;
+
+    /** Decisions per route, indexed by ordinal */
+    private final LongAdder[] decisions = new LongAdder[ROUTES.length];
+
+    /**
+     * Builds the rule tables.
+     *
+     * @param config Proxy configuration ({@code route.*} settings)
+     * @throws IllegalArgumentException if a rule or the default route is malformed
+     */
+    public Router(Config config) {
+        this.defaultRoute = Route.parse(config.routeDefault());
+        addAll(config.routeUpstream(), Route.UPSTREAM);
+        addAll(config.routeDirect(), Route.DIRECT);
+        addAll(config.routeReject(), Route.REJECT);
+        for (int i = 0; i < decisions.length; i++) {
+            decisions[i] = new LongAdder();
+        }
+        log.info("Routing tunnels: direct [{}], reject [{}], default {}",
+                config.routeDirect(), config.routeReject(), defaultRoute.label());
+    }
+
+    private void addAll(String rules, Route route) {
+        for (String rule : rules.split(",")) {
+            String entry = rule.trim();
+            if (!entry.isEmpty()) {
+                add(entry, route);
+            }
+        }
+    }
+
+    private void add(String entry, Route route) {
+        if (entry.equalsIgnoreCase(LOCAL)) {
+            localRoute = route;
+        } else if (entry.startsWith(":") && !entry.startsWith("::")) {  // not "::1"
+            addPorts(entry, route);
+        } else if (entry.indexOf('/') >= 0 || entry.indexOf(':') >= 0
+                || CidrTrie.parseIpv4(entry, 0, entry.length()) >= 0) {
+            cidrs.add(entry.startsWith("[") ? entry.replace("[", "").replace("]", "") : entry, route);
+        } else {
+            domains.add(entry, route);
+        }
+    }
+
+    private void addPorts(String entry, Route route) {
+        int dash = entry.indexOf('-');
+        int from;
+        int to;
+        try {
+            from = Integer.parseInt(entry.substring(1, dash < 0 ? entry.length() : dash).trim());
+            to = dash < 0 ? from : Integer.parseInt(entry.substring(dash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port rule: " + entry);
+        }
+        if (from < 0 || to > 65535 || from > to) {
+            throw new IllegalArgumentException("Invalid port rule: " + entry);
+        }
+        if (ports == null) {
+            ports = new byte[65536];
+        }
+        for (int port = from; port <= to; port++) {
+            ports[port] = (byte) (route.ordinal() + 1);
+        }
+    }
+
+    /**
+     * Routes a tunnel.
+     *
+     * @param host Destination hostname or IP literal (IPv6 with or without brackets)
+     * @param port Destination port
+     * @return Route for the tunnel
+     */
+    public Route route(String host, int port) {
+        Route hostRoute = hostRoute(host);
+        Route portRoute = ports != null && port >= 0 && port < ports.length && ports[port] != 0
+                ? ROUTES[ports[port] - 1] : null;
+        Route route;
+        if (hostRoute == Route.REJECT || portRoute == Route.REJECT) {
+            route = Route.REJECT;
+        } else if (hostRoute != null) {
+            route = hostRoute;
+        } else if (portRoute != null) {
+            route = portRoute;
+        } else {
+            route = defaultRoute;
+        }
+        decisions[route.ordinal()].increment();
+        return route;
+    }
+
+    private Route hostRoute(String host) {
+        int start = 0;
+        int end = host.length();
+        if (end >= 2 && host.charAt(0) == '[' && host.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        boolean dot = false;
+        boolean colon = false;
+        boolean numeric = true;
+        for (int i = start; i < end; i++) {
+            char c = host.charAt(i);
+            if (c == '.') {
+                dot = true;
+            } else if (c == ':') {
+                colon = true;
+            } else if (c < '0' || c > '9') {
+                numeric = false;
+            }
+        }
+        if (colon) {
+            return cidrs.matchIpv6(host, start, end);
+        }
+        if (numeric && dot) {
+            Route route = cidrs.matchIpv4(host, start, end);
+            if (route != null || CidrTrie.parseIpv4(host, start, end) >= 0) {
+                return route;
+            }
+        }
+        Route route = domains.match(host, start, end);
+        return route == null && !dot ? localRoute : route;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        for (Route route : ROUTES) {
+            out.append("route_decisions_total{route=\"").append(route.label()).append("\"} ")
+                    .append(decisions[route.ordinal()].sum()).append('\n');
+        }
+    }
+}
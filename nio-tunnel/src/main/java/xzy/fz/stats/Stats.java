@@ -0,0 +1,36 @@
+package xzy.fz.stats;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of {@link StatsSource}s rendered by the stats page.
+ * <p>
+ * Served by the HTTP listener at {@code stats.path} when {@code stats.enabled=true}.
+ * Sources are registered once at startup and read on every request.
+ */
+public final class Stats {
+    private final List<StatsSource> sources = new CopyOnWriteArrayList<>();
+
+    /**
+     * Adds a source to the stats page.
+     *
+     * @param source Source to render
+     */
+    public void register(StatsSource source) {
+        sources.add(source);
+    }
+
+    /**
+     * Renders all registered sources.
+     *
+     * @return Stats page body in Prometheus text format
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(1024);
+        for (StatsSource source : sources) {
+            source.appendStats(out);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package xzy.fz.stats;
+
+/**
+ * A component that contributes counters to the stats page.
+ * <p>
+ * Implementations append one {@code name value} line per metric, using the Prometheus
+ * text exposition format so the page can be scraped as-is.
+ */
+@FunctionalInterface
+public interface StatsSource {
+
+    /**
+     * Appends this source's metrics.
+     *
+     * @param out Buffer to append {@code name value\n} lines to
+     */
+    void appendStats(StringBuilder out);
+}
@@ -0,0 +1,227 @@
+package xzy.fz.transport;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringDatagramChannel;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+import io.netty.channel.uring.IoUringSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Netty I/O transport used for both listeners and upstream connections.
+ * <p>
+ * Event loop groups, server channels and client channels must all come from the
+ * same transport: a channel can only be registered on an event loop of its own kind,
+ * and upstream bootstraps reuse the client's event loop so both sides of a tunnel
+ * stay on one thread.
+ *
+ * <h2>Selection ({@code transport} property):</h2>
+ * <ul>
+ *   <li><b>auto</b> - epoll, then io_uring, then NIO, whichever is available first</li>
+ *   <li><b>nio</b> - JDK NIO selector (portable)</li>
+ *   <li><b>epoll</b> - Linux epoll via native library</li>
+ *   <li><b>io_uring</b> - Linux io_uring via native library (kernel 5.9+)</li>
+ * </ul>
+ * An explicitly requested native transport that cannot be loaded falls back to NIO.
+ */
+public enum Transport {
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return null;
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return NioIoHandler.newFactory();
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+    },
+
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return Epoll.unavailabilityCause();
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return EpollIoHandler.newFactory();
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+    },
+
+    IO_URING {
+        @Override
+        public boolean isAvailable() {
+            return IoUring.isAvailable();
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return IoUring.unavailabilityCause();
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return IoUringIoHandler.newFactory();
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return IoUringServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return IoUringSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return IoUringDatagramChannel.class;
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(Transport.class);
+
+    /**
+     * Checks whether the transport's native library (if any) can be loaded.
+     *
+     * @return true if this transport can be used on the current platform
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Returns why the transport cannot be used, or null if it is available.
+     */
+    abstract Throwable unavailabilityCause();
+
+    /**
+     * Returns the I/O handler factory backing this transport's event loops.
+     */
+    abstract IoHandlerFactory ioHandlerFactory();
+
+    /**
+     * Returns the server channel type for listeners.
+     *
+     * @return Server socket channel class
+     */
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * Returns the client channel type for upstream bootstraps.
+     *
+     * @return Socket channel class
+     */
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    /**
+     * Returns the datagram channel type for DNS queries.
+     *
+     * @return Datagram channel class
+     */
+    public abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+    /**
+     * Creates an event loop group backed by this transport.
+     *
+     * @param nThreads Number of threads (0 for Netty's default of CPU cores * 2)
+     * @return New event loop group
+     */
+    public EventLoopGroup newEventLoopGroup(int nThreads) {
+        return new MultiThreadIoEventLoopGroup(nThreads, ioHandlerFactory());
+    }
+
+    /**
+     * Resolves the configured transport name to an available transport.
+     *
+     * @param name Transport setting: auto, nio, epoll or io_uring
+     * @return The requested transport if available, otherwise the best fallback
+     */
+    public static Transport select(String name) {
+        String normalized = name == null ? "auto" : name.trim().toLowerCase(Locale.ROOT);
+        return switch (normalized) {
+            case "nio" -> NIO;
+            case "epoll" -> requireOrFallback(EPOLL);
+            case "io_uring", "iouring", "io-uring" -> requireOrFallback(IO_URING);
+            case "auto", "" -> autoDetect();
+            default -> {
+                log.warn("Unknown transport '{}', using auto-detection", name);
+                yield autoDetect();
+            }
+        };
+    }
+
+    private static Transport autoDetect() {
+        if (EPOLL.isAvailable()) return EPOLL;
+        if (IO_URING.isAvailable()) return IO_URING;
+        return NIO;
+    }
+
+    private static Transport requireOrFallback(Transport requested) {
+        if (requested.isAvailable()) {
+            return requested;
+        }
+        Throwable cause = requested.unavailabilityCause();
+        log.warn("Transport {} is not available ({}), falling back to NIO",
+                requested, cause != null ? cause.getMessage() : "unknown reason");
+        return NIO;
+    }
+}
@@ -0,0 +1,162 @@
+package xzy.fz.upstream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker of one upstream proxy.
+ * <p>
+ * Connect failures and failed health probes are counted per upstream; a success resets
+ * the count. When {@code failureThreshold} failures happen in a row, the breaker opens and the {@link UpstreamBalancer} stops selecting the upstream, so requests go to
+ * the other upstreams or fail at once instead of waiting for the connect timeout.
+ *
+ * <h2>States:</h2>
+ * <ul>
+ *   <li><b>Closed</b> - the upstream is used normally</li>
+ *   <li><b>Open</b> - the upstream is skipped for {@code openMillis}</li>
+ *   <li><b>Half-open</b> - after {@code openMillis} one trial exchange is let through; its
+ *       success closes the breaker, its failure opens it again. If the trial ends without
+ *       an outcome, another is allowed after a further {@code openMillis}. A successful
+ *       health probe also closes the breaker.</li>
+ * </ul>
+ * A threshold of 0 disables the breaker. The closed state is checked without locking;
+ * transitions are synchronized, since the upstream is shared by all event loops.
+ */
+final class CircuitBreaker {
+    /**
+     * Breaker state; the ordinal is the value of the {@code upstream_circuit_state} metric.
+     */
+    enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private volatile State state = State.CLOSED;
+
+    /** Failures since the last success */
+    private volatile int consecutiveFailures;
+
+    /** When the breaker opened or the last trial was let through */
+    private long openedAtNanos;
+
+    /** Times the breaker opened */
+    private final LongAdder opened = new LongAdder();
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param failureThreshold Failures in a row that open the breaker (0 disables it)
+     * @param openMillis       Time the breaker stays open before a trial is let through
+     */
+    CircuitBreaker(int failureThreshold, int openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Whether the upstream may be selected: the breaker is closed, or a trial is due.
+     * Does not change the state.
+     */
+    boolean available() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            return state == State.CLOSED || System.nanoTime() - openedAtNanos >= openNanos;
+        }
+    }
+
+    /**
+     * Admits an exchange: always while closed, otherwise only as the single trial that
+     * is due.
+     *
+     * @return true if the exchange may use the upstream
+     */
+    boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (now - openedAtNanos < openNanos) {
+                return false;
+            }
+            openedAtNanos = now;
+            state = State.HALF_OPEN;
+            return true;
+        }
+    }
+
+    /**
+     * Records a successful connect, closing the breaker.
+     */
+    void success() {
+        if (state == State.CLOSED && consecutiveFailures == 0) {
+            return;
+        }
+        synchronized (this) {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * Records a failed connect; opens the breaker at the threshold, or at once if the
+     * failure was the half-open trial.
+     */
+    synchronized void failure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state != State.CLOSED || consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Records a failed health probe; it counts towards the threshold like a failed connect,
+     * but does not touch a breaker that is already open or half-open.
+     */
+    synchronized void probeFailed() {
+        if (failureThreshold > 0 && state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        if (state != State.OPEN) {
+            opened.increment();
+        }
+        state = State.OPEN;
+        openedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Gets the current state.
+     */
+    State state() {
+        return state;
+    }
+
+    /**
+     * Gets the number of failures since the last success.
+     */
+    int consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Gets the number of times the breaker opened.
+     */
+    long openedCount() {
+        return opened.sum();
+    }
+}
@@ -0,0 +1,40 @@
+package xzy.fz.upstream;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Lets the tunnel connect handlers run over a direct connection to the destination.
+ * <p>
+ * The CONNECT request a connect handler sends is swallowed and answered with an empty
+ * {@code 200} response, as an upstream proxy would; bytes written behind it (pipelined
+ * CONNECT) pass through. The response is fired from a separate task, after the handler's
+ * write has returned, and the codec then removes itself.
+ */
+final class DirectTunnelCodec extends ChannelOutboundHandlerAdapter {
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof HttpRequest)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ReferenceCountUtil.release(msg);
+        promise.setSuccess();
+        ctx.executor().execute(() -> {
+            if (ctx.isRemoved() || !ctx.channel().isActive()) {
+                return;
+            }
+            ctx.fireChannelRead(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+            ctx.fireChannelReadComplete();
+            if (!ctx.isRemoved()) {
+                ctx.pipeline().remove(this);
+            }
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package xzy.fz.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Connects to the first reachable address of a host, racing the addresses as in
+ * RFC 8305 ("Happy Eyeballs").
+ * <p>
+ * The addresses are reordered to alternate between IPv6 and IPv4, starting with the family
+ * of the first (preferred) one. The first address is dialed at once; each further address
+ * is dialed when the previous attempt fails or after {@code upstream.connect.attemptDelayMillis},
+ * whichever comes first, while earlier attempts keep running. The first connection to
+ * complete wins and the other attempts are closed, so a host with a broken IPv6 (or IPv4)
+ * path costs at most one attempt delay instead of a connect timeout.
+ * <p>
+ * Attempts are made with a bare pipeline; {@code onConnected} sets up the winner's
+ * pipeline before the promise completes. Runs on one event loop.
+ */
+final class HappyEyeballs {
+    private final EventLoop eventLoop;
+    private final Bootstrap bootstrap;
+    private final ArrayDeque<InetSocketAddress> remaining;
+    private final long attemptDelayMillis;
+    private final Consumer<Channel> onConnected;
+    private final Promise<Channel> promise;
+
+    /** Attempts started and not yet failed */
+    private final List<Channel> attempts = new ArrayList<>();
+
+    private ScheduledFuture<?> nextAttempt;
+
+    /** Whether an attempt has won */
+    private boolean connected;
+
+    /**
+     * Prepares a connection race.
+     *
+     * @param bootstrap          Bootstrap for the attempts (group, channel type, options and handler set)
+     * @param addresses          Resolved addresses, preferred first
+     * @param port               Port to connect to
+     * @param attemptDelayMillis Delay before the next address is tried alongside the pending ones
+     * @param onConnected        Called with the winning channel before the promise completes
+     * @param promise            Completed with the winning channel, or with the last attempt's failure
+     */
+    HappyEyeballs(Bootstrap bootstrap, List<InetAddress> addresses, int port, long attemptDelayMillis,
+                  Consumer<Channel> onConnected, Promise<Channel> promise) {
+        this.eventLoop = bootstrap.config().group().next();
+        this.bootstrap = bootstrap;
+        this.remaining = new ArrayDeque<>(addresses.size());
+        for (InetAddress address : interleave(addresses)) {
+            remaining.add(new InetSocketAddress(address, port));
+        }
+        this.attemptDelayMillis = attemptDelayMillis;
+        this.onConnected = onConnected;
+        this.promise = promise;
+    }
+
+    /**
+     * Alternates address families, keeping the resolver's order within each family.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.size() < 2) {
+            return addresses;
+        }
+        boolean firstIsV6 = addresses.get(0) instanceof Inet6Address;
+        ArrayDeque<InetAddress> first = new ArrayDeque<>();
+        ArrayDeque<InetAddress> second = new ArrayDeque<>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        while (!first.isEmpty() || !second.isEmpty()) {
+            if (!first.isEmpty()) {
+                ordered.add(first.poll());
+            }
+            if (!second.isEmpty()) {
+                ordered.add(second.poll());
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Starts the first attempt. Must be called from the bootstrap's event loop.
+     */
+    void start() {
+        if (remaining.isEmpty()) {
+            promise.tryFailure(new IllegalStateException("No addresses to connect to"));
+            return;
+        }
+        attemptNext();
+    }
+
+    private void attemptNext() {
+        if (nextAttempt != null) {
+            nextAttempt.cancel(false);
+            nextAttempt = null;
+        }
+        InetSocketAddress address = remaining.poll();
+        if (address == null || connected || promise.isDone()) {
+            return;
+        }
+        ChannelFuture attempt = bootstrap.connect(address);
+        attempts.add(attempt.channel());
+        attempt.addListener((ChannelFutureListener) this::attemptDone);
+        if (!remaining.isEmpty() && !attempt.isDone()) {
+            nextAttempt = eventLoop.schedule(this::attemptNext, attemptDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void attemptDone(ChannelFuture attempt) {
+        Channel channel = attempt.channel();
+        attempts.remove(channel);
+        if (connected || promise.isDone()) {
+            channel.close();
+            return;
+        }
+        if (attempt.isSuccess()) {
+            connected = true;
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+            }
+            List<Channel> losers = new ArrayList<>(attempts);
+            attempts.clear();
+            for (Channel loser : losers) {
+                loser.close();
+            }
+            onConnected.accept(channel);
+            if (!promise.trySuccess(channel)) {
+                channel.close();
+            }
+        } else if (!remaining.isEmpty()) {
+            attemptNext();
+        } else if (attempts.isEmpty()) {
+            promise.tryFailure(attempt.cause());
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package xzy.fz.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP/2 connections to one upstream proxy for one event loop, carrying CONNECT tunnels
+ * as multiplexed streams.
+ * <p>
+ * A tunnel is opened on the first connection that has a free stream slot; a new
+ * connection is dialed only when all existing ones are full. The stream limit per
+ * connection is the lower of {@code upstream.h2.maxStreamsPerConnection} and the
+ * upstream's SETTINGS_MAX_CONCURRENT_STREAMS. All state is confined to the owning
+ * event loop, like {@link UpstreamConnectionPool}.
+ *
+ * <h2>Connection lifecycle:</h2>
+ * <ul>
+ *   <li><b>Ready</b> - after the TLS handshake negotiated {@code h2} via ALPN, or right
+ *       away for cleartext (prior-knowledge h2c) upstreams. Streams requested while the
+ *       connection is being set up wait for it.</li>
+ *   <li><b>Draining</b> - after a GOAWAY no new streams are opened on the connection;
+ *       it is closed once its last stream ends.</li>
+ *   <li><b>Not h2</b> - if the upstream selects HTTP/1.1 in ALPN, the connection is
+ *       closed and the connector falls back to HTTP/1.1 tunnels to that upstream for a
+ *       while.</li>
+ * </ul>
+ */
+final class Http2SessionPool {
+    private static final Logger log = LoggerFactory.getLogger(Http2SessionPool.class);
+
+    /** Per-stream receive window; bounds the bytes buffered for a paused tunnel */
+    private static final int STREAM_WINDOW_BYTES = 1024 * 1024;
+
+    /** Connection-wide receive window shared by all streams */
+    private static final int CONNECTION_WINDOW_BYTES = 16 * 1024 * 1024;
+
+    private final EventLoop eventLoop;
+    private final UpstreamConnector connector;
+    private final UpstreamEndpoint endpoint;
+    private final int maxStreamsPerConnection;
+
+    /** Connections accepting new streams, oldest first */
+    private final List<Session> sessions = new ArrayList<>();
+
+    /**
+     * Creates a session pool bound to an event loop.
+     *
+     * @param eventLoop               Owning event loop
+     * @param connector               Connector used to dial new connections
+     * @param endpoint                Upstream the connections go to
+     * @param maxStreamsPerConnection Upper bound on concurrent streams per connection
+     */
+    Http2SessionPool(EventLoop eventLoop, UpstreamConnector connector, UpstreamEndpoint endpoint,
+                     int maxStreamsPerConnection) {
+        this.eventLoop = eventLoop;
+        this.connector = connector;
+        this.endpoint = endpoint;
+        this.maxStreamsPerConnection = Math.max(1, maxStreamsPerConnection);
+    }
+
+    /**
+     * Opens a CONNECT stream and appends the given handlers after the tunnel codec.
+     *
+     * @param handlers Handlers ending with the connect handler that sends the CONNECT request when added
+     * @return Future completed with the stream channel once it is open
+     */
+    Future<Channel> openStream(ChannelHandler... handlers) {
+        assert eventLoop.inEventLoop();
+        Promise<Channel> promise = eventLoop.newPromise();
+
+        Session session = null;
+        for (Session candidate : sessions) {
+            if (candidate.hasCapacity()) {
+                session = candidate;
+                break;
+            }
+        }
+        if (session == null) {
+            session = newSession();
+        }
+
+        Session chosen = session;
+        chosen.streams++;
+        chosen.ready.addListener(ready -> {
+            if (!ready.isSuccess()) {
+                chosen.streams--;
+                promise.setFailure(ready.cause());
+                return;
+            }
+            new Http2StreamChannelBootstrap(chosen.channel)
+                    .handler(new Http2TunnelCodec())
+                    .open()
+                    .addListener(opened -> {
+                        if (!opened.isSuccess()) {
+                            chosen.streamClosed();
+                            promise.setFailure(opened.cause());
+                            return;
+                        }
+                        Http2StreamChannel stream = (Http2StreamChannel) opened.getNow();
+                        stream.closeFuture().addListener(f -> chosen.streamClosed());
+                        // Added after registration, so the connect handler starts from handlerAdded
+                        stream.pipeline().addLast(handlers);
+                        promise.setSuccess(stream);
+                    });
+        });
+        return promise;
+    }
+
+    /**
+     * Dials a new HTTP/2 connection and adds it to the pool.
+     */
+    private Session newSession() {
+        Session session = new Session(eventLoop.newPromise());
+        sessions.add(session);
+
+        Http2FrameCodec codec = Http2FrameCodecBuilder.forClient()
+                .initialSettings(Http2Settings.defaultSettings()
+                        .pushEnabled(false)
+                        .initialWindowSize(STREAM_WINDOW_BYTES))
+                .build();
+        session.codec = codec;
+        // Server push is disabled; close any stream the upstream initiates anyway
+        Http2MultiplexHandler multiplexer = new Http2MultiplexHandler(new ChannelInitializer<>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.close();
+            }
+        });
+
+        connector.dialHttp2(eventLoop, endpoint, codec, multiplexer, session)
+                .addListener(future -> {
+                    if (!future.isSuccess()) {
+                        sessions.remove(session);
+                        session.ready.tryFailure(future.cause());
+                    }
+                });
+        log.debug("Opening HTTP/2 connection to upstream {} on {} ({} open)", endpoint, eventLoop, sessions.size());
+        return session;
+    }
+
+    /**
+     * One HTTP/2 connection; sits at the end of the connection pipeline to track
+     * readiness, GOAWAY and closure.
+     */
+    private final class Session extends ChannelInboundHandlerAdapter {
+        /** Completed with the connection once it can carry streams */
+        private final Promise<Channel> ready;
+
+        private Http2FrameCodec codec;
+        private Channel channel;
+
+        /** Streams opened or being opened on this connection */
+        private int streams;
+
+        /** Whether new streams may be opened (false after GOAWAY or close) */
+        private boolean accepting = true;
+
+        Session(Promise<Channel> ready) {
+            this.ready = ready;
+        }
+
+        boolean hasCapacity() {
+            if (!accepting) {
+                return false;
+            }
+            int limit = maxStreamsPerConnection;
+            if (ready.isSuccess()) {
+                limit = Math.min(limit, codec.connection().local().maxActiveStreams());
+            }
+            return streams < limit;
+        }
+
+        void streamClosed() {
+            streams--;
+            if (!accepting && streams == 0 && channel != null) {
+                channel.close();
+            }
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            channel = ctx.channel();
+            if (!channel.isActive()) {
+                return;
+            }
+            // Added once connected, after the codec has queued its preface.
+            // Enlarge the connection window up front so it is not the bottleneck
+            codec.connection().local().flowController().incrementWindowSize(
+                    codec.connection().connectionStream(),
+                    CONNECTION_WINDOW_BYTES - Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+            ctx.flush();
+            if (ctx.pipeline().get(SslHandler.class) == null) {
+                ready.trySuccess(channel);
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslHandshakeCompletionEvent handshake && handshake.isSuccess()) {
+                String protocol = ctx.pipeline().get(SslHandler.class).applicationProtocol();
+                if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                    log.debug("HTTP/2 connection to upstream ready: {}", ctx.channel());
+                    ready.trySuccess(ctx.channel());
+                } else {
+                    connector.http2NotNegotiated(endpoint, protocol);
+                    ready.tryFailure(new IllegalStateException(
+                            "Upstream did not negotiate h2 (ALPN: " + protocol + ")"));
+                    ctx.close();
+                }
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Http2GoAwayFrame goAway) {
+                log.debug("Upstream sent GOAWAY ({}), draining {} stream(s)", goAway.errorCode(), streams);
+                stopAccepting();
+                if (streams == 0) {
+                    ctx.close();
+                }
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            stopAccepting();
+            ready.tryFailure(new ClosedChannelException());
+            log.debug("HTTP/2 connection to upstream closed: {}", ctx.channel());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("HTTP/2 upstream connection error: {}", cause.getMessage());
+            ready.tryFailure(cause);
+            ctx.close();
+        }
+
+        private void stopAccepting() {
+            accepting = false;
+            sessions.remove(this);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package xzy.fz.upstream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adapts an HTTP/2 CONNECT stream to the HTTP/1.1 objects and raw bytes the tunnel
+ * handlers expect, so the same connect handlers and {@code RelayHandler} work on
+ * a {@code Http2StreamChannel} as on a dedicated TCP connection.
+ *
+ * <h2>Translation:</h2>
+ * <ul>
+ *   <li>Outbound {@link HttpRequest} (the CONNECT) - HEADERS frame with {@code :method} and
+ *       {@code :authority}, without END_STREAM (RFC 9113 section 8.5)</li>
+ *   <li>Inbound final HEADERS frame - empty {@link FullHttpResponse} with its status</li>
+ *   <li>Outbound {@link ByteBuf} - DATA frame</li>
+ *   <li>Inbound DATA frame - its content as a {@link ByteBuf}</li>
+ * </ul>
+ * END_STREAM from the upstream closes the stream once the current read batch has been
+ * passed on, so relayed bytes are flushed to the client before the tunnel is torn down.
+ */
+final class Http2TunnelCodec extends ChannelDuplexHandler {
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    /** HTTP/1.1 connection-specific headers that must not appear in HTTP/2 */
+    private static final Set<AsciiString> HOP_BY_HOP_HEADERS = Set.of(
+            HttpHeaderNames.HOST, HttpHeaderNames.CONNECTION, KEEP_ALIVE,
+            PROXY_CONNECTION, HttpHeaderNames.TRANSFER_ENCODING,
+            HttpHeaderNames.UPGRADE, HttpHeaderNames.TE);
+
+    /** Whether the final (non-1xx) response headers have been received */
+    private boolean responded;
+
+    /** Whether the upstream ended the stream during the current read batch */
+    private boolean closeOnReadComplete;
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof HttpRequest request) {
+            Http2Headers headers = new DefaultHttp2Headers()
+                    .method(request.method().asciiName())
+                    .authority(request.uri());
+            for (Map.Entry<String, String> header : request.headers()) {
+                AsciiString name = AsciiString.of(header.getKey().toLowerCase(Locale.ROOT));
+                if (!HOP_BY_HOP_HEADERS.contains(name)) {
+                    headers.add(name, header.getValue());
+                }
+            }
+            ReferenceCountUtil.release(request);
+            ctx.write(new DefaultHttp2HeadersFrame(headers, false), promise);
+        } else if (msg instanceof ByteBuf data) {
+            ctx.write(new DefaultHttp2DataFrame(data, false), promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Http2HeadersFrame frame) {
+            CharSequence status = frame.headers().status();
+            if (!responded && status != null && status.charAt(0) != '1') {
+                responded = true;
+                ctx.fireChannelRead(new DefaultFullHttpResponse(
+                        HttpVersion.HTTP_1_1, HttpResponseStatus.parseLine(status)));
+            }
+            closeOnReadComplete |= frame.isEndStream();
+        } else if (msg instanceof Http2DataFrame frame) {
+            closeOnReadComplete |= frame.isEndStream();
+            if (responded && frame.content().isReadable()) {
+                ctx.fireChannelRead(frame.content());
+            } else {
+                frame.release();
+            }
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.fireChannelReadComplete();
+        if (closeOnReadComplete) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package xzy.fz.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of idle keep-alive HTTP/1.1 connections to upstream proxies for one event loop.
+ * <p>
+ * Plain HTTP (non-CONNECT) requests return their upstream connection here once the
+ * response has been relayed, still carrying its HTTP client codec; the next request to the
+ * same upstream endpoint takes it instead of dialing, skipping the TCP and TLS handshakes.
+ * All state is confined to the owning event loop; no locking is needed.
+ *
+ * <h2>Limits:</h2>
+ * <ul>
+ *   <li><b>Size</b> - at most {@code maxIdle} idle connections per endpoint; releasing into
+ *       a full pool closes the oldest one</li>
+ *   <li><b>Idle time</b> - connections idle longer than {@code maxIdleMillis} are closed on
+ *       acquire and on a periodic tick</li>
+ *   <li><b>Requests</b> - a connection is closed instead of pooled once it has carried
+ *       {@code maxRequests} requests</li>
+ * </ul>
+ *
+ * <h2>Liveness:</h2>
+ * An idle connection keeps reading, so a close by the upstream is noticed right away and
+ * the connection leaves the pool. Data arriving on an idle connection means the upstream
+ * and the codec disagree about message framing; the connection is dropped. Acquire also
+ * skips connections that are no longer active.
+ */
+final class HttpKeepAlivePool {
+    private static final Logger log = LoggerFactory.getLogger(HttpKeepAlivePool.class);
+
+    /** Requests a connection has carried, counted on release */
+    private static final AttributeKey<Integer> REQUESTS =
+            AttributeKey.valueOf(HttpKeepAlivePool.class, "requests");
+
+    private final EventLoop eventLoop;
+    private final int maxIdle;
+    private final long maxIdleNanos;
+    private final int maxRequests;
+    private final long tickMillis;
+
+    /** Idle connections per endpoint, oldest first */
+    private final Map<String, ArrayDeque<IdleChannel>> idle = new HashMap<>();
+
+    /** Whether the eviction tick has been scheduled */
+    private boolean started;
+
+    /**
+     * Creates a pool bound to an event loop.
+     *
+     * @param eventLoop     Owning event loop
+     * @param maxIdle       Maximum idle connections per endpoint
+     * @param maxIdleMillis Maximum time a connection may sit idle before it is closed
+     * @param maxRequests   Requests after which a connection is closed instead of pooled
+     */
+    HttpKeepAlivePool(EventLoop eventLoop, int maxIdle, int maxIdleMillis, int maxRequests) {
+        this.eventLoop = eventLoop;
+        this.maxIdle = maxIdle;
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+        this.maxRequests = maxRequests;
+        this.tickMillis = Math.max(1000, maxIdleMillis / 2);
+    }
+
+    /**
+     * Whether a channel has carried a request before, i.e. came from the pool.
+     */
+    static boolean reused(Channel channel) {
+        return channel.attr(REQUESTS).get() != null;
+    }
+
+    /**
+     * Takes the most recently released live connection to an endpoint.
+     *
+     * @param endpoint Upstream endpoint ({@code host:port})
+     * @return Active channel with its HTTP codec in place, or null if none is idle
+     */
+    Channel acquire(String endpoint) {
+        assert eventLoop.inEventLoop();
+        ArrayDeque<IdleChannel> entries = idle.get(endpoint);
+        Channel channel = null;
+        long now = System.nanoTime();
+        IdleChannel entry;
+        while (channel == null && entries != null && (entry = entries.pollLast()) != null) {
+            if (entry.channel.isActive() && now - entry.idleSince < maxIdleNanos) {
+                entry.channel.pipeline().remove(IdleHandler.class);
+                channel = entry.channel;
+            } else {
+                entry.channel.close();
+            }
+        }
+        log.debug("Keep-alive pool {} {}: {} (idle={})", eventLoop, endpoint,
+                channel != null ? "hit" : "miss", entries != null ? entries.size() : 0);
+        return channel;
+    }
+
+    /**
+     * Returns a connection after a completed exchange, or closes it if it has reached its
+     * request limit or is no longer active.
+     *
+     * @param endpoint Upstream endpoint the channel is connected to
+     * @param channel  Channel whose pipeline ends with the HTTP client codec
+     */
+    void release(String endpoint, Channel channel) {
+        assert eventLoop.inEventLoop();
+        Integer served = channel.attr(REQUESTS).get();
+        int requests = served == null ? 1 : served + 1;
+        if (!channel.isActive() || requests >= maxRequests) {
+            channel.close();
+            return;
+        }
+        channel.attr(REQUESTS).set(requests);
+
+        ArrayDeque<IdleChannel> entries = idle.computeIfAbsent(endpoint, key -> new ArrayDeque<>());
+        if (entries.size() >= maxIdle) {
+            entries.pollFirst().channel.close();
+        }
+        channel.pipeline().addLast(new IdleHandler(entries));
+        entries.addLast(new IdleChannel(channel, System.nanoTime()));
+
+        if (!started) {
+            started = true;
+            eventLoop.scheduleWithFixedDelay(this::evict, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes connections past their idle limit.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        for (ArrayDeque<IdleChannel> entries : idle.values()) {
+            while (!entries.isEmpty() && now - entries.peekFirst().idleSince >= maxIdleNanos) {
+                entries.pollFirst().channel.close();
+            }
+        }
+    }
+
+    /**
+     * Guards an idle channel: drops it from the pool if it closes or receives data.
+     */
+    private static final class IdleHandler extends ChannelInboundHandlerAdapter {
+        private final ArrayDeque<IdleChannel> entries;
+
+        IdleHandler(ArrayDeque<IdleChannel> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // Nothing was requested; the connection is out of step with the upstream
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            entries.removeIf(entry -> entry.channel == ctx.channel());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("Keep-alive connection error: {}", cause.getMessage());
+            ctx.close();
+        }
+    }
+
+    /**
+     * An idle connection and the time it became idle.
+     */
+    private record IdleChannel(Channel channel, long idleSince) {
+    }
+}
@@ -0,0 +1,86 @@
+package xzy.fz.upstream;
+
+import io.netty.handler.ssl.SslHandler;
+import xzy.fz.stats.StatsSource;
+
+import javax.net.ssl.SSLSession;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts upstream TLS handshakes by kind: full or resumed.
+ * <p>
+ * A resumed handshake reuses a cached session, so the session's creation time predates
+ * the start of the handshake; a full handshake creates a new session while it runs.
+ * This works for any provider and needs no access to engine internals. OpenSSL reports
+ * creation times in whole seconds, so the comparison is made at second granularity:
+ * a session resumed within the same second it was created counts as full.
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * upstream_tls_handshakes_full       Full handshakes (key exchange + certificate check)
+ * upstream_tls_handshakes_resumed    Handshakes that resumed a cached session
+ * upstream_tls_handshakes_failed     Failed handshakes
+ * upstream_tls_resumption_ratio      resumed / (full + resumed)
+ * </pre>
+ */
+public final class TlsHandshakeStats implements StatsSource {
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Records the outcome of a handshake once it completes.
+     *
+     * @param sslHandler TLS handler of a new upstream channel, before the handshake starts
+     */
+    void track(SslHandler sslHandler) {
+        long startSecondMillis = System.currentTimeMillis() / 1000 * 1000;
+        sslHandler.handshakeFuture().addListener(future -> {
+            if (!future.isSuccess()) {
+                failed.increment();
+                return;
+            }
+            SSLSession session = sslHandler.engine().getSession();
+            if (session.getCreationTime() < startSecondMillis) {
+                resumed.increment();
+            } else {
+                full.increment();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of full handshakes.
+     */
+    public long getFullHandshakes() {
+        return full.sum();
+    }
+
+    /**
+     * Gets the number of resumed handshakes.
+     */
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    /**
+     * Gets the fraction of successful handshakes that resumed a session.
+     *
+     * @return Ratio between 0 and 1 (0 if no handshake has completed)
+     */
+    public double getResumptionRatio() {
+        long resumedCount = resumed.sum();
+        long total = resumedCount + full.sum();
+        return total == 0 ? 0 : (double) resumedCount / total;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("upstream_tls_handshakes_full ").append(getFullHandshakes()).append('\n')
+                .append("upstream_tls_handshakes_resumed ").append(getResumedHandshakes()).append('\n')
+                .append("upstream_tls_handshakes_failed ").append(failed.sum()).append('\n')
+                .append("upstream_tls_resumption_ratio ")
+                .append(String.format(Locale.ROOT, "%.4f", getResumptionRatio())).append('\n');
+    }
+}
@@ -0,0 +1,180 @@
+package xzy.fz.upstream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+import xzy.fz.stats.StatsSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses the upstream proxy for each tunnel or plain HTTP request.
+ * <p>
+ * The upstreams are listed in {@code upstream.servers} ({@code host:port}, comma-separated;
+ * a missing port defaults to {@code upstream.port}). If the list is empty,
+ * {@code upstream.host} and {@code upstream.port} are the only upstream. All upstreams share
+ * the TLS, authentication and protocol settings.
+ *
+ * <h2>Strategies ({@code upstream.balance} property):</h2>
+ * <ul>
+ *   <li><b>round_robin</b> - each upstream in turn</li>
+ *   <li><b>least_conn</b> - the upstream with the fewest outstanding exchanges</li>
+ *   <li><b>ewma</b> - the lowest moving average of CONNECT latency, weighted by outstanding
+ *       exchanges + 1 so a fast upstream is not flooded. Upstreams without a sample cost
+ *       nothing and are tried first; a failed connect counts as a sample of the connect
+ *       timeout.</li>
+ * </ul>
+ * Ties are broken by scanning from a rotating start, so equal upstreams share the load.
+ * Upstreams whose {@link CircuitBreaker} is open are skipped (apart from the half-open
+ * trial); when none is available, {@link #select()} returns null and the request fails
+ * at once.
+ *
+ * <h2>Metrics:</h2>
+ * <pre>
+ * upstream_selected_total{upstream="host:port"}          Times the upstream was chosen
+ * upstream_outstanding{upstream="host:port"}             Tunnels and requests in progress
+ * upstream_connect_failures_total{upstream="host:port"}  Failed connect attempts
+ * upstream_connect_latency_ewma_ms{upstream="host:port"} Moving average of CONNECT latency
+ * upstream_circuit_state{upstream="host:port"}           0 closed, 1 half-open, 2 open
+ * upstream_circuit_opened_total{upstream="host:port"}    Times the circuit breaker opened
+ * upstream_health_checks_total{upstream="host:port",result="ok|failed"}  Health probes
+ * upstream_unavailable_total                              Requests failed because no upstream was available
+ * </pre>
+ */
+public final class UpstreamBalancer implements StatsSource {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamBalancer.class);
+
+    /**
+     * Selection strategy.
+     */
+    enum Strategy {
+        ROUND_ROBIN,
+        LEAST_CONN,
+        EWMA
+    }
+
+    private final List<UpstreamEndpoint> endpoints;
+    private final Strategy strategy;
+
+    /** Start of the next scan */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Selections that found every upstream's circuit open */
+    private final LongAdder unavailable = new LongAdder();
+
+    /**
+     * Creates a balancer over the configured upstreams.
+     *
+     * @param config Proxy configuration
+     * @throws IllegalArgumentException if an upstream has an invalid port
+     */
+    public UpstreamBalancer(Config config) {
+        List<UpstreamEndpoint> list = new ArrayList<>();
+        for (String spec : config.upstreamServers().split(",")) {
+            if (!spec.isBlank()) {
+                list.add(UpstreamEndpoint.parse(spec, config));
+            }
+        }
+        if (list.isEmpty()) {
+            list.add(new UpstreamEndpoint(config.upstreamHost(), config.upstreamPort(), config));
+        }
+        this.endpoints = List.copyOf(list);
+        this.strategy = strategy(config.upstreamBalance());
+        if (endpoints.size() > 1) {
+            log.info("Balancing across {} upstreams ({}): {}",
+                    endpoints.size(), strategy.name().toLowerCase(Locale.ROOT), endpoints);
+        }
+    }
+
+    private static Strategy strategy(String name) {
+        try {
+            return Strategy.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown upstream balance strategy '{}', using round_robin", name);
+            return Strategy.ROUND_ROBIN;
+        }
+    }
+
+    /**
+     * Gets all upstreams.
+     *
+     * @return Upstreams in configured order
+     */
+    public List<UpstreamEndpoint> endpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Chooses the upstream for a new exchange.
+     *
+     * @return Selected upstream, or null if every upstream's circuit is open
+     */
+    UpstreamEndpoint select() {
+        int size = endpoints.size();
+        int start = size == 1 ? 0 : Math.floorMod(next.getAndIncrement(), size);
+        UpstreamEndpoint best = best(start);
+        if (best != null && !best.breaker().tryAcquire()) {
+            // Another thread took the half-open trial; settle for a closed upstream
+            best = best(start);
+            if (best != null && !best.breaker().tryAcquire()) {
+                best = null;
+            }
+        }
+        if (best == null) {
+            unavailable.increment();
+        }
+        return best;
+    }
+
+    /**
+     * Finds the available upstream preferred by the strategy, scanning from {@code start}.
+     */
+    private UpstreamEndpoint best(int start) {
+        int size = endpoints.size();
+        UpstreamEndpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            UpstreamEndpoint candidate = endpoints.get((start + i) % size);
+            if (!candidate.breaker().available()) {
+                continue;
+            }
+            if (strategy == Strategy.ROUND_ROBIN) {
+                return candidate;
+            }
+            double cost = strategy == Strategy.LEAST_CONN
+                    ? candidate.outstanding()
+                    : candidate.latencyEwmaNanos() * (candidate.outstanding() + 1);
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        for (UpstreamEndpoint endpoint : endpoints) {
+            String label = "{upstream=\"" + endpoint.address() + "\"} ";
+            out.append("upstream_selected_total").append(label).append(endpoint.selectedCount()).append('\n')
+                    .append("upstream_outstanding").append(label).append(endpoint.outstanding()).append('\n')
+                    .append("upstream_connect_failures_total").append(label).append(endpoint.failureCount()).append('\n')
+                    .append("upstream_connect_latency_ewma_ms").append(label)
+                    .append(String.format(Locale.ROOT, "%.3f", endpoint.latencyEwmaNanos() / 1_000_000))
+                    .append('\n')
+                    .append("upstream_circuit_state").append(label)
+                    .append(endpoint.breaker().state().ordinal()).append('\n')
+                    .append("upstream_circuit_opened_total").append(label)
+                    .append(endpoint.breaker().openedCount()).append('\n')
+                    .append("upstream_health_checks_total{upstream=\"").append(endpoint.address())
+                    .append("\",result=\"ok\"} ").append(endpoint.probeCount(true)).append('\n')
+                    .append("upstream_health_checks_total{upstream=\"").append(endpoint.address())
+                    .append("\",result=\"failed\"} ").append(endpoint.probeCount(false)).append('\n');
+        }
+        out.append("upstream_unavailable_total ").append(unavailable.sum()).append('\n');
+    }
+}
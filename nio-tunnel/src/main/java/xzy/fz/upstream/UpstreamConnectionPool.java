@@ -0,0 +1,214 @@
+package xzy.fz.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of idle, ready-to-use connections to one upstream proxy for one event loop.
+ * <p>
+ * Keeps up to {@code size} connections that have completed TCP connect and (if enabled)
+ * the TLS handshake, so a CONNECT can be sent the moment a client asks for a tunnel.
+ * All state is confined to the owning event loop; no locking is needed.
+ *
+ * <h2>Lifecycle:</h2>
+ * <ul>
+ *   <li><b>Refill</b> - after every acquire and on a periodic tick, new connections are
+ *       dialed until idle + in-flight reaches {@code size}. Dial failures are not retried
+ *       until the next tick, so an unreachable upstream is not hammered.</li>
+ *   <li><b>Eviction</b> - connections idle longer than {@code maxIdleMillis} are closed
+ *       (upstream proxies drop idle connections on their own timers). Connections closed
+ *       by the upstream, or that receive unexpected data, are dropped immediately.</li>
+ *   <li><b>Acquire</b> - the most recently readied connection is handed out; the pool's
+ *       idle handler is removed from its pipeline first.</li>
+ * </ul>
+ */
+final class UpstreamConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamConnectionPool.class);
+
+    private final EventLoop eventLoop;
+    private final UpstreamConnector connector;
+    private final UpstreamEndpoint endpoint;
+    private final int size;
+    private final long maxIdleNanos;
+    private final long tickMillis;
+
+    /** Ready connections, oldest first */
+    private final ArrayDeque<IdleChannel> idle = new ArrayDeque<>();
+
+    /** Connections being dialed or handshaking */
+    private int pending;
+
+    /** Whether a dial failed since the last tick; acquires then leave refilling to the tick */
+    private boolean dialFailed;
+
+    /**
+     * Creates a pool bound to an event loop.
+     *
+     * @param eventLoop     Owning event loop
+     * @param connector     Connector used to dial new connections
+     * @param endpoint      Upstream the pooled connections go to
+     * @param size          Target number of idle connections
+     * @param maxIdleMillis Maximum time a connection may sit idle before it is closed
+     */
+    UpstreamConnectionPool(EventLoop eventLoop, UpstreamConnector connector, UpstreamEndpoint endpoint,
+                           int size, int maxIdleMillis) {
+        this.eventLoop = eventLoop;
+        this.connector = connector;
+        this.endpoint = endpoint;
+        this.size = size;
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+        this.tickMillis = Math.max(1000, maxIdleMillis / 2);
+    }
+
+    /**
+     * Fills the pool and schedules periodic eviction and refill.
+     */
+    void start() {
+        eventLoop.scheduleWithFixedDelay(this::evictAndRefill, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        refill();
+    }
+
+    /**
+     * Takes a ready connection from the pool.
+     *
+     * @return Active upstream channel, or null if none is idle
+     */
+    Channel acquire() {
+        assert eventLoop.inEventLoop();
+        Channel channel = null;
+        long now = System.nanoTime();
+        IdleChannel entry;
+        while (channel == null && (entry = idle.pollLast()) != null) {
+            if (entry.channel.isActive() && now - entry.idleSince < maxIdleNanos) {
+                entry.channel.pipeline().remove(IdleHandler.class);
+                channel = entry.channel;
+            } else {
+                entry.channel.close();
+            }
+        }
+        log.debug("Upstream pool {} {}: {} (idle={}, pending={})",
+                eventLoop, endpoint, channel != null ? "hit" : "miss", idle.size(), pending);
+        refill();
+        return channel;
+    }
+
+    /**
+     * Closes connections past their idle limit and tops the pool up again.
+     */
+    private void evictAndRefill() {
+        long now = System.nanoTime();
+        while (!idle.isEmpty() && now - idle.peekFirst().idleSince >= maxIdleNanos) {
+            idle.pollFirst().channel.close();
+        }
+        dialFailed = false;
+        refill();
+    }
+
+    /**
+     * Dials new connections until idle + pending reaches the target size, unless a dial
+     * failed since the last tick.
+     */
+    private void refill() {
+        while (!dialFailed && idle.size() + pending < size) {
+            pending++;
+            IdleHandler handler = new IdleHandler();
+            connector.dial(eventLoop, endpoint, handler)
+                    .addListener(future -> {
+                        if (!future.isSuccess()) {
+                            handler.notPending();
+                            dialFailed = true;
+                            log.debug("Upstream pool dial failed: {}", future.cause().getMessage());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Guards a pooled channel: moves it into the pool once it is ready, and drops it if
+     * it closes, fails its handshake or receives data while idle.
+     */
+    private final class IdleHandler extends ChannelInboundHandlerAdapter {
+        /** Whether the channel is still counted as pending */
+        private boolean pendingReady = true;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            // Added once connected; with TLS the channel is ready after the handshake
+            if (ctx.channel().isActive() && !connector.tlsEnabled()) {
+                ready(ctx.channel());
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof SslHandshakeCompletionEvent handshake) {
+                if (handshake.isSuccess()) {
+                    ready(ctx.channel());
+                } else {
+                    log.debug("Upstream pool handshake failed: {}", handshake.cause().getMessage());
+                    ctx.close();
+                }
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // An idle connection has nothing to read; treat data as a protocol error
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (notPending()) {
+                // Closed before it became ready, e.g. a failed TLS handshake
+                dialFailed = true;
+            } else {
+                idle.removeIf(entry -> entry.channel == ctx.channel());
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("Upstream pool connection error: {}", cause.getMessage());
+            ctx.close();
+        }
+
+        private void ready(Channel channel) {
+            if (notPending()) {
+                idle.addLast(new IdleChannel(channel, System.nanoTime()));
+            }
+        }
+
+        /**
+         * Stops counting the channel as pending.
+         *
+         * @return true if it was still pending
+         */
+        private boolean notPending() {
+            if (!pendingReady) {
+                return false;
+            }
+            pendingReady = false;
+            pending--;
+            return true;
+        }
+    }
+
+    /**
+     * An idle connection and the time it became idle.
+     */
+    private record IdleChannel(Channel channel, long idleSince) {
+    }
+}
@@ -0,0 +1,602 @@
+package xzy.fz.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseNotifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+import xzy.fz.transport.Transport;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Opens channels to the upstream proxies.
+ * <p>
+ * Every upstream connection goes through this class so that all of them share the
+ * listeners' {@link Transport}, socket options and TLS context, and are registered on the
+ * caller's event loop (both sides of a tunnel stay on one thread). Each tunnel or plain
+ * HTTP request first picks its upstream through the {@link UpstreamBalancer}, and stays
+ * counted as outstanding on that {@link UpstreamEndpoint} until the tunnel closes or the
+ * connection is released.
+ * <p>
+ * When {@code upstream.pool.size} is positive, each event loop keeps an
+ * {@link UpstreamConnectionPool} of idle, already-handshaken connections per upstream,
+ * and {@link #openTunnel} takes from it before dialing a new one.
+ * <p>
+ * CONNECT tunnels are opened with {@link #openTunnel}. With {@code upstream.protocol=h2}
+ * they are multiplexed as streams over a few long-lived HTTP/2 connections per event loop
+ * and upstream ({@link Http2SessionPool}); otherwise each tunnel gets its own HTTP/1.1
+ * connection. If the
+ * upstream does not negotiate {@code h2} via ALPN, tunnels fall back to HTTP/1.1.
+ * <p>
+ * Plain HTTP requests use {@link #connectHttp}, which prefers an idle keep-alive connection
+ * from the event loop's {@link HttpKeepAlivePool}; {@link #releaseHttp} returns a connection
+ * there after the response.
+ *
+ * <h2>Usage:</h2>
+ * <pre>
+ * connector.openTunnel(ctx.channel().eventLoop(), connectHandler)
+ *     .addListener(...);
+ * connector.connectHttp(ctx.channel().eventLoop(), forwardHandler, true)
+ *     .addListener(...);
+ * </pre>
+ * Handlers are appended after the TLS handler (or the tunnel codec of an HTTP/2 stream).
+ * They are only added once the connection is established (a pooled channel or stream is
+ * already active), and {@code channelActive} is not passed on to them, so handlers must
+ * start the exchange from {@code handlerAdded} when the channel is active.
+ * <p>
+ * Upstream hostnames are resolved by the {@link UpstreamResolver} (asynchronous, cached)
+ * and dialed with {@link HappyEyeballs}, so no event loop ever blocks on DNS. Tunnels the
+ * router sends DIRECT are dialed the same way with {@link #openDirect}.
+ */
+public final class UpstreamConnector implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamConnector.class);
+
+    /** Endpoint an upstream channel was dialed to */
+    private static final AttributeKey<UpstreamEndpoint> ENDPOINT = AttributeKey.valueOf(UpstreamConnector.class, "endpoint");
+
+    /** Endpoint whose outstanding count includes the channel's current exchange */
+    private static final AttributeKey<UpstreamEndpoint> EXCHANGE = AttributeKey.valueOf(UpstreamConnector.class, "exchange");
+
+    private final Config config;
+    private final Transport transport;
+    private final SslContext sslContext;
+    private final SslContext http2SslContext;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+    private final UpstreamBalancer balancer;
+    private final UpstreamResolver resolver;
+
+    /** Full vs resumed TLS handshake counters */
+    private final TlsHandshakeStats handshakeStats = new TlsHandshakeStats();
+
+    /** Idle connection pools, one per event loop and upstream */
+    private final Map<PoolKey, UpstreamConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /** Idle keep-alive connections for plain HTTP, one pool per event loop */
+    private final Map<EventLoop, HttpKeepAlivePool> keepAlivePools = new ConcurrentHashMap<>();
+
+    /** HTTP/2 connections carrying tunnels, one pool per event loop and upstream */
+    private final Map<PoolKey, Http2SessionPool> http2Pools = new ConcurrentHashMap<>();
+
+    /** How long an upstream that declined h2 gets HTTP/1.1 tunnels before ALPN offers h2 again */
+    private static final long HTTP2_RETRY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    /** Whether tunnels use HTTP/2 */
+    private final boolean http2;
+
+    /** Upstreams that did not negotiate h2, with the {@code nanoTime} to try h2 again at */
+    private final Map<UpstreamEndpoint, Long> http2DeclinedUntil = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a connector for the configured upstream proxies.
+     *
+     * @param config          Proxy configuration
+     * @param transport       I/O transport (must match the event loops passed to {@link #openTunnel})
+     * @param sslContext      SSL context for upstream HTTP/1.1 TLS connections (null if TLS disabled)
+     * @param http2SslContext SSL context offering h2 via ALPN (null if TLS or HTTP/2 is disabled)
+     */
+    public UpstreamConnector(Config config, Transport transport, SslContext sslContext,
+                             SslContext http2SslContext) {
+        this.config = config;
+        this.transport = transport;
+        this.sslContext = sslContext;
+        this.http2SslContext = http2SslContext;
+        this.http2 = config.upstreamHttp2();
+        this.writeBufferWaterMark = new WriteBufferWaterMark(
+                config.writeBufferLowWaterMark(), config.writeBufferHighWaterMark());
+        this.balancer = new UpstreamBalancer(config);
+        this.resolver = new UpstreamResolver(config, transport);
+    }
+
+    /**
+     * Starts an idle connection pool for every upstream on every event loop of the group
+     * (if pooling is enabled), and the upstream health checks (if enabled).
+     *
+     * @param group Worker group whose event loops serve client connections
+     */
+    public void prewarm(EventLoopGroup group) {
+        if (http2) {
+            log.info("Upstream CONNECT tunnels use HTTP/2, up to {} stream(s) per connection",
+                    config.upstreamH2MaxStreams());
+        }
+        if (config.upstreamKeepAliveMaxIdle() > 0) {
+            log.info("Upstream keep-alive for plain HTTP: {} idle connection(s) per event loop, "
+                            + "max idle {} ms, max {} request(s) per connection",
+                    config.upstreamKeepAliveMaxIdle(), config.upstreamKeepAliveMaxIdleMillis(),
+                    config.upstreamKeepAliveMaxRequests());
+        }
+        if (config.upstreamHealthIntervalMillis() > 0) {
+            new UpstreamHealthChecker(this, group.next(), config).start();
+        }
+        if (config.upstreamPoolSize() <= 0) {
+            return;
+        }
+        for (EventExecutor executor : group) {
+            EventLoop eventLoop = (EventLoop) executor;
+            for (UpstreamEndpoint endpoint : balancer.endpoints()) {
+                eventLoop.execute(() -> pool(eventLoop, endpoint).start());
+            }
+        }
+        log.info("Upstream connection pool: {} idle connection(s) per event loop and upstream, max idle {} ms",
+                config.upstreamPoolSize(), config.upstreamPoolMaxIdleMillis());
+    }
+
+    /**
+     * Opens a CONNECT tunnel to an upstream proxy chosen by the balancer.
+     * <p>
+     * Must be called from {@code eventLoop}. The connect handler receives the upstream's
+     * CONNECT response as a {@code FullHttpResponse} and relays raw {@code ByteBuf}s
+     * afterwards, whether the tunnel is an HTTP/2 stream or an HTTP/1.1 connection.
+     * Fails at once if every upstream's circuit breaker is open.
+     *
+     * @param eventLoop      Event loop of the client channel
+     * @param connectHandler Handler that sends the CONNECT request and handles the response
+     * @return Future completed with the tunnel channel once it is open
+     */
+    public Future<Channel> openTunnel(EventLoop eventLoop, ChannelHandler connectHandler) {
+        UpstreamEndpoint endpoint = balancer.select();
+        if (endpoint == null) {
+            return eventLoop.newFailedFuture(noUpstreamAvailable());
+        }
+        endpoint.exchangeStarted();
+        ConnectLatency latency = new ConnectLatency(endpoint);
+
+        Promise<Channel> promise = eventLoop.newPromise();
+        promise.addListener((FutureListener<Channel>) future -> {
+            if (future.isSuccess()) {
+                beginExchange(endpoint, future.getNow());
+            } else {
+                endpoint.exchangeEnded();
+                endpoint.connectFailed(config.connectTimeoutMillis());
+            }
+        });
+        if (!http2(endpoint)) {
+            PromiseNotifier.cascade(openHttp1Tunnel(eventLoop, endpoint, latency, connectHandler), promise);
+            return promise;
+        }
+        http2Pool(eventLoop, endpoint).openStream(latency, connectHandler)
+                .addListener((FutureListener<Channel>) future -> {
+                    if (future.isSuccess()) {
+                        Channel stream = future.getNow();
+                        stream.closeFuture().addListener(f -> endExchange(stream));
+                        promise.setSuccess(stream);
+                    } else if (!http2(endpoint)) {
+                        // ALPN fell back to HTTP/1.1 while this tunnel was waiting
+                        PromiseNotifier.cascade(openHttp1Tunnel(eventLoop, endpoint, latency, connectHandler), promise);
+                    } else {
+                        promise.setFailure(future.cause());
+                    }
+                });
+        return promise;
+    }
+
+    private Future<Channel> openHttp1Tunnel(EventLoop eventLoop, UpstreamEndpoint endpoint,
+                                            ConnectLatency latency, ChannelHandler connectHandler) {
+        return connect(eventLoop, endpoint,
+                // HTTP codec and aggregator for the CONNECT handshake
+                new HttpClientCodec(), new HttpObjectAggregator(65536), latency, connectHandler);
+    }
+
+    /**
+     * Opens a tunnel straight to the destination, bypassing the upstream proxies (the
+     * router's DIRECT route).
+     * <p>
+     * Must be called from {@code eventLoop}. The destination is resolved and dialed like an
+     * upstream; the connect handler's CONNECT request is answered locally with 200, so the
+     * same handlers as for {@link #openTunnel} switch the tunnel to relaying.
+     *
+     * @param eventLoop      Event loop of the client channel
+     * @param host           Destination hostname or IP literal (IPv6 without brackets)
+     * @param port           Destination port
+     * @param connectHandler Handler that sends the CONNECT request and handles the response
+     * @return Future completed with the connected channel
+     */
+    public Future<Channel> openDirect(EventLoop eventLoop, String host, int port, ChannelHandler connectHandler) {
+        return dial(eventLoop, null, host, port,
+                ch -> ch.pipeline().addLast(new DirectTunnelCodec(), connectHandler));
+    }
+
+    /**
+     * Obtains an HTTP/1.1 channel to an upstream proxy chosen by the balancer for a plain
+     * HTTP request.
+     * <p>
+     * Must be called from {@code eventLoop}. Takes an idle keep-alive connection to that
+     * upstream if one is available (and {@code reuse} is set), otherwise connects with a
+     * fresh {@link HttpClientCodec}. Hand the channel back with {@link #releaseHttp} once the
+     * response has been read in full. Fails at once if every upstream's circuit breaker is open.
+     *
+     * @param eventLoop Event loop of the client channel
+     * @param handler   Handler to append after the HTTP codec
+     * @param reuse     Whether an idle keep-alive connection may be used
+     * @return Future completed with the channel once it is connected
+     */
+    public Future<Channel> connectHttp(EventLoop eventLoop, ChannelHandler handler, boolean reuse) {
+        UpstreamEndpoint endpoint = balancer.select();
+        if (endpoint == null) {
+            return eventLoop.newFailedFuture(noUpstreamAvailable());
+        }
+        endpoint.exchangeStarted();
+        if (reuse && config.upstreamKeepAliveMaxIdle() > 0) {
+            Channel idle = keepAlivePool(eventLoop).acquire(endpoint.address());
+            if (idle != null) {
+                beginExchange(endpoint, idle);
+                idle.pipeline().addLast(handler);
+                return eventLoop.newSucceededFuture(idle);
+            }
+        }
+        Promise<Channel> promise = eventLoop.newPromise();
+        connect(eventLoop, endpoint, new HttpClientCodec(), handler)
+                .addListener((FutureListener<Channel>) future -> {
+                    if (future.isSuccess()) {
+                        endpoint.connectSucceeded();
+                        beginExchange(endpoint, future.getNow());
+                        promise.setSuccess(future.getNow());
+                    } else {
+                        endpoint.exchangeEnded();
+                        endpoint.connectFailed(config.connectTimeoutMillis());
+                        promise.setFailure(future.cause());
+                    }
+                });
+        return promise;
+    }
+
+    private static ConnectException noUpstreamAvailable() {
+        return new ConnectException("No upstream proxy available (all circuit breakers open)");
+    }
+
+    /**
+     * Returns a channel obtained from {@link #connectHttp} for reuse by later requests.
+     * <p>
+     * Must be called from the channel's event loop, after the request handler has been
+     * removed and only the HTTP codec (and TLS handler) remain. Closes the channel if
+     * keep-alive pooling is disabled or the connection has reached its request limit.
+     *
+     * @param channel Upstream channel whose last response has been read in full
+     */
+    public void releaseHttp(Channel channel) {
+        endExchange(channel);
+        UpstreamEndpoint channelEndpoint = channel.attr(ENDPOINT).get();
+        if (config.upstreamKeepAliveMaxIdle() <= 0 || channelEndpoint == null) {
+            channel.close();
+            return;
+        }
+        keepAlivePool(channel.eventLoop()).release(channelEndpoint.address(), channel);
+    }
+
+    /**
+     * Gets the upstream a channel from this connector is connected to.
+     *
+     * @param channel Upstream channel or HTTP/2 tunnel stream
+     * @return Upstream endpoint, or null if the channel was not opened by this connector
+     */
+    public static UpstreamEndpoint endpoint(Channel channel) {
+        UpstreamEndpoint endpoint = channel.attr(ENDPOINT).get();
+        if (endpoint == null && channel.parent() != null) {
+            endpoint = channel.parent().attr(ENDPOINT).get();
+        }
+        return endpoint;
+    }
+
+    /**
+     * Whether a channel from {@link #connectHttp} was taken from the keep-alive pool rather
+     * than freshly connected. The upstream may have closed such a connection while it was
+     * idle, and the close may only be noticed once a new request has been sent.
+     *
+     * @param channel Upstream channel
+     * @return true if the channel has carried an earlier request
+     */
+    public static boolean isReused(Channel channel) {
+        return HttpKeepAlivePool.reused(channel);
+    }
+
+    /**
+     * Marks a channel as carrying an exchange counted as outstanding on the endpoint.
+     */
+    private static void beginExchange(UpstreamEndpoint endpoint, Channel channel) {
+        channel.attr(EXCHANGE).set(endpoint);
+        if (!channel.isOpen()) {
+            endExchange(channel);
+        }
+    }
+
+    /**
+     * Ends the channel's current exchange, if any.
+     */
+    private static void endExchange(Channel channel) {
+        UpstreamEndpoint endpoint = channel.attr(EXCHANGE).getAndSet(null);
+        if (endpoint != null) {
+            endpoint.exchangeEnded();
+        }
+    }
+
+    /**
+     * Obtains a channel to an upstream proxy with the given handlers appended.
+     * <p>
+     * Must be called from {@code eventLoop}. Uses a pooled connection if one is idle,
+     * otherwise dials a new one.
+     *
+     * @param eventLoop Event loop of the client channel
+     * @param endpoint  Upstream to connect to
+     * @param handlers  Handlers to append after the TLS handler
+     * @return Future completed with the channel once it is connected
+     */
+    private Future<Channel> connect(EventLoop eventLoop, UpstreamEndpoint endpoint, ChannelHandler... handlers) {
+        if (config.upstreamPoolSize() > 0) {
+            Channel pooled = pool(eventLoop, endpoint).acquire();
+            if (pooled != null) {
+                pooled.pipeline().addLast(handlers);
+                return eventLoop.newSucceededFuture(pooled);
+            }
+        }
+        return dial(eventLoop, endpoint, handlers);
+    }
+
+    /**
+     * Dials a new connection to an upstream proxy.
+     *
+     * @param eventLoop Event loop to register the channel on
+     * @param endpoint  Upstream to connect to
+     * @param handlers  Handlers to append after the TLS handler
+     * @return Future completed with the channel once it is connected
+     */
+    Future<Channel> dial(EventLoop eventLoop, UpstreamEndpoint endpoint, ChannelHandler... handlers) {
+        return dial(eventLoop, endpoint, sslContext, handlers);
+    }
+
+    /**
+     * Dials a new HTTP/2 connection (ALPN h2 over TLS, or prior-knowledge h2c).
+     *
+     * @param eventLoop Event loop to register the channel on
+     * @param endpoint  Upstream to connect to
+     * @param handlers  HTTP/2 codec and connection handlers
+     * @return Future completed with the channel once it is connected
+     */
+    Future<Channel> dialHttp2(EventLoop eventLoop, UpstreamEndpoint endpoint, ChannelHandler... handlers) {
+        return dial(eventLoop, endpoint, http2SslContext, handlers);
+    }
+
+    /**
+     * Resolves the upstream and races its addresses; the winning connection gets the TLS
+     * handler and {@code handlers}.
+     */
+    private Future<Channel> dial(EventLoop eventLoop, UpstreamEndpoint endpoint, SslContext tlsContext,
+                                 ChannelHandler... handlers) {
+        return dial(eventLoop, endpoint, endpoint.host(), endpoint.port(),
+                ch -> initPipeline(ch, endpoint, tlsContext, handlers));
+    }
+
+    private Future<Channel> dial(EventLoop eventLoop, UpstreamEndpoint endpoint, String host, int port,
+                                 Consumer<Channel> onConnected) {
+        Promise<Channel> promise = eventLoop.newPromise();
+        resolver.resolveAll(eventLoop, host)
+                .addListener((FutureListener<List<InetAddress>>) resolved -> {
+                    if (!resolved.isSuccess()) {
+                        promise.setFailure(resolved.cause());
+                        return;
+                    }
+                    new HappyEyeballs(bootstrap(eventLoop, endpoint), resolved.getNow(), port,
+                            config.upstreamConnectAttemptDelayMillis(), onConnected, promise).start();
+                });
+        return promise;
+    }
+
+    private Bootstrap bootstrap(EventLoop eventLoop, UpstreamEndpoint endpoint) {
+        return new Bootstrap()
+                .group(eventLoop)  // Use same event loop as client
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.connectTimeoutMillis())
+                .option(ChannelOption.TCP_NODELAY, true)  // Disable Nagle for lower latency
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.attr(ENDPOINT).set(endpoint);
+                        ch.closeFuture().addListener(f -> endExchange(ch));
+                        ch.pipeline().addLast(ConnectGate.INSTANCE);
+                    }
+                });
+    }
+
+    /**
+     * Sets up the pipeline of a connection that won its race. Runs before the channel's
+     * {@code channelActive}, which the {@link ConnectGate} keeps from the new handlers.
+     */
+    private void initPipeline(Channel ch, UpstreamEndpoint endpoint, SslContext tlsContext,
+                              ChannelHandler... handlers) {
+        ChannelPipeline p = ch.pipeline();
+        // Add SSL handler if upstream requires TLS
+        if (tlsContext != null) {
+            // Peer host/port let the session cache resume earlier sessions
+            SslHandler sslHandler = tlsContext.newHandler(ch.alloc(), endpoint.host(), endpoint.port());
+            handshakeStats.track(sslHandler);
+            p.addLast(sslHandler);
+        }
+        p.addLast(handlers);
+    }
+
+    /**
+     * Gets the upstream TLS handshake counters.
+     *
+     * @return Handshake stats (all zero if TLS is disabled)
+     */
+    public TlsHandshakeStats handshakeStats() {
+        return handshakeStats;
+    }
+
+    /**
+     * Closes the DNS resolvers' sockets. Pooled connections close with their event loops.
+     */
+    @Override
+    public void close() {
+        resolver.close();
+    }
+
+    /**
+     * Gets the balancer choosing among the upstreams; also the source of per-upstream stats.
+     *
+     * @return Upstream balancer
+     */
+    public UpstreamBalancer balancer() {
+        return balancer;
+    }
+
+    /**
+     * Switches tunnels to an upstream back to HTTP/1.1 after it declined h2 in ALPN. Once
+     * {@link #HTTP2_RETRY_NANOS} have passed, the next tunnel to it tries h2 again.
+     *
+     * @param endpoint Upstream that declined h2
+     * @param protocol Protocol the upstream selected (null if it ignored ALPN)
+     */
+    void http2NotNegotiated(UpstreamEndpoint endpoint, String protocol) {
+        if (http2DeclinedUntil.put(endpoint, System.nanoTime() + HTTP2_RETRY_NANOS) == null) {
+            log.warn("Upstream {} did not negotiate HTTP/2 (ALPN: {}), using HTTP/1.1 tunnels for {} s",
+                    endpoint, protocol, TimeUnit.NANOSECONDS.toSeconds(HTTP2_RETRY_NANOS));
+        }
+    }
+
+    /**
+     * Whether tunnels to an upstream use HTTP/2 (configured, and not recently declined).
+     */
+    private boolean http2(UpstreamEndpoint endpoint) {
+        if (!http2) {
+            return false;
+        }
+        Long retryAt = http2DeclinedUntil.get(endpoint);
+        if (retryAt == null) {
+            return true;
+        }
+        if (System.nanoTime() - retryAt < 0) {
+            return false;
+        }
+        http2DeclinedUntil.remove(endpoint, retryAt);
+        return true;
+    }
+
+    /**
+     * Whether upstream connections use TLS.
+     */
+    boolean tlsEnabled() {
+        return sslContext != null;
+    }
+
+    private HttpKeepAlivePool keepAlivePool(EventLoop eventLoop) {
+        return keepAlivePools.computeIfAbsent(eventLoop, loop -> new HttpKeepAlivePool(loop,
+                config.upstreamKeepAliveMaxIdle(), config.upstreamKeepAliveMaxIdleMillis(),
+                config.upstreamKeepAliveMaxRequests()));
+    }
+
+    private Http2SessionPool http2Pool(EventLoop eventLoop, UpstreamEndpoint endpoint) {
+        return http2Pools.computeIfAbsent(new PoolKey(eventLoop, endpoint), key -> new Http2SessionPool(
+                eventLoop, this, endpoint, config.upstreamH2MaxStreams()));
+    }
+
+    private UpstreamConnectionPool pool(EventLoop eventLoop, UpstreamEndpoint endpoint) {
+        return pools.computeIfAbsent(new PoolKey(eventLoop, endpoint), key -> new UpstreamConnectionPool(
+                eventLoop, this, endpoint, config.upstreamPoolSize(), config.upstreamPoolMaxIdleMillis()));
+    }
+
+    /**
+     * Event loop and upstream a pool serves.
+     */
+    private record PoolKey(EventLoop eventLoop, UpstreamEndpoint endpoint) {
+    }
+
+    /**
+     * First handler of every dialed channel. Swallows {@code channelActive}: the handlers
+     * added on connect have already started from {@code handlerAdded}. Removes itself.
+     */
+    @ChannelHandler.Sharable
+    private static final class ConnectGate extends ChannelInboundHandlerAdapter {
+        static final ConnectGate INSTANCE = new ConnectGate();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    /**
+     * Reports the outcome of a tunnel's CONNECT to the endpoint's breaker and latency
+     * average. A 2xx response is a successful connect, sampled with the time from upstream
+     * selection to the response; any other response, a failed TLS handshake or a close
+     * before the response is a failed connect. Passes everything on and removes itself
+     * once the outcome is known.
+     */
+    private final class ConnectLatency extends ChannelInboundHandlerAdapter {
+        private final UpstreamEndpoint endpoint;
+        private final long startNanos = System.nanoTime();
+
+        ConnectLatency(UpstreamEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpResponse response) {
+                if (response.status().codeClass() == HttpStatusClass.SUCCESS) {
+                    endpoint.connectSucceeded(System.nanoTime() - startNanos);
+                } else {
+                    endpoint.connectFailed(config.connectTimeoutMillis());
+                }
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslHandshakeCompletionEvent handshake && !handshake.isSuccess()) {
+                endpoint.connectFailed(config.connectTimeoutMillis());
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            endpoint.connectFailed(config.connectTimeoutMillis());
+            ctx.pipeline().remove(this);
+            ctx.fireChannelInactive();
+        }
+    }
+}
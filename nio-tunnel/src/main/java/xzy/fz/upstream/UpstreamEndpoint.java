@@ -0,0 +1,242 @@
+package xzy.fz.upstream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One upstream proxy ({@code host:port}) and the load figures the
+ * {@link UpstreamBalancer} selects on.
+ * <p>
+ * An exchange (a CONNECT tunnel or a plain HTTP request) is outstanding from the moment the
+ * endpoint is selected until the tunnel closes, the keep-alive connection is released or
+ * the connect attempt fails. CONNECT latency is measured from selection to the upstream's
+ * response, so it includes TCP and TLS setup when no pooled connection was available.
+ * Connect outcomes and health probes also drive the endpoint's {@link CircuitBreaker}.
+ * Endpoints are shared by all event loops.
+ */
+public final class UpstreamEndpoint {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamEndpoint.class);
+
+    /** Weight of the newest latency sample in the moving average */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final String host;
+    private final int port;
+    private final String address;
+    private final CircuitBreaker breaker;
+
+    /** Exchanges selected and not yet ended */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** Times this endpoint was selected */
+    private final LongAdder selected = new LongAdder();
+
+    /** Failed connect attempts */
+    private final LongAdder failures = new LongAdder();
+
+    /** Health probes that succeeded */
+    private final LongAdder probesOk = new LongAdder();
+
+    /** Health probes that failed */
+    private final LongAdder probesFailed = new LongAdder();
+
+    /** Moving average of CONNECT latency in nanoseconds (0 until the first sample) */
+    private double latencyEwmaNanos;
+
+    /**
+     * Creates an endpoint.
+     *
+     * @param host   Upstream proxy hostname
+     * @param port   Upstream proxy port
+     * @param config Proxy configuration (circuit breaker settings)
+     */
+    public UpstreamEndpoint(String host, int port, Config config) {
+        this.host = host;
+        this.port = port;
+        this.address = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+        this.breaker = new CircuitBreaker(config.upstreamBreakerFailureThreshold(),
+                config.upstreamBreakerOpenMillis());
+    }
+
+    /**
+     * Parses {@code host}, {@code host:port} or {@code [ipv6]:port}.
+     *
+     * @param spec   Endpoint as configured
+     * @param config Proxy configuration ({@code upstream.port} is used when the spec has no port)
+     * @return Parsed endpoint
+     * @throws IllegalArgumentException if the port is not a number or a bracket is not closed
+     */
+    public static UpstreamEndpoint parse(String spec, Config config) {
+        String value = spec.trim();
+        if (value.startsWith("[")) {
+            int end = value.indexOf(']');
+            if (end < 0 || (end + 1 < value.length() && value.charAt(end + 1) != ':')) {
+                throw new IllegalArgumentException("Invalid upstream address: " + spec);
+            }
+            String host = value.substring(1, end);
+            return new UpstreamEndpoint(host,
+                    end + 1 < value.length() ? parsePort(value.substring(end + 2)) : config.upstreamPort(),
+                    config);
+        }
+        int colon = value.lastIndexOf(':');
+        if (colon < 0 || value.indexOf(':') != colon) {
+            // No port, or a bare IPv6 address
+            return new UpstreamEndpoint(value, config.upstreamPort(), config);
+        }
+        return new UpstreamEndpoint(value.substring(0, colon), parsePort(value.substring(colon + 1)), config);
+    }
+
+    private static int parsePort(String port) {
+        try {
+            return Integer.parseInt(port.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid upstream port: " + port);
+        }
+    }
+
+    /**
+     * Gets the upstream proxy hostname.
+     */
+    public String host() {
+        return host;
+    }
+
+    /**
+     * Gets the upstream proxy port.
+     */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * Gets the endpoint as {@code host:port}.
+     */
+    public String address() {
+        return address;
+    }
+
+    /**
+     * Gets the number of exchanges currently using this endpoint.
+     */
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Gets the number of times this endpoint was selected.
+     */
+    public long selectedCount() {
+        return selected.sum();
+    }
+
+    /**
+     * Gets the number of failed connect attempts.
+     */
+    public long failureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Gets the number of successful and failed health probes.
+     *
+     * @param ok true for successful probes, false for failed ones
+     */
+    public long probeCount(boolean ok) {
+        return ok ? probesOk.sum() : probesFailed.sum();
+    }
+
+    /**
+     * Gets the circuit breaker.
+     */
+    CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    /**
+     * Gets the moving average of CONNECT latency.
+     *
+     * @return Latency in nanoseconds (0 if nothing has been measured yet)
+     */
+    public synchronized double latencyEwmaNanos() {
+        return latencyEwmaNanos;
+    }
+
+    /**
+     * Counts a new exchange as outstanding.
+     */
+    void exchangeStarted() {
+        selected.increment();
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Ends an exchange counted by {@link #exchangeStarted()}.
+     */
+    void exchangeEnded() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Records a successful connect.
+     */
+    void connectSucceeded() {
+        breaker.success();
+    }
+
+    /**
+     * Records a CONNECT response and adds its latency sample.
+     *
+     * @param nanos Time from selection to the upstream's CONNECT response
+     */
+    void connectSucceeded(long nanos) {
+        sampleLatency(nanos);
+        breaker.success();
+    }
+
+    /**
+     * Records a failed connect attempt. It is averaged in as a sample of the connect
+     * timeout, so a failing endpoint does not look fast.
+     *
+     * @param timeoutMillis Connect timeout
+     */
+    void connectFailed(int timeoutMillis) {
+        failures.increment();
+        sampleLatency(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        CircuitBreaker.State before = breaker.state();
+        breaker.failure();
+        if (before == CircuitBreaker.State.CLOSED && breaker.state() == CircuitBreaker.State.OPEN) {
+            log.warn("Upstream {} circuit open after {} failed connects in a row", address,
+                    breaker.consecutiveFailures());
+        }
+    }
+
+    /**
+     * Records the outcome of a health probe.
+     *
+     * @param ok Whether the probe succeeded
+     */
+    void probed(boolean ok) {
+        if (ok) {
+            probesOk.increment();
+            breaker.success();
+        } else {
+            probesFailed.increment();
+            breaker.probeFailed();
+        }
+    }
+
+    private synchronized void sampleLatency(long nanos) {
+        latencyEwmaNanos = latencyEwmaNanos == 0
+                ? nanos : latencyEwmaNanos + EWMA_WEIGHT * (nanos - latencyEwmaNanos);
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
@@ -0,0 +1,192 @@
+package xzy.fz.upstream;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes every upstream proxy in the background and feeds the results into its
+ * {@link CircuitBreaker}.
+ * <p>
+ * Every {@code upstream.health.intervalMillis} a new connection is dialed to each upstream.
+ * A probe succeeds once the TCP connect and the TLS handshake (if enabled) complete and,
+ * with {@code upstream.health.target} set, the upstream answers a CONNECT to that canary
+ * target with 200. The probe connection is then closed. A probe that fails or takes longer
+ * than {@code upstream.health.timeoutMillis} counts as a failure towards the upstream's
+ * breaker threshold; a successful probe closes the breaker, so a recovered upstream is used again without waiting for a trial
+ * request.
+ * <p>
+ * Probes run on one event loop and bypass the idle pools. The canary target should be
+ * reliable: if it fails, every upstream is considered down.
+ */
+final class UpstreamHealthChecker {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamHealthChecker.class);
+
+    private final UpstreamConnector connector;
+    private final EventLoop eventLoop;
+    private final Config config;
+    private final String target;
+
+    /**
+     * Creates a health checker.
+     *
+     * @param connector Connector used to dial probe connections
+     * @param eventLoop Event loop the probes run on
+     * @param config    Proxy configuration
+     */
+    UpstreamHealthChecker(UpstreamConnector connector, EventLoop eventLoop, Config config) {
+        this.connector = connector;
+        this.eventLoop = eventLoop;
+        this.config = config;
+        this.target = config.upstreamHealthTarget().isBlank() ? null : config.upstreamHealthTarget();
+    }
+
+    /**
+     * Probes all upstreams now and then periodically.
+     */
+    void start() {
+        long interval = config.upstreamHealthIntervalMillis();
+        eventLoop.scheduleWithFixedDelay(this::probeAll, 0, interval, TimeUnit.MILLISECONDS);
+        log.info("Upstream health checks every {} ms ({})", interval,
+                target != null ? "CONNECT " + target : "connect and TLS handshake");
+    }
+
+    private void probeAll() {
+        for (UpstreamEndpoint endpoint : connector.balancer().endpoints()) {
+            probe(endpoint);
+        }
+    }
+
+    private void probe(UpstreamEndpoint endpoint) {
+        Probe probe = new Probe(endpoint);
+        ChannelHandler[] handlers = target != null
+                ? new ChannelHandler[]{new HttpClientCodec(), new HttpObjectAggregator(8192), probe}
+                : new ChannelHandler[]{probe};
+        connector.dial(eventLoop, endpoint, handlers)
+                .addListener(future -> {
+                    if (!future.isSuccess()) {
+                        probe.done(false, future.cause().getMessage());
+                    }
+                });
+        probe.timeout = eventLoop.schedule(() -> probe.done(false, "timed out"),
+                config.upstreamHealthTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One probe connection; reports its outcome once and closes the connection.
+     */
+    private final class Probe extends ChannelInboundHandlerAdapter {
+        private final UpstreamEndpoint endpoint;
+        private ChannelHandlerContext ctx;
+        private ScheduledFuture<?> timeout;
+        private boolean done;
+
+        Probe(UpstreamEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+            if (done) {
+                // Connected after the probe timed out
+                ctx.close();
+                return;
+            }
+            // Added once connected; with TLS the probe continues after the handshake
+            if (ctx.channel().isActive() && !connector.tlsEnabled()) {
+                connected();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof SslHandshakeCompletionEvent handshake) {
+                if (handshake.isSuccess()) {
+                    connected();
+                } else {
+                    done(false, "TLS handshake failed: " + handshake.cause().getMessage());
+                }
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof HttpResponse response) {
+                    done(response.status().code() == 200, "CONNECT " + target + " answered " + response.status());
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            done(false, "connection closed");
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            done(false, cause.getMessage());
+        }
+
+        /**
+         * Sends the canary CONNECT, or ends the probe if there is no canary target.
+         */
+        private void connected() {
+            if (target == null) {
+                done(true, null);
+                return;
+            }
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, target);
+            request.headers().set(HttpHeaderNames.HOST, target);
+            if (config.expectedUpstreamAuthHeader() != null) {
+                request.headers().set(HttpHeaderNames.PROXY_AUTHORIZATION, config.expectedUpstreamAuthHeader());
+            }
+            ctx.writeAndFlush(request);
+        }
+
+        void done(boolean ok, String reason) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (ctx != null) {
+                ctx.close();
+            }
+            CircuitBreaker.State before = endpoint.breaker().state();
+            endpoint.probed(ok);
+            if (!ok) {
+                log.debug("Health probe of upstream {} failed: {}", endpoint, reason);
+            }
+            if (before != endpoint.breaker().state()) {
+                log.warn("Upstream {} circuit {} after health probe{}", endpoint,
+                        endpoint.breaker().state().name().toLowerCase(Locale.ROOT), ok ? "" : " (" + reason + ")");
+            }
+        }
+    }
+}
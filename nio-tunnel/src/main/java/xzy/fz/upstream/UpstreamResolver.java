@@ -0,0 +1,160 @@
+package xzy.fz.upstream;
+
+import io.netty.channel.EventLoop;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DefaultDnsCnameCache;
+import io.netty.resolver.dns.DnsCache;
+import io.netty.resolver.dns.DnsCnameCache;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProvider;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+import xzy.fz.transport.Transport;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves upstream hostnames (and the destinations of DIRECT tunnels) without blocking
+ * the event loops.
+ * <p>
+ * Each event loop has its own Netty {@link DnsNameResolver}, so queries are sent and
+ * answered on the loop that asked. All of them share one cache that keeps answers for
+ * their DNS TTL (at most {@code upstream.dns.maxTtlSeconds}) and failures for
+ * {@code upstream.dns.negativeTtlSeconds}, and concurrent lookups of the same name are
+ * merged into one query. Both A and AAAA records are requested (unless the JVM prefers
+ * the IPv4 stack) so that {@link HappyEyeballs} can race the address families. IP literals
+ * and {@code /etc/hosts} entries are answered without a query.
+ * <p>
+ * Name servers come from {@code upstream.dns.servers} (IP addresses with an optional port, comma-separated)
+ * or, if that is empty, from the system configuration ({@code /etc/resolv.conf}).
+ */
+final class UpstreamResolver {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamResolver.class);
+
+    private static final int DNS_PORT = 53;
+
+    /** Distinct names whose concurrent lookups are merged into one query */
+    private static final int CONSOLIDATE_CACHE_SIZE = 64;
+
+    private final Transport transport;
+    private final int queryTimeoutMillis;
+    private final DnsServerAddressStreamProvider nameServers;
+    private final DnsCache cache;
+    private final DnsCnameCache cnameCache = new DefaultDnsCnameCache();
+
+    /** One resolver per event loop */
+    private final Map<EventLoop, DnsNameResolver> resolvers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a resolver.
+     *
+     * @param config    Proxy configuration
+     * @param transport I/O transport (DNS queries use its datagram channel)
+     * @throws IllegalArgumentException if a name server is not an IP address or has an invalid port
+     */
+    UpstreamResolver(Config config, Transport transport) {
+        this.transport = transport;
+        this.queryTimeoutMillis = config.connectTimeoutMillis();
+        this.cache = new DefaultDnsCache(0, config.upstreamDnsMaxTtlSeconds(),
+                config.upstreamDnsNegativeTtlSeconds());
+        this.nameServers = nameServers(config.upstreamDnsServers());
+    }
+
+    private static DnsServerAddressStreamProvider nameServers(String spec) {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String server : spec.split(",")) {
+            if (!server.isBlank()) {
+                servers.add(nameServer(server.trim()));
+            }
+        }
+        if (servers.isEmpty()) {
+            return DnsServerAddressStreamProviders.platformDefault();
+        }
+        log.info("Resolving upstream hostnames via {}", servers);
+        return new SequentialDnsServerAddressStreamProvider(servers);
+    }
+
+    /**
+     * Parses {@code ip}, {@code ip:port} or {@code [ipv6]:port}. Name servers must be IP
+     * addresses, since looking them up would need DNS.
+     */
+    private static InetSocketAddress nameServer(String spec) {
+        String host = spec;
+        int port = DNS_PORT;
+        int colon = spec.lastIndexOf(':');
+        if (spec.startsWith("[")) {
+            int end = spec.indexOf(']');
+            if (end < 0 || (end + 1 < spec.length() && spec.charAt(end + 1) != ':')) {
+                throw new IllegalArgumentException("Invalid DNS server: " + spec);
+            }
+            host = spec.substring(1, end);
+            if (end + 1 < spec.length()) {
+                port = parsePort(spec.substring(end + 2), spec);
+            }
+        } else if (colon >= 0 && spec.indexOf(':') == colon) {
+            host = spec.substring(0, colon);
+            port = parsePort(spec.substring(colon + 1), spec);
+        }
+        InetAddress address = NetUtil.createInetAddressFromIpAddressString(host);
+        if (address == null) {
+            throw new IllegalArgumentException("DNS server must be an IP address: " + spec);
+        }
+        return new InetSocketAddress(address, port);
+    }
+
+    private static int parsePort(String port, String spec) {
+        try {
+            return Integer.parseInt(port.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid DNS server port: " + spec);
+        }
+    }
+
+    /**
+     * Resolves a hostname to all its addresses.
+     * <p>
+     * Must be called from {@code eventLoop}; the future completes on it.
+     *
+     * @param eventLoop Event loop of the caller
+     * @param host      Hostname or IP literal
+     * @return Future completed with the addresses (preferred family first), or with an
+     *         {@link java.net.UnknownHostException}
+     */
+    Future<List<InetAddress>> resolveAll(EventLoop eventLoop, String host) {
+        return resolvers.computeIfAbsent(eventLoop, this::newResolver).resolveAll(host);
+    }
+
+    /**
+     * Closes every event loop's resolver.
+     */
+    void close() {
+        resolvers.values().forEach(DnsNameResolver::close);
+        resolvers.clear();
+    }
+
+    private DnsNameResolver newResolver(EventLoop eventLoop) {
+        return new DnsNameResolverBuilder(eventLoop)
+                .datagramChannelType(transport.datagramChannelClass())
+                .socketChannelType(transport.socketChannelClass())  // TCP fallback for truncated answers
+                .nameServerProvider(nameServers)
+                .resolveCache(cache)
+                .cnameCache(cnameCache)
+                .queryTimeoutMillis(queryTimeoutMillis)
+                .consolidateCacheSize(CONSOLIDATE_CACHE_SIZE)
+                .resolvedAddressTypes(NetUtil.isIpV4StackPreferred()
+                        ? ResolvedAddressTypes.IPV4_ONLY : ResolvedAddressTypes.IPV6_PREFERRED)
+                .build();
+    }
+}
@@ -0,0 +1,143 @@
+package xzy.fz.upstream;
+
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xzy.fz.config.Config;
+
+import javax.net.ssl.SSLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds the client {@link SslContext} used for upstream proxy connections.
+ * <p>
+ * Upstream connections go to one host and port (or a few, with {@code upstream.servers}),
+ * so almost all handshakes can resume a cached session instead of doing a full key
+ * exchange and certificate verification. The context's client session cache is sized and timed explicitly
+ * ({@code upstream.tls.sessionCacheSize}, {@code upstream.tls.sessionTimeoutSeconds}),
+ * and session tickets are enabled so TLS 1.2 servers can resume statelessly (the
+ * {@code upstream.tls.sessionTickets} switch only affects the JDK provider; OpenSSL always
+ * offers tickets).
+ * TLS 1.3 resumes through PSK tickets cached the same way.
+ * <p>
+ * Resumption is keyed on the peer host and port, which is why
+ * {@link UpstreamConnector} always passes them to {@code newHandler}.
+ *
+ * <h2>Provider ({@code upstream.tls.provider} property):</h2>
+ * <ul>
+ *   <li><b>auto</b> - OpenSSL (BoringSSL via netty-tcnative) if it loads, otherwise JDK</li>
+ *   <li><b>openssl</b> - BoringSSL; much cheaper per byte than the JDK engine for bulk relay</li>
+ *   <li><b>jdk</b> - JDK {@code SSLEngine}</li>
+ * </ul>
+ * An explicitly requested OpenSSL that cannot be loaded falls back to JDK.
+ * {@code upstream.tls.protocols} and {@code upstream.tls.ciphers} restrict the enabled
+ * protocols and cipher suites; suites the provider does not support are dropped.
+ * <p>
+ * HTTP/2 upstream connections use a second context that offers {@code h2} (and
+ * {@code http/1.1} as fallback) via ALPN.
+ */
+public final class UpstreamTls {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamTls.class);
+
+    /** JDK switch for the client session ticket extension; read once when JSSE initializes */
+    private static final String JDK_SESSION_TICKETS_PROPERTY = "jdk.tls.client.enableSessionTicketExtension";
+
+    private UpstreamTls() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * Creates the upstream SSL context.
+     *
+     * @param config        Proxy configuration
+     * @param alpnProtocols Protocols to offer via ALPN, in order of preference (none to skip ALPN)
+     * @return Client SSL context, or null if upstream TLS is disabled
+     * @throws SSLException if the context cannot be created
+     */
+    public static SslContext newClientContext(Config config, String... alpnProtocols) throws SSLException {
+        if (!config.upstreamTls()) {
+            return null;
+        }
+
+        // An explicit -D on the command line wins over the config file
+        if (System.getProperty(JDK_SESSION_TICKETS_PROPERTY) == null) {
+            System.setProperty(JDK_SESSION_TICKETS_PROPERTY, Boolean.toString(config.upstreamTlsSessionTickets()));
+        }
+
+        SslProvider provider = selectProvider(config.upstreamTlsProvider());
+        List<String> protocols = splitList(config.upstreamTlsProtocols());
+        List<String> ciphers = splitList(config.upstreamTlsCiphers());
+
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                .sslProvider(provider)
+                .protocols(protocols)
+                .ciphers(ciphers, SupportedCipherSuiteFilter.INSTANCE)
+                .sessionCacheSize(config.upstreamTlsSessionCacheSize())
+                .sessionTimeout(config.upstreamTlsSessionTimeoutSeconds());
+        if (alpnProtocols.length > 0) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    alpnProtocols));
+        }
+        SslContext context = builder.build();
+
+        log.info("Upstream TLS provider: {}{}, protocols: {}{}", provider,
+                provider == SslProvider.OPENSSL ? " (" + OpenSsl.versionString() + ")" : "",
+                protocols != null ? protocols : "default",
+                alpnProtocols.length > 0 ? ", ALPN: " + String.join(",", alpnProtocols) : "");
+        log.debug("Upstream TLS cipher suites: {}", context.cipherSuites());
+        return context;
+    }
+
+    /**
+     * Resolves the configured provider name to an available provider.
+     *
+     * @param name Provider setting: auto, openssl or jdk
+     * @return The requested provider if available, otherwise the best fallback
+     */
+    static SslProvider selectProvider(String name) {
+        String normalized = name == null ? "auto" : name.trim().toLowerCase(Locale.ROOT);
+        return switch (normalized) {
+            case "jdk" -> SslProvider.JDK;
+            case "openssl", "boringssl" -> {
+                if (OpenSsl.isAvailable()) {
+                    yield SslProvider.OPENSSL;
+                }
+                Throwable cause = OpenSsl.unavailabilityCause();
+                log.warn("OpenSSL TLS provider is not available ({}), falling back to JDK",
+                        cause != null ? cause.getMessage() : "unknown reason");
+                yield SslProvider.JDK;
+            }
+            case "auto", "" -> OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            default -> {
+                log.warn("Unknown TLS provider '{}', using auto-detection", name);
+                yield OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            }
+        };
+    }
+
+    /**
+     * Splits a comma-separated setting.
+     *
+     * @return Trimmed, non-empty entries, or null (provider defaults) if there are none
+     */
+    private static List<String> splitList(String raw) {
+        if (raw == null) {
+            return null;
+        }
+        List<String> values = Arrays.stream(raw.split(","))
+                .map(String::trim)
+                .filter(value -> !value.isEmpty())
+                .toList();
+        return values.isEmpty() ? null : values;
+    }
+}